@@ -0,0 +1,49 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.util.StringUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link InvitationsStorage#getInvitation(String)} on a warm cache, for known and unknown tokens.
+ * The number of threads is set by {@link InvitationsBenchmarks}.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InvitationLookupBenchmark {
+
+    @Param({"10000"})
+    public int invitations;
+
+    @Param({"1000"})
+    public int projects;
+
+    private LargeInstallationFixture installation;
+    private String[] unknownTokens;
+
+    @Setup
+    public void setUp() {
+        installation = LargeInstallationFixture.builder().projects(projects).invitations(invitations).build();
+        unknownTokens = new String[1024];
+        for (int i = 0; i < unknownTokens.length; i++) {
+            unknownTokens[i] = StringUtil.generateUniqueHash();
+        }
+    }
+
+    @Benchmark
+    public Invitation hit() {
+        String[] tokens = installation.tokens;
+        return installation.storage.getInvitation(tokens[ThreadLocalRandom.current().nextInt(tokens.length)]);
+    }
+
+    @Benchmark
+    public Invitation miss() {
+        return installation.storage.getInvitation(unknownTokens[ThreadLocalRandom.current().nextInt(unknownTokens.length)]);
+    }
+}
@@ -0,0 +1,49 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the storage and user wrapper benchmarks and writes JMH results as JSON to the {@code jmh-results} directory (or the directory given by
+ * the {@code invitations.benchmarks.resultsDir} system property), one file per run, so they can be compared with a baseline.
+ * Other JMH command line options passed to this class, e.g. forks, iterations or parameters, are applied to every run.
+ */
+public class InvitationsBenchmarks {
+
+    private static final int[] LOOKUP_THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        File resultsDir = new File(System.getProperty("invitations.benchmarks.resultsDir", "jmh-results"));
+        if (!resultsDir.isDirectory() && !resultsDir.mkdirs()) {
+            throw new IllegalStateException("Unable to create " + resultsDir.getAbsolutePath());
+        }
+
+        for (int threads : LOOKUP_THREADS) {
+            run(options(commandLine, resultsDir, "lookup-" + threads + "-threads")
+                    .include(InvitationLookupBenchmark.class.getSimpleName())
+                    .threads(threads));
+        }
+        run(options(commandLine, resultsDir, "rebuild").include(InvitationsRebuildBenchmark.class.getSimpleName()));
+        run(options(commandLine, resultsDir, "mutation").include(InvitationsMutationBenchmark.class.getSimpleName()));
+        run(options(commandLine, resultsDir, "user-wrapper").include(UserWrapperBenchmark.class.getSimpleName()));
+    }
+
+    private static ChainedOptionsBuilder options(CommandLineOptions commandLine, File resultsDir, String name) {
+        return new OptionsBuilder()
+                .parent(commandLine)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(resultsDir, name + ".json").getAbsolutePath());
+    }
+
+    private static void run(ChainedOptionsBuilder options) throws RunnerException {
+        new Runner(options.build()).run();
+    }
+}
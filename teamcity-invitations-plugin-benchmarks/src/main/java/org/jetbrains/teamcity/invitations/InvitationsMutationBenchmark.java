@@ -0,0 +1,53 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.util.StringUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of invitation changes, each including the project persist and the following cache refresh.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class InvitationsMutationBenchmark {
+
+    @Param({"1000", "10000"})
+    public int invitations;
+
+    @Param({"100"})
+    public int projects;
+
+    private LargeInstallationFixture installation;
+
+    @Setup
+    public void setUp() {
+        installation = LargeInstallationFixture.builder().projects(projects).invitations(invitations).build();
+    }
+
+    @Benchmark
+    public Invitation addAndRemove() {
+        installation.login();
+        SProject project = installation.projects.get(ThreadLocalRandom.current().nextInt(installation.projects.size()));
+        Invitation added = installation.storage.addInvitation(installation.createInvitation(project, StringUtil.generateUniqueHash()));
+        return installation.storage.removeInvitation(project, added.getToken());
+    }
+
+    @Benchmark
+    public boolean update() {
+        installation.login();
+        String token = installation.tokens[ThreadLocalRandom.current().nextInt(installation.tokens.length)];
+        Invitation invitation = installation.storage.getInvitation(token);
+        Map<String, String> params = invitation.asMap();
+        params.put("disabled", String.valueOf(invitation.isEnabled()));
+        return installation.storage.updateInvitation(invitation.getType().readFrom(params, invitation.getProject()), "Invitation updated");
+    }
+}
@@ -0,0 +1,37 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build the token cache from the project features from scratch, as on the first lookup after server start.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class InvitationsRebuildBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int invitations;
+
+    @Param({"100", "1000", "10000"})
+    public int projects;
+
+    private LargeInstallationFixture installation;
+
+    @Setup
+    public void setUp() {
+        installation = LargeInstallationFixture.builder().projects(projects).invitations(invitations).build();
+    }
+
+    @Benchmark
+    public Invitation rebuild() {
+        installation.login();
+        return installation.restart().getInvitation(installation.tokens[0]);
+    }
+}
@@ -0,0 +1,110 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.impl.UserEx;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static jetbrains.buildServer.serverSide.auth.Permission.*;
+
+/**
+ * Cost of permission checks on the session user of a project creation workflow: {@link AdditionalPermissionsUserWrapper}
+ * compared with the proxy it replaced (string switch on the method name, list lookups). Both are proxies: the
+ * {@code granted} benchmarks are answered by the invocation handler, {@code passedThrough} ones reach the original user
+ * with {@code Method.invoke} in both implementations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class UserWrapperBenchmark {
+
+    private UserEx wrapped;
+    private UserEx legacy;
+
+    @Setup
+    public void setUp() {
+        UserEx original = Mockito.mock(UserEx.class, Mockito.withSettings().stubOnly());
+        Map<String, List<Permission>> additionalPermissions = new HashMap<>();
+        additionalPermissions.put("project1", asList(VIEW_BUILD_CONFIGURATION_SETTINGS, VIEW_PROJECT));
+        additionalPermissions.put("project2", asList(CREATE_SUB_PROJECT, VIEW_BUILD_CONFIGURATION_SETTINGS, VIEW_PROJECT));
+        wrapped = new AdditionalPermissionsUserWrapper(original, additionalPermissions).getWrappedUser();
+        legacy = legacyWrapper(original, additionalPermissions);
+    }
+
+    @Benchmark
+    public boolean grantedForProject() {
+        return wrapped.isPermissionGrantedForProject("project2", CREATE_SUB_PROJECT);
+    }
+
+    @Benchmark
+    public boolean grantedForProjectLegacy() {
+        return legacy.isPermissionGrantedForProject("project2", CREATE_SUB_PROJECT);
+    }
+
+    @Benchmark
+    public boolean grantedForAnyProject() {
+        return wrapped.isPermissionGrantedForAnyProject(CREATE_SUB_PROJECT);
+    }
+
+    @Benchmark
+    public boolean grantedForAnyProjectLegacy() {
+        return legacy.isPermissionGrantedForAnyProject(CREATE_SUB_PROJECT);
+    }
+
+    @Benchmark
+    public boolean passedThroughForAnyProject() {
+        return wrapped.isPermissionGrantedForAnyProject(EDIT_PROJECT);
+    }
+
+    @Benchmark
+    public boolean passedThroughForAnyProjectLegacy() {
+        return legacy.isPermissionGrantedForAnyProject(EDIT_PROJECT);
+    }
+
+    /**
+     * The previous implementation of {@link AdditionalPermissionsUserWrapper#getWrappedUser()}, reduced to the permission checks.
+     */
+    private static UserEx legacyWrapper(UserEx delegate, Map<String, List<Permission>> additionalPermissions) {
+        return (UserEx) Proxy.newProxyInstance(UserWrapperBenchmark.class.getClassLoader(), new Class<?>[]{UserEx.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isPermissionGrantedForProject":
+                            List<Permission> projectPermissions = additionalPermissions.get(args[0]);
+                            if (projectPermissions != null && projectPermissions.contains(args[1])) {
+                                return true;
+                            }
+                            return invoke(delegate, method, args);
+
+                        case "isPermissionGrantedForAnyProject":
+                            if (additionalPermissions.values().stream().anyMatch(list -> list.contains(args[0]))) {
+                                return true;
+                            }
+                            return invoke(delegate, method, args);
+
+                        default:
+                            return invoke(delegate, method, args);
+                    }
+                });
+    }
+
+    private static Object invoke(UserEx delegate, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
@@ -15,15 +15,19 @@ import java.util.Map;
 
 public abstract class AbstractInvitation implements Invitation {
     public static final String TOKEN_PARAM_NAME = Constants.SECURE_PROPERTY_PREFIX + "token";
+    public static final String CREATED_AT_PARAM_NAME = "createdAt";
+    public static final String INHERITABLE_PARAM_NAME = "inheritable";
     protected final String token;
     protected final boolean multi;
     protected final long createdByUserId;
+    protected final long createdAt;
     protected final SProject project;
     protected final String welcomeText;
     private final InvitationType type;
     private final String name;
     protected volatile boolean enabled;
     protected volatile String disabledText;
+    protected volatile boolean inheritable;
 
     protected AbstractInvitation(@NotNull SProject project, String name, @NotNull String token, boolean multi, InvitationType type, long createdByUserId,
                                  @NotNull String welcomeText) {
@@ -34,6 +38,7 @@ public abstract class AbstractInvitation implements Invitation {
         this.createdByUserId = createdByUserId;
         this.project = project;
         this.welcomeText = welcomeText;
+        this.createdAt = System.currentTimeMillis();
         this.enabled = true;
     }
 
@@ -43,8 +48,10 @@ public abstract class AbstractInvitation implements Invitation {
         this.token = params.get(TOKEN_PARAM_NAME);
         this.multi = Boolean.valueOf(params.get("multi"));
         this.createdByUserId = Long.parseLong(params.get("createdByUserId"));
+        this.createdAt = params.containsKey(CREATED_AT_PARAM_NAME) ? Long.parseLong(params.get(CREATED_AT_PARAM_NAME)) : 0;
         this.welcomeText = params.get("welcomeText");
         this.disabledText = params.get("disabledText");
+        this.inheritable = Boolean.valueOf(params.get(INHERITABLE_PARAM_NAME));
         this.type = type;
         this.project = project;
     }
@@ -88,12 +95,26 @@ public abstract class AbstractInvitation implements Invitation {
             result.put("disabledText", disabledText);
         }
         result.put("multi", multi + "");
+        if (inheritable) {
+            result.put(INHERITABLE_PARAM_NAME, "true");
+        }
         result.put("createdByUserId", createdByUserId + "");
+        result.put(CREATED_AT_PARAM_NAME, createdAt + "");
         result.put("welcomeText", welcomeText);
         result.put(Constants.SECURE_PROPERTY_PREFIX + "token", token);
         return result;
     }
 
+    @Override
+    public long getCreatedByUserId() {
+        return createdByUserId;
+    }
+
+    @Override
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
     @Override
     public boolean isReusable() {
         return multi;
@@ -120,6 +141,16 @@ public abstract class AbstractInvitation implements Invitation {
         this.enabled = enabled;
     }
 
+    @Override
+    public boolean isInheritable() {
+        return inheritable;
+    }
+
+    @Override
+    public void setInheritable(boolean inheritable) {
+        this.inheritable = inheritable;
+    }
+
     @Nullable
     public String getDisabledText() {
         return disabledText;
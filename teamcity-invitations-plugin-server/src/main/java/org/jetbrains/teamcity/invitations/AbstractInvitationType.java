@@ -4,8 +4,10 @@ import jetbrains.buildServer.controllers.ActionErrors;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -22,20 +24,36 @@ public abstract class AbstractInvitationType<T extends Invitation> implements In
         invitationsStorage.registerInvitationType(this);
     }
 
-    protected void invitationWorkflowFinished(@NotNull Invitation invitation) {
+    protected void invitationWorkflowFinished(@NotNull Invitation invitation, @NotNull SUser user) {
+        invitationsStorage.acceptanceCompleted(invitation, user.getId());
         if (!invitation.isReusable()) {
             Loggers.ACTIVITIES.info("Single user invitation " + invitation.describe(false) + " was used and will be deleted");
             core.runAsSystem(() -> invitationsStorage.removeInvitation(invitation.getProject(), invitation.getToken()));
         }
     }
 
+    /**
+     * See {@link InvitationsStorage#claim}.
+     */
+    protected boolean claim(@NotNull Invitation invitation) {
+        return invitationsStorage.claim(invitation.getToken());
+    }
+
+    protected void releaseClaim(@NotNull Invitation invitation) {
+        invitationsStorage.releaseClaim(invitation.getToken());
+    }
+
     @Override
     public void validate(@NotNull HttpServletRequest request, @NotNull SProject project, @NotNull ActionErrors errors) {
-        if (StringUtil.isEmptyOrSpaces(request.getParameter("name"))) {
+        validateTexts(request.getParameter("name"), request.getParameter("welcomeText"), errors);
+    }
+
+    protected static void validateTexts(@Nullable String name, @Nullable String welcomeText, @NotNull ActionErrors errors) {
+        if (StringUtil.isEmptyOrSpaces(name)) {
             errors.addError(new InvalidProperty("name", "Display name must not be empty"));
         }
 
-        if (StringUtil.isEmptyOrSpaces(request.getParameter("welcomeText"))) {
+        if (StringUtil.isEmptyOrSpaces(welcomeText)) {
             errors.addError(new InvalidProperty("welcomeText", "Welcome text must not be empty"));
         }
     }
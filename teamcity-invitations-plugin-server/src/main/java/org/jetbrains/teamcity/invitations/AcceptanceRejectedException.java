@@ -0,0 +1,20 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NonNls;
+
+/**
+ * Thrown when an accepted invitation can't be processed now and the user should retry later.
+ */
+public class AcceptanceRejectedException extends InvitationException {
+
+    private final int retryAfterSeconds;
+
+    public AcceptanceRejectedException(@NonNls String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -5,73 +5,112 @@ import jetbrains.buildServer.serverSide.auth.Permissions;
 import jetbrains.buildServer.users.impl.UserEx;
 import org.jetbrains.annotations.NotNull;
 
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Gives a user additional permissions in some projects while the wrapper is enabled.
+ * <p>
+ * The wrapped user is a {@link Proxy} over {@link UserEx}, created once per wrapper, so it follows whatever methods the
+ * server version declares. Every call goes through the proxy: the three permission checks are recognized by comparing the
+ * {@link Method} with the ones resolved once and, when the additional permissions grant them, are answered from an
+ * {@link EnumSet} per project plus a precomputed union of all of them for {@code isPermissionGrantedForAnyProject}.
+ * All other calls, and checks the additional permissions don't grant, are passed to the original user with
+ * {@link Method#invoke}.
+ */
 public class AdditionalPermissionsUserWrapper {
+    private static final Method IS_PERMISSION_GRANTED_FOR_PROJECT = getUserMethod("isPermissionGrantedForProject", String.class, Permission.class);
+    private static final Method IS_PERMISSION_GRANTED_FOR_ANY_PROJECT = getUserMethod("isPermissionGrantedForAnyProject", Permission.class);
+    private static final Method GET_PERMISSIONS_GRANTED_FOR_PROJECT = getUserMethod("getPermissionsGrantedForProject", String.class);
+
     private final UserEx delegate;
-    private final Map<String, List<Permission>> additionalPermissions;
+    private final Map<String, EnumSet<Permission>> additionalPermissions;
+    private final EnumSet<Permission> anyProjectPermissions;
     private final AtomicBoolean enabled = new AtomicBoolean(true);
+    private final long createdAtNanos = System.nanoTime();
+    private final long ttlNanos;
+    private final UserEx wrappedUser;
 
     public AdditionalPermissionsUserWrapper(UserEx originalUser, @NotNull Map<String, List<Permission>> additionalPermissions) {
+        this(originalUser, additionalPermissions, Long.MAX_VALUE);
+    }
+
+    /**
+     * The additional permissions are not granted anymore after {@code ttlNanos} even if the wrapper was not disabled explicitly.
+     */
+    public AdditionalPermissionsUserWrapper(UserEx originalUser, @NotNull Map<String, List<Permission>> additionalPermissions, long ttlNanos) {
         this.delegate = originalUser;
-        this.additionalPermissions = new ConcurrentHashMap<>(additionalPermissions);
+        Map<String, EnumSet<Permission>> byProject = new HashMap<>();
+        EnumSet<Permission> union = EnumSet.noneOf(Permission.class);
+        for (Map.Entry<String, List<Permission>> entry : additionalPermissions.entrySet()) {
+            EnumSet<Permission> permissions = EnumSet.noneOf(Permission.class);
+            permissions.addAll(entry.getValue());
+            byProject.put(entry.getKey(), permissions);
+            union.addAll(permissions);
+        }
+        this.additionalPermissions = Collections.unmodifiableMap(byProject);
+        this.anyProjectPermissions = union;
+        this.ttlNanos = ttlNanos;
+        this.wrappedUser = (UserEx) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{UserEx.class}, new Handler());
     }
 
     public UserEx getWrappedUser() {
-        return (UserEx) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{UserEx.class},
-                (proxy, method, args) -> {
-                    if (enabled.get()) {
-                        switch (method.getName()) {
-                            case "isPermissionGrantedForProject":
-                                List<Permission> projectPermissions = additionalPermissions.get(args[0]);
-                                if (projectPermissions != null && projectPermissions.contains(args[1])) {
-                                    return true;
-                                } else {
-                                    return invoke(method, args);
-                                }
+        return wrappedUser;
+    }
 
-                            case "isPermissionGrantedForAnyProject":
-                                if (additionalPermissions.values().stream().anyMatch(list -> list.contains(args[0]))) {
-                                    return true;
-                                } else {
-                                    return invoke(method, args);
-                                }
+    /**
+     * Returns true if the user is a wrapper with additional permissions, such users must not share cached authorization decisions with the original user.
+     */
+    static boolean isWrappedUser(@NotNull Object user) {
+        return Proxy.isProxyClass(user.getClass()) && Proxy.getInvocationHandler(user) instanceof Handler;
+    }
 
-                            case "getPermissionsGrantedForProject": {
-                                projectPermissions = additionalPermissions.get(args[0]);
-                                if (projectPermissions != null) {
-                                    List<Permission> base = ((Permissions) invoke(method, args)).toList();
-                                    base.addAll(projectPermissions);
-                                    return new Permissions(base);
-                                } else {
-                                    return invoke(method, args);
-                                }
-                            }
+    private boolean isEnabled() {
+        return enabled.get() && System.nanoTime() - createdAtNanos < ttlNanos;
+    }
 
-                            default:
-                                return invoke(method, args);
-                        }
-                    } else {
-                        return invoke(method, args);
-                    }
-                });
+    public void disable() {
+        enabled.set(false);
     }
 
-    private Object invoke(Method method, Object[] args) throws Throwable {
-        try {
-            return method.invoke(delegate, args);
-        } catch (InvocationTargetException e) {
-            throw e.getTargetException();
+    private final class Handler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (IS_PERMISSION_GRANTED_FOR_PROJECT.equals(method)) {
+                EnumSet<Permission> projectPermissions = additionalPermissions.get(args[0]);
+                if (projectPermissions != null && projectPermissions.contains(args[1]) && isEnabled()) {
+                    return true;
+                }
+            } else if (IS_PERMISSION_GRANTED_FOR_ANY_PROJECT.equals(method)) {
+                if (anyProjectPermissions.contains(args[0]) && isEnabled()) {
+                    return true;
+                }
+            } else if (GET_PERMISSIONS_GRANTED_FOR_PROJECT.equals(method)) {
+                EnumSet<Permission> projectPermissions = additionalPermissions.get(args[0]);
+                if (projectPermissions != null && isEnabled()) {
+                    EnumSet<Permission> result = EnumSet.copyOf(projectPermissions);
+                    result.addAll(delegate.getPermissionsGrantedForProject((String) args[0]).toList());
+                    return new Permissions(new ArrayList<>(result));
+                }
+            }
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
         }
     }
 
-    public void disable() {
-        enabled.set(false);
+    @NotNull
+    private static Method getUserMethod(@NotNull String name, @NotNull Class<?>... parameterTypes) {
+        try {
+            return UserEx.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Method " + name + " is not found in " + UserEx.class.getName(), e);
+        }
     }
 }
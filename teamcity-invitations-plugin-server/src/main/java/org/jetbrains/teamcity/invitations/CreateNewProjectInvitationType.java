@@ -4,7 +4,6 @@ import jetbrains.buildServer.controllers.ActionErrors;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.auth.*;
-import jetbrains.buildServer.serverSide.impl.auth.ServerAuthUtil;
 import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.users.impl.UserEx;
 import jetbrains.buildServer.util.EventDispatcher;
@@ -20,8 +19,10 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.util.Arrays.asList;
 import static java.util.Comparator.comparingInt;
@@ -34,32 +35,70 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
     private final TeamCityCoreFacade core;
 
     @NotNull
-    private final List<InvitationInProgress> myInvitationInProgresses = new CopyOnWriteArrayList<>();
+    private final RolesAndGroupsCache rolesAndGroups;
+
+    static final String WORKFLOW_TTL_PROPERTY = "teamcity.invitations.createProject.workflowTtlSeconds";
+
+    /**
+     * Users who accepted an invitation and are creating a project now, by user id and the parent project id.
+     */
+    @NotNull
+    private final ConcurrentMap<WorkflowKey, InvitationInProgress> myInvitationInProgresses = new ConcurrentHashMap<>();
+
+    @NotNull
+    private final LongAdder myExpiredWorkflows = new LongAdder();
 
     public CreateNewProjectInvitationType(@NotNull InvitationsStorage invitationsStorage,
                                           @NotNull TeamCityCoreFacade core,
                                           @NotNull EventDispatcher<ProjectsModelListener> events,
-                                          @NotNull InvitationLandingProvider customLandingRegistry) {
+                                          @NotNull InvitationLandingProvider customLandingRegistry,
+                                          @NotNull InvitationsMetrics metrics,
+                                          @NotNull RolesAndGroupsCache rolesAndGroups) {
         super(invitationsStorage, core, customLandingRegistry);
         this.core = core;
+        this.rolesAndGroups = rolesAndGroups;
+        metrics.registerGauge("createProjectWorkflowsInProgress", () -> {
+            expireWorkflows();
+            return myInvitationInProgresses.size();
+        });
+        metrics.registerGauge("createProjectWorkflowsExpired", myExpiredWorkflows::sum);
         events.addListener(new ProjectsModelListenerAdapter() {
             @Override
             public void projectCreated(@NotNull String projectId, @Nullable SUser user) {
                 SProject created = core.findProjectByIntId(projectId);
-                if (created != null && user != null) {
-                    Optional<InvitationInProgress> processingInvitation = myInvitationInProgresses.stream().filter(i -> i.isOurProjectCreation(created, user)).findFirst();
-                    if (processingInvitation.isPresent()) {
-                        core.addRole(user, processingInvitation.get().invitation.getRole(), projectId);
-                        processingInvitation.get().dispose();
-                        myInvitationInProgresses.removeIf(i -> i.isOurProjectCreation(created, user));
-                        invitationWorkflowFinished(processingInvitation.get().invitation);
-                        Loggers.ACTIVITIES.info("User " + user.describe(false) + " creates " + created.describe(false) + " project using the invitation " + processingInvitation.get().invitation.describe(false) + "");
+                if (created != null && user != null && created.getParentProjectId() != null) {
+                    InvitationInProgress processingInvitation = myInvitationInProgresses.remove(new WorkflowKey(user.getId(), created.getParentProjectId()));
+                    if (processingInvitation != null) {
+                        processingInvitation.dispose();
+                        if (processingInvitation.isExpired()) {
+                            myExpiredWorkflows.increment();
+                            Loggers.ACTIVITIES.info("User " + user.describe(false) + " creates " + created.describe(false) + " project after the invitation " + processingInvitation.invitation.describe(false) + " expired");
+                        } else {
+                            core.addRole(user, processingInvitation.invitation.getRole(), projectId);
+                            invitationWorkflowFinished(processingInvitation.invitation, user);
+                            Loggers.ACTIVITIES.info("User " + user.describe(false) + " creates " + created.describe(false) + " project using the invitation " + processingInvitation.invitation.describe(false) + "");
+                        }
                     }
                 }
+                expireWorkflows();
             }
         });
     }
 
+    /**
+     * Removes workflows older than {@code teamcity.invitations.createProject.workflowTtlSeconds} and takes away
+     * the permissions they gave. Called on every workflow start and project creation, so abandoned workflows don't pile up.
+     */
+    private void expireWorkflows() {
+        for (Map.Entry<WorkflowKey, InvitationInProgress> entry : myInvitationInProgresses.entrySet()) {
+            if (entry.getValue().isExpired() && myInvitationInProgresses.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().dispose();
+                myExpiredWorkflows.increment();
+                Loggers.SERVER.debug("Project creation by the invitation " + entry.getValue().invitation.describe(false) + " expired");
+            }
+        }
+    }
+
     @NotNull
     @Override
     public String getId() {
@@ -101,6 +140,7 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         modelAndView.getModel().put("roles", availableRoles);
         modelAndView.getModel().put("name", invitation == null ? getDescription() : invitation.getName());
         modelAndView.getModel().put("multiuser", invitation == null ? "true" : invitation.multi);
+        modelAndView.getModel().put("inheritable", invitation != null && invitation.isInheritable());
         modelAndView.getModel().put("roleId", invitation == null ? (availableRoles.size() > 0 ? availableRoles.get(0) : null) : invitation.roleId);
         modelAndView.getModel().put("welcomeText", invitation == null ?
                 user.getDescriptiveName() + " invites you to join TeamCity and create a project under " + project.getFullName() :
@@ -111,17 +151,15 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
 
     @NotNull
     private List<Role> getAvailableRoles(@NotNull AuthorityHolder currentUser, @NotNull SProject project) {
-        return core.getAvailableRoles().
+        return rolesAndGroups.getAssignableRoles(currentUser, project).
                 stream().
-                filter(Role::isProjectAssociationSupported).
                 filter(role -> role.getPermissions().contains(EDIT_PROJECT)).
-                filter(role -> canAssignRole(currentUser, project, role)).
                 sorted(comparingInt(o -> -o.getPermissions().toList().size())).
                 collect(toList());
     }
 
     private boolean canAssignRole(@NotNull AuthorityHolder currentUser, @NotNull SProject project, @NotNull Role role) {
-        return ServerAuthUtil.canChangeUserOrGroupRole(currentUser, RoleScope.projectScope(project.getProjectId()), role);
+        return rolesAndGroups.getAssignableRoles(currentUser, project).contains(role);
     }
 
     @Override
@@ -136,6 +174,17 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         }
     }
 
+    @Override
+    public void validate(@NotNull InvitationImpl invitation, @NotNull AuthorityHolder user, @NotNull ActionErrors errors) {
+        validateTexts(invitation.getName(), invitation.getWelcomeText(), errors);
+        String roleId = invitation.roleId;
+        if (StringUtil.isEmptyOrSpaces(roleId)) {
+            errors.addError(new InvalidProperty("role", "Role must not be empty"));
+        } else if (getAvailableRoles(user, invitation.getProject()).stream().noneMatch(role -> role.getId().equals(roleId))) {
+            errors.addError(new InvalidProperty("role", "Role '" + roleId + "' doesn't exist or can't be given in created projects"));
+        }
+    }
+
     @NotNull
     @Override
     public InvitationImpl createNewInvitation(@NotNull HttpServletRequest request, @NotNull SProject project, @NotNull String token) {
@@ -151,32 +200,67 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         return invitation;
     }
 
-    private static final class InvitationInProgress {
+    /**
+     * Creates the invitation without checking permissions of the inviter.
+     */
+    @NotNull
+    public InvitationImpl createNewInvitation(@NotNull SUser inviter, @NotNull String name, @NotNull String token, @NotNull SProject project,
+                                              @NotNull String roleId, boolean multiuser, @NotNull String welcomeText) {
+        return new InvitationImpl(inviter, name, token, project, roleId, multiuser, welcomeText);
+    }
+
+    private static final class WorkflowKey {
+        private final long userId;
         @NotNull
-        private final SUser user;
+        private final String parentProjectId;
+
+        private WorkflowKey(long userId, @NotNull String parentProjectId) {
+            this.userId = userId;
+            this.parentProjectId = parentProjectId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WorkflowKey)) return false;
+            WorkflowKey that = (WorkflowKey) o;
+            return userId == that.userId && parentProjectId.equals(that.parentProjectId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(userId) + parentProjectId.hashCode();
+        }
+    }
+
+    private static final class InvitationInProgress {
         @NotNull
         private final InvitationImpl invitation;
         @NotNull
-        private final Runnable disposeAction;
+        private final AdditionalPermissionsUserWrapper wrapper;
+        private final long startedAtNanos = System.nanoTime();
+        private final long ttlNanos;
 
-        private InvitationInProgress(@NotNull SUser user, @NotNull InvitationImpl invitation, @NotNull Runnable disposeAction) {
-            this.user = user;
+        private InvitationInProgress(@NotNull InvitationImpl invitation, @NotNull AdditionalPermissionsUserWrapper wrapper, long ttlNanos) {
             this.invitation = invitation;
-            this.disposeAction = disposeAction;
+            this.wrapper = wrapper;
+            this.ttlNanos = ttlNanos;
         }
 
-        public boolean isOurProjectCreation(@NotNull SProject created, @NotNull SUser creator) {
-            return creator.getId() == this.user.getId() && invitation.getProject().getProjectId().equals(created.getParentProjectId());
+        private boolean isExpired() {
+            return System.nanoTime() - startedAtNanos >= ttlNanos;
         }
 
-        public void dispose() {
-            disposeAction.run();
+        private void dispose() {
+            wrapper.disable();
         }
     }
 
     public final class InvitationImpl extends AbstractInvitation {
         @NotNull
         private final String roleId;
+        @Nullable
+        private volatile ResolvedRoleAndGroup resolved;
 
         InvitationImpl(@NotNull SUser currentUser, @NotNull String name, @NotNull String token, @NotNull SProject project, @NotNull String roleId,
                        boolean multi, @NotNull String welcomeText) {
@@ -207,26 +291,34 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
         @Nullable
         @Override
         public String getValidationError() {
-            if (getRole() == null) {
-                return "Role '" + roleId + "' doesn't exists anymore";
-            }
-            return null;
+            return resolve().validationError;
         }
 
         @NotNull
         public ModelAndView invitationAccepted(@NotNull SUser user, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
-            UserEx originalUser = (UserEx) SessionUser.getUser(request);
-
-            Map<String, List<Permission>> additionalPermissions = new HashMap<>();
-            getProject().getProjectPath().forEach(parent -> {
-                additionalPermissions.put(parent.getProjectId(), asList(VIEW_BUILD_CONFIGURATION_SETTINGS, VIEW_PROJECT));
-            });
-            additionalPermissions.put(project.getProjectId(), asList(CREATE_SUB_PROJECT, VIEW_BUILD_CONFIGURATION_SETTINGS, VIEW_PROJECT));
-
-            AdditionalPermissionsUserWrapper wrapper = new AdditionalPermissionsUserWrapper(originalUser, additionalPermissions);
-            SessionUser.setUser(request, wrapper.getWrappedUser());
-            myInvitationInProgresses.add(new InvitationInProgress(originalUser, this, wrapper::disable));
-            return new ModelAndView(new RedirectView(new RelativeWebLinks().getCreateProjectPageUrl(project.getExternalId()), true));
+            Object acceptEvent = InvitationFlightRecorder.begin(InvitationFlightRecorder.Kind.ACCEPT);
+            try {
+                UserEx originalUser = (UserEx) SessionUser.getUser(request);
+
+                Map<String, List<Permission>> additionalPermissions = new HashMap<>();
+                getProject().getProjectPath().forEach(parent -> {
+                    additionalPermissions.put(parent.getProjectId(), asList(VIEW_BUILD_CONFIGURATION_SETTINGS, VIEW_PROJECT));
+                });
+                additionalPermissions.put(project.getProjectId(), asList(CREATE_SUB_PROJECT, VIEW_BUILD_CONFIGURATION_SETTINGS, VIEW_PROJECT));
+
+                long ttlNanos = TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger(WORKFLOW_TTL_PROPERTY, 3600));
+                AdditionalPermissionsUserWrapper wrapper = new AdditionalPermissionsUserWrapper(originalUser, additionalPermissions, ttlNanos);
+                SessionUser.setUser(request, wrapper.getWrappedUser());
+                InvitationInProgress previous = myInvitationInProgresses.put(new WorkflowKey(originalUser.getId(), project.getProjectId()),
+                        new InvitationInProgress(this, wrapper, ttlNanos));
+                if (previous != null) {
+                    previous.dispose();
+                }
+                expireWorkflows();
+                return new ModelAndView(new RedirectView(new RelativeWebLinks().getCreateProjectPageUrl(project.getExternalId()), true));
+            } finally {
+                InvitationFlightRecorder.commit(acceptEvent, project, getType());
+            }
         }
 
         @Nullable
@@ -236,9 +328,17 @@ public class CreateNewProjectInvitationType extends AbstractInvitationType<Creat
 
         @Nullable
         public Role getRole() {
-            return CreateNewProjectInvitationType.this.core.findRoleById(roleId);
+            return resolve().role;
         }
 
+        @NotNull
+        private ResolvedRoleAndGroup resolve() {
+            ResolvedRoleAndGroup result = rolesAndGroups.resolve(resolved, roleId, null);
+            resolved = result;
+            return result;
+        }
+
+        @Override
         @NotNull
         public String getRoleId() {
             return roleId;
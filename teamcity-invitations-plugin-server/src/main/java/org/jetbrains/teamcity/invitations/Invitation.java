@@ -27,6 +27,13 @@ public interface Invitation extends Loggable {
 
     void setEnabled(boolean enabled);
 
+    /**
+     * Inheritable invitations are also listed in the effective invitations of all subprojects of their project.
+     */
+    boolean isInheritable();
+
+    void setInheritable(boolean inheritable);
+
     @NotNull
     ModelAndView processInvitationRequest(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response);
 
@@ -41,6 +48,29 @@ public interface Invitation extends Loggable {
 
     boolean isReusable();
 
+    /**
+     * Id of the role the invitation gives, null if it doesn't give any role.
+     */
+    @Nullable
+    default String getRoleId() {
+        return null;
+    }
+
+    /**
+     * Key of the group the invitation adds users to, null if it doesn't add to any group.
+     */
+    @Nullable
+    default String getGroupKey() {
+        return null;
+    }
+
+    long getCreatedByUserId();
+
+    /**
+     * Creation time in milliseconds, 0 for invitations created before the time was recorded.
+     */
+    long getCreatedAt();
+
     /**
      * Check whether the user can view and edit the invitation.
      */
@@ -0,0 +1,206 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Runs the work of accepted invitations, e.g. adding roles and groups, outside of request threads.
+ * <p>
+ * Used when {@code teamcity.invitations.acceptance.async.enabled} is set. Work is queued per project and the
+ * {@code teamcity.invitations.acceptance.threads} workers take projects in turn, so a burst of acceptances in one project
+ * doesn't delay the others. When more than {@code teamcity.invitations.acceptance.maxQueueDepth} acceptances are waiting
+ * new ones are rejected with {@link AcceptanceRejectedException}. The state of every submitted acceptance can be polled by its id
+ * for {@code teamcity.invitations.acceptance.statusTtlSeconds} after it finished.
+ */
+@ThreadSafe
+public class InvitationAcceptanceExecutor implements DisposableBean {
+
+    static final String ENABLED_PROPERTY = "teamcity.invitations.acceptance.async.enabled";
+    static final String THREADS_PROPERTY = "teamcity.invitations.acceptance.threads";
+    static final String MAX_QUEUE_DEPTH_PROPERTY = "teamcity.invitations.acceptance.maxQueueDepth";
+    static final String RETRY_AFTER_PROPERTY = "teamcity.invitations.acceptance.retryAfterSeconds";
+    static final String STATUS_TTL_PROPERTY = "teamcity.invitations.acceptance.statusTtlSeconds";
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    @NotNull
+    private final ExecutorService workers;
+
+    @GuardedBy("this")
+    private final Map<String, Queue<Acceptance>> queuedByProject = new HashMap<>();
+
+    /**
+     * Projects with queued acceptances in the order they are served.
+     */
+    @GuardedBy("this")
+    private final Queue<String> projectsInTurn = new ArrayDeque<>();
+
+    @GuardedBy("this")
+    private int queued;
+
+    @NotNull
+    private final ConcurrentMap<String, Acceptance> acceptances = new ConcurrentHashMap<>();
+
+    public InvitationAcceptanceExecutor(@NotNull InvitationsMetrics metrics) {
+        int threads = Math.max(1, TeamCityProperties.getInteger(THREADS_PROPERTY, 4));
+        workers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Invitation acceptance"));
+        metrics.registerGauge("acceptancesQueued", this::getQueueDepth);
+    }
+
+    public boolean isEnabled() {
+        return TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Queues the work and returns the id to poll its state with.
+     *
+     * @param userId     the user accepting the invitation, only this user can see the state
+     * @param redirectTo where the user goes when the work is done
+     */
+    @NotNull
+    public String submit(@NotNull String projectId, long userId, @NotNull String redirectTo, @NotNull Runnable work) {
+        expireStatuses();
+        Acceptance acceptance = new Acceptance(userId, redirectTo, work);
+        synchronized (this) {
+            if (queued >= TeamCityProperties.getInteger(MAX_QUEUE_DEPTH_PROPERTY, 1000)) {
+                throw new AcceptanceRejectedException("Too many invitations are being accepted now", TeamCityProperties.getInteger(RETRY_AFTER_PROPERTY, 5));
+            }
+            Queue<Acceptance> projectQueue = queuedByProject.get(projectId);
+            if (projectQueue == null) {
+                projectQueue = new ArrayDeque<>();
+                queuedByProject.put(projectId, projectQueue);
+                projectsInTurn.add(projectId);
+            }
+            projectQueue.add(acceptance);
+            queued++;
+        }
+        acceptances.put(acceptance.id, acceptance);
+        try {
+            workers.execute(this::runNext);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                Queue<Acceptance> projectQueue = queuedByProject.get(projectId);
+                if (projectQueue == null || !projectQueue.remove(acceptance)) {
+                    //already taken by a worker running an earlier task
+                    return acceptance.id;
+                }
+                if (projectQueue.isEmpty()) {
+                    queuedByProject.remove(projectId);
+                    projectsInTurn.remove(projectId);
+                }
+                queued--;
+            }
+            acceptances.remove(acceptance.id);
+            throw new AcceptanceRejectedException("The server is shutting down", TeamCityProperties.getInteger(RETRY_AFTER_PROPERTY, 5));
+        }
+        return acceptance.id;
+    }
+
+    /**
+     * Returns the acceptance with the given id if it was submitted by the user.
+     */
+    @Nullable
+    public Acceptance getAcceptance(@NotNull String id, long userId) {
+        Acceptance acceptance = acceptances.get(id);
+        return acceptance != null && acceptance.userId == userId ? acceptance : null;
+    }
+
+    public synchronized long getQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * Runs the first acceptance of the next project in turn, the project goes to the end of the turn if it has more.
+     */
+    private void runNext() {
+        Acceptance next;
+        synchronized (this) {
+            String projectId = projectsInTurn.poll();
+            if (projectId == null) {
+                return;
+            }
+            Queue<Acceptance> projectQueue = queuedByProject.get(projectId);
+            next = projectQueue.poll();
+            if (projectQueue.isEmpty()) {
+                queuedByProject.remove(projectId);
+            } else {
+                projectsInTurn.add(projectId);
+            }
+            queued--;
+        }
+        next.run();
+    }
+
+    private void expireStatuses() {
+        long ttlNanos = TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger(STATUS_TTL_PROPERTY, 600));
+        long now = System.nanoTime();
+        acceptances.values().removeIf(a -> a.finishedAtNanos != 0 && now - a.finishedAtNanos > ttlNanos);
+    }
+
+    @Override
+    public void destroy() {
+        workers.shutdownNow();
+    }
+
+    public static final class Acceptance {
+        @NotNull
+        private final String id = StringUtil.generateUniqueHash();
+        private final long userId;
+        @NotNull
+        private final String redirectTo;
+        @NotNull
+        private final Runnable work;
+        @NotNull
+        private volatile State state = State.QUEUED;
+        private volatile long finishedAtNanos;
+
+        private Acceptance(long userId, @NotNull String redirectTo, @NotNull Runnable work) {
+            this.userId = userId;
+            this.redirectTo = redirectTo;
+            this.work = work;
+        }
+
+        private void run() {
+            state = State.RUNNING;
+            try {
+                work.run();
+                state = State.DONE;
+            } catch (Throwable e) {
+                Loggers.SERVER.warn("Failed to process the accepted invitation", e);
+                state = State.FAILED;
+            } finally {
+                finishedAtNanos = System.nanoTime();
+            }
+        }
+
+        @NotNull
+        public String getId() {
+            return id;
+        }
+
+        @NotNull
+        public State getState() {
+            return state;
+        }
+
+        @NotNull
+        public String getRedirectTo() {
+            return redirectTo;
+        }
+    }
+}
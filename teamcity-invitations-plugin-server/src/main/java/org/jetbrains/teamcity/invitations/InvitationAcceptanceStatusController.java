@@ -0,0 +1,57 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * State of an invitation accepted with {@link InvitationAcceptanceExecutor}, polled by the page shown to the user while
+ * the roles and groups of the invitation are being added. Only the user who accepted the invitation can see it.
+ */
+public class InvitationAcceptanceStatusController extends BaseController {
+    static final String PATH = "/invitationsAcceptanceStatus.html";
+
+    @NotNull
+    private final InvitationAcceptanceExecutor acceptanceExecutor;
+
+    public InvitationAcceptanceStatusController(@NotNull WebControllerManager webControllerManager,
+                                                @NotNull InvitationAcceptanceExecutor acceptanceExecutor) {
+        this.acceptanceExecutor = acceptanceExecutor;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Authentication required");
+            return null;
+        }
+        String id = request.getParameter("id");
+        InvitationAcceptanceExecutor.Acceptance acceptance = StringUtil.isEmptyOrSpaces(id) ? null : acceptanceExecutor.getAcceptance(id, user.getId());
+        if (acceptance == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown acceptance '" + id + "'");
+            return null;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        JsonWriter json = new JsonWriter(response.getWriter());
+        json.beginObject()
+                .property("state", acceptance.getState().name())
+                .property("redirectTo", acceptance.getState() == InvitationAcceptanceExecutor.State.DONE ? request.getContextPath() + acceptance.getRedirectTo() : null)
+                .endObject();
+        json.flush();
+        return null;
+    }
+}
@@ -7,6 +7,7 @@ import jetbrains.buildServer.controllers.SimpleView;
 import jetbrains.buildServer.controllers.admin.projects.EditProjectTab;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.auth.AccessDeniedException;
 import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.StringUtil;
@@ -23,6 +24,7 @@ import org.springframework.web.servlet.ModelAndView;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import static java.util.stream.Collectors.toList;
@@ -31,6 +33,8 @@ public class InvitationAdminController extends BaseFormXmlController {
 
     public static final String MESSAGES_KEY = "teamcity.invitations.plugin";
     public static final String INVITATIONS_ADMIN_TAB_NAME = "invitations";
+    static final String PAGE_SIZE_PROPERTY = "teamcity.invitations.admin.pageSize";
+    static final String MAX_PAGE_SIZE_PROPERTY = "teamcity.invitations.admin.maxPageSize";
 
     @NotNull
     private final InvitationsStorage invitations;
@@ -40,6 +44,10 @@ public class InvitationAdminController extends BaseFormXmlController {
     private final InvitationsLandingController invitationsController;
     @NotNull
     private final List<InvitationType> invitationTypes;
+    @NotNull
+    private final String invitationsPageViewPath;
+    @NotNull
+    private final String inheritedInvitationsPageViewPath;
 
     public InvitationAdminController(@NotNull PagePlaces pagePlaces,
                                      @NotNull WebControllerManager webControllerManager,
@@ -52,6 +60,8 @@ public class InvitationAdminController extends BaseFormXmlController {
         this.teamCityCoreFacade = teamCityCoreFacade;
         this.invitationsController = invitationsController;
         this.invitationTypes = invitationTypes;
+        this.invitationsPageViewPath = pluginDescriptor.getPluginResourcesPath("invitationsListPage.jsp");
+        this.inheritedInvitationsPageViewPath = pluginDescriptor.getPluginResourcesPath("inheritedInvitationsListPage.jsp");
         new InvitationsProjectAdminPage(pagePlaces, pluginDescriptor).register();
         webControllerManager.registerController("/admin/invitations.html", this);
     }
@@ -66,7 +76,13 @@ public class InvitationAdminController extends BaseFormXmlController {
         }
 
         ModelAndView result;
-        if (StringUtil.isEmptyOrSpaces(request.getParameter("token"))) {
+        if (request.getParameter("invitationsPage") != null) {
+            //return the next rows of the invitations list
+            InvitationsQuery query = createQuery(request);
+            result = new ModelAndView(query.isInherited() ? inheritedInvitationsPageViewPath : invitationsPageViewPath);
+            result.addObject("page", invitations.getInvitationsPage(project, currentUser, query));
+            result.addObject("invitationRootUrl", invitationsController.getInvitationsPath());
+        } else if (StringUtil.isEmptyOrSpaces(request.getParameter("token"))) {
             //return 'new invitation' view
             InvitationType<?> invitationType = findInvitationType(request);
             if (invitationType == null) {
@@ -181,7 +197,41 @@ public class InvitationAdminController extends BaseFormXmlController {
             throw new ValidationException(actionErrors);
         }
 
-        return invitationType.createNewInvitation(request, project, token);
+        Invitation invitation = invitationType.createNewInvitation(request, project, token);
+        invitation.setInheritable(Boolean.parseBoolean(request.getParameter("inheritable")));
+        return invitation;
+    }
+
+    @NotNull
+    private static InvitationsQuery createQuery(@NotNull HttpServletRequest request) {
+        InvitationsQuery.Sort sort;
+        try {
+            sort = InvitationsQuery.Sort.valueOf(StringUtil.emptyIfNull(request.getParameter("sort")).toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            sort = InvitationsQuery.Sort.NAME;
+        }
+        String type = request.getParameter("filterType");
+        String enabled = request.getParameter("enabled");
+        String createdBy = request.getParameter("createdBy");
+        int pageSize = TeamCityProperties.getInteger(PAGE_SIZE_PROPERTY, 50);
+        return new InvitationsQuery(sort, "desc".equals(request.getParameter("order")),
+                StringUtil.isEmptyOrSpaces(type) ? null : type,
+                StringUtil.isEmptyOrSpaces(enabled) ? null : Boolean.valueOf(enabled),
+                StringUtil.isEmptyOrSpaces(createdBy) ? null : parseLong(createdBy, -1),
+                "true".equals(request.getParameter("inherited")),
+                (int) Math.max(0, Math.min(parseLong(request.getParameter("offset"), 0), Integer.MAX_VALUE)),
+                (int) Math.max(1, Math.min(parseLong(request.getParameter("limit"), pageSize), TeamCityProperties.getInteger(MAX_PAGE_SIZE_PROPERTY, 500))));
+    }
+
+    private static long parseLong(@Nullable String value, long defaultValue) {
+        if (StringUtil.isEmptyOrSpaces(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     @Nullable
@@ -199,9 +249,9 @@ public class InvitationAdminController extends BaseFormXmlController {
         public void fillModel(@NotNull Map<String, Object> model, @NotNull HttpServletRequest request) {
             SProject project = getProject(request);
             model.put("project", project);
-            model.put("invitations", invitations.getInvitations(project).stream()
-                    .filter(i -> i.isAvailableFor(SessionUser.getUser(request)))
-                    .collect(toList()));
+            model.put("currentUserId", SessionUser.getUser(request).getId());
+            model.put("filterInvitationTypes", invitationTypes);
+            model.put("hasParentProject", project.getParentProject() != null);
             model.put("invitationTypes", invitationTypes.stream()
                     .filter(invitationType -> invitationType.isAvailableFor(SessionUser.getUser(request), project))
                     .collect(toList()));
@@ -219,11 +269,7 @@ public class InvitationAdminController extends BaseFormXmlController {
             SProject project = getProject(request);
             String tabTitle = super.getTabTitle(request);
             if (project != null) {
-                int invitationsCount = (int) invitations.getInvitations(project)
-                        .stream()
-                        .filter(Invitation::isEnabled)
-                        .filter(i -> i.isAvailableFor(SessionUser.getUser(request)))
-                        .count();
+                int invitationsCount = invitations.getEnabledInvitationsCount(project, SessionUser.getUser(request));
                 if (invitationsCount > 0) {
                     tabTitle += " (" + invitationsCount + ")";
                 }
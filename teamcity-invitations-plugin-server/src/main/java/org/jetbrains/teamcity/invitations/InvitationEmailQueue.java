@@ -0,0 +1,501 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Sends invitation links by email through the SMTP server configured for the plugin, see {@link TeamCityCoreFacade#getSmtpSettings()}.
+ * <p>
+ * {@link #enqueue} only records the recipients, so an admin request can queue thousands of emails: they are appended to a
+ * queue file under the plugin data directory, which is read back on startup, and sent by one background thread. Emails are sent
+ * in SMTP sessions of up to {@code teamcity.invitations.email.sessionSize} messages, at most
+ * {@code teamcity.invitations.email.ratePerMinute} per minute. A recipient rejected by the server with a 5xx response fails at once,
+ * other errors are retried with exponential backoff from {@code teamcity.invitations.email.retryDelaySeconds} up to
+ * {@code teamcity.invitations.email.maxAttempts} attempts. The state of every recipient is kept for
+ * {@code teamcity.invitations.email.statusTtlHours} after it was sent or failed.
+ * <p>
+ * The token lets anyone accept the invitation, so the queue keeps only the project of the invitation and the hash of its token:
+ * the invitation is looked up among the project invitations when the email is sent, and the link is built then.
+ */
+@ThreadSafe
+public class InvitationEmailQueue implements DisposableBean {
+
+    static final String SESSION_SIZE_PROPERTY = "teamcity.invitations.email.sessionSize";
+    static final String RATE_PROPERTY = "teamcity.invitations.email.ratePerMinute";
+    static final String MAX_QUEUED_PROPERTY = "teamcity.invitations.email.maxQueued";
+    static final String MAX_ATTEMPTS_PROPERTY = "teamcity.invitations.email.maxAttempts";
+    static final String RETRY_DELAY_PROPERTY = "teamcity.invitations.email.retryDelaySeconds";
+    static final String STATUS_TTL_PROPERTY = "teamcity.invitations.email.statusTtlHours";
+    static final String TIMEOUT_PROPERTY = "teamcity.invitations.email.timeoutMillis";
+
+    private static final Pattern EMAIL = Pattern.compile("[^@\\s<>,;\"]+@[^@\\s<>,;\"]+\\.[^@\\s<>,;\"]+");
+
+    public enum State {
+        QUEUED, SENT, FAILED
+    }
+
+    @NotNull
+    private final TeamCityCoreFacade core;
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final InvitationsLandingController landingController;
+    @NotNull
+    private final File queueFile;
+    @NotNull
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Invitation emails"));
+    @NotNull
+    private final AtomicBoolean sendScheduled = new AtomicBoolean();
+
+    /**
+     * All recipients with known state in the order they were queued.
+     */
+    @GuardedBy("this")
+    private final Map<String, Recipient> recipients = new LinkedHashMap<>();
+    @GuardedBy("this")
+    private final ArrayDeque<Recipient> queued = new ArrayDeque<>();
+    @GuardedBy("this")
+    private int queueFileLines;
+
+    private long lastSentNanos;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+
+    public InvitationEmailQueue(@NotNull TeamCityCoreFacade core, @NotNull InvitationsStorage invitations,
+                                @NotNull InvitationsLandingController landingController, @NotNull InvitationsMetrics metrics) {
+        this.core = core;
+        this.invitations = invitations;
+        this.landingController = landingController;
+        this.queueFile = new File(core.getPluginDataDirectory(), "invitations/emailQueue.ndjson");
+        load();
+        metrics.registerGauge("emailsQueued", this::getQueuedCount);
+        metrics.registerGauge("emailsSent", sent::sum);
+        metrics.registerGauge("emailsFailed", failed::sum);
+        metrics.registerGauge("emailSessions", sessions::sum);
+        long retryDelay = Math.max(1, TeamCityProperties.getInteger(RETRY_DELAY_PROPERTY, 60));
+        worker.scheduleWithFixedDelay(this::scheduleSending, retryDelay, retryDelay, TimeUnit.SECONDS);
+        scheduleSending();
+    }
+
+    public boolean isConfigured() {
+        return core.getSmtpSettings() != null;
+    }
+
+    /**
+     * Returns true if the address looks like an email address, the SMTP server has the final word.
+     */
+    public static boolean isValidAddress(@NotNull String address) {
+        return EMAIL.matcher(address).matches();
+    }
+
+    /**
+     * Queues emails with the invitation link to the addresses and returns their recipients.
+     *
+     * @param senderName shown in the email as the one who invites
+     * @throws InvitationException if the queue can't take so many emails now
+     */
+    @NotNull
+    public List<Recipient> enqueue(@NotNull Invitation invitation, @NotNull String senderName, @NotNull Collection<String> addresses) {
+        List<Recipient> added = new ArrayList<>(addresses.size());
+        String tokenHash = InvitationsStorage.tokenHash(invitation.getToken());
+        synchronized (this) {
+            int maxQueued = TeamCityProperties.getInteger(MAX_QUEUED_PROPERTY, 20000);
+            if (queued.size() + addresses.size() > maxQueued) {
+                throw new InvitationException("Too many emails are queued, at most " + maxQueued + " can wait for sending");
+            }
+            for (String address : addresses) {
+                Recipient recipient = new Recipient(StringUtil.generateUniqueHash(), invitation.getProject().getProjectId(), tokenHash, address.trim(), senderName);
+                recipients.put(recipient.id, recipient);
+                queued.add(recipient);
+                added.add(recipient);
+            }
+            append(added);
+        }
+        Loggers.ACTIVITIES.info(senderName + " queued " + added.size() + " emails with the invitation " + invitation.describe(false));
+        scheduleSending();
+        return added;
+    }
+
+    /**
+     * Recipients of the emails with the invitation in the order they were queued.
+     */
+    @NotNull
+    public synchronized List<Recipient> getRecipients(@NotNull String token) {
+        String tokenHash = InvitationsStorage.tokenHash(token);
+        List<Recipient> result = new ArrayList<>();
+        for (Recipient recipient : recipients.values()) {
+            if (recipient.tokenHash.equals(tokenHash)) {
+                result.add(recipient);
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getQueuedCount() {
+        return queued.size();
+    }
+
+    private void scheduleSending() {
+        if (sendScheduled.compareAndSet(false, true)) {
+            try {
+                worker.execute(this::sendQueued);
+            } catch (RejectedExecutionException e) {
+                sendScheduled.set(false);
+            }
+        }
+    }
+
+    private void sendQueued() {
+        sendScheduled.set(false);
+        try {
+            List<Recipient> batch;
+            while (!(batch = takeBatch()).isEmpty()) {
+                SmtpSettings settings = core.getSmtpSettings();
+                if (settings == null) {
+                    Loggers.SERVER.warn("Email is not configured, " + getQueuedCount() + " invitation emails wait in the queue");
+                    requeue(batch);
+                    return;
+                }
+                if (!send(settings, batch)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to send invitation emails", e);
+        } finally {
+            compact();
+        }
+    }
+
+    /**
+     * Sends the batch in one session, returns false if the session failed, the unsent recipients are retried later then.
+     */
+    private boolean send(@NotNull SmtpSettings settings, @NotNull List<Recipient> batch) throws InterruptedException {
+        int timeout = TeamCityProperties.getInteger(TIMEOUT_PROPERTY, 30000);
+        int next = 0;
+        Map<String, Invitation> resolved = new HashMap<>();
+        try (SmtpClient smtp = SmtpClient.connect(settings, timeout)) {
+            sessions.increment();
+            for (; next < batch.size(); next++) {
+                Recipient recipient = batch.get(next);
+                Invitation invitation = resolved.computeIfAbsent(recipient.tokenHash, hash -> findInvitation(recipient));
+                if (invitation == null || !invitation.isEnabled()) {
+                    finish(recipient, State.FAILED, "The invitation was removed or disabled");
+                    continue;
+                }
+                try {
+                    awaitRate();
+                } catch (InterruptedException e) {
+                    requeue(batch.subList(next, batch.size()));
+                    throw e;
+                }
+                try {
+                    smtp.send(settings.getFrom(), recipient.address, createMessage(settings, recipient, invitation));
+                    finish(recipient, State.SENT, null);
+                } catch (SmtpClient.SmtpException e) {
+                    if (e.isPermanent()) {
+                        finish(recipient, State.FAILED, e.getMessage());
+                    } else {
+                        retry(recipient, e.getMessage());
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Loggers.SERVER.warn("Failed to send invitation emails through " + settings.getHost() + ":" + settings.getPort() + ": " + e.getMessage());
+            for (int i = next; i < batch.size(); i++) {
+                retry(batch.get(i), e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    @Nullable
+    private Invitation findInvitation(@NotNull Recipient recipient) {
+        return core.runAsSystem(() -> {
+            SProject project = core.findProjectByIntId(recipient.projectId);
+            if (project == null) {
+                return null;
+            }
+            for (Invitation invitation : invitations.getInvitations(project)) {
+                if (recipient.tokenHash.equals(InvitationsStorage.tokenHash(invitation.getToken()))) {
+                    return invitation;
+                }
+            }
+            return null;
+        });
+    }
+
+    private void awaitRate() throws InterruptedException {
+        long interval = TimeUnit.MINUTES.toNanos(1) / Math.max(1, TeamCityProperties.getInteger(RATE_PROPERTY, 60));
+        long wait = lastSentNanos + interval - System.nanoTime();
+        if (lastSentNanos != 0 && wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        lastSentNanos = System.nanoTime();
+    }
+
+    @NotNull
+    private synchronized List<Recipient> takeBatch() {
+        int sessionSize = Math.max(1, TeamCityProperties.getInteger(SESSION_SIZE_PROPERTY, 50));
+        long now = System.currentTimeMillis();
+        List<Recipient> batch = new ArrayList<>();
+        Iterator<Recipient> it = queued.iterator();
+        while (it.hasNext() && batch.size() < sessionSize) {
+            Recipient recipient = it.next();
+            if (recipient.nextAttemptAt <= now) {
+                it.remove();
+                batch.add(recipient);
+            }
+        }
+        return batch;
+    }
+
+    private synchronized void requeue(@NotNull List<Recipient> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            queued.addFirst(batch.get(i));
+        }
+    }
+
+    private synchronized void retry(@NotNull Recipient recipient, @Nullable String error) {
+        recipient.attempts++;
+        if (recipient.attempts >= TeamCityProperties.getInteger(MAX_ATTEMPTS_PROPERTY, 5)) {
+            finish(recipient, State.FAILED, error);
+            return;
+        }
+        long delay = TimeUnit.SECONDS.toMillis(Math.max(1, TeamCityProperties.getInteger(RETRY_DELAY_PROPERTY, 60))) << Math.min(recipient.attempts - 1, 20);
+        recipient.nextAttemptAt = System.currentTimeMillis() + delay;
+        recipient.error = error;
+        recipient.updatedAt = System.currentTimeMillis();
+        queued.add(recipient);
+        append(Collections.singletonList(recipient));
+    }
+
+    private synchronized void finish(@NotNull Recipient recipient, @NotNull State state, @Nullable String error) {
+        recipient.state = state;
+        recipient.error = error;
+        recipient.updatedAt = System.currentTimeMillis();
+        (state == State.SENT ? sent : failed).increment();
+        append(Collections.singletonList(recipient));
+    }
+
+    @NotNull
+    private String createMessage(@NotNull SmtpSettings settings, @NotNull Recipient recipient, @NotNull Invitation invitation) {
+        String link = landingController.getInvitationsPath() + "?token=" + invitation.getToken();
+        String body = recipient.senderName + " invited you to the TeamCity project " + invitation.getProject().getFullName() + ".\n\n" +
+                invitation.getName() + "\n\n" +
+                "Follow the link to accept the invitation:\n" + link + "\n";
+        return "Date: " + DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now()) + "\r\n" +
+                "From: " + settings.getFrom() + "\r\n" +
+                "To: " + recipient.address + "\r\n" +
+                "Subject: " + encodeHeader("Invitation to " + invitation.getProject().getFullName()) + "\r\n" +
+                "Message-ID: <" + recipient.id + "." + recipient.attempts + "@invitations.teamcity>\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n" +
+                "Content-Transfer-Encoding: base64\r\n" +
+                "\r\n" +
+                Base64.getMimeEncoder().encodeToString(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static String encodeHeader(@NotNull String value) {
+        return "=?UTF-8?B?" + Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)) + "?=";
+    }
+
+    /**
+     * The queue file is a log: every change of a recipient appends its record and the last record of a recipient wins.
+     */
+    @GuardedBy("this")
+    private void append(@NotNull List<Recipient> changed) {
+        try {
+            Files.createDirectories(queueFile.getParentFile().toPath());
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(queueFile, true), StandardCharsets.UTF_8))) {
+                for (Recipient recipient : changed) {
+                    recipient.writeJson(out);
+                    out.write('\n');
+                }
+            }
+            queueFileLines += changed.size();
+        } catch (IOException e) {
+            Loggers.SERVER.warn("Failed to write the invitation email queue " + queueFile + ", the queued emails will be lost on restart", e);
+        }
+    }
+
+    private synchronized void load() {
+        if (!queueFile.isFile()) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(queueFile.toPath(), StandardCharsets.UTF_8)) {
+                try {
+                    Recipient recipient = Recipient.fromJson(JsonReader.parseFlatObject(line));
+                    recipients.put(recipient.id, recipient);//keeps the position of the first record
+                } catch (RuntimeException e) {
+                    //a line cut by a crash while appending, or a record of an older version with the token, dropped on compaction
+                }
+            }
+        } catch (IOException e) {
+            Loggers.SERVER.warn("Failed to read the invitation email queue " + queueFile, e);
+            return;
+        }
+        for (Recipient recipient : recipients.values()) {
+            if (recipient.state == State.QUEUED) {
+                queued.add(recipient);
+            }
+        }
+        queueFileLines = Integer.MAX_VALUE;//rewrite without the replaced records
+        compact();
+    }
+
+    /**
+     * Drops expired recipients and rewrites the queue file when it has many replaced records.
+     */
+    private synchronized void compact() {
+        long ttl = TimeUnit.HOURS.toMillis(TeamCityProperties.getInteger(STATUS_TTL_PROPERTY, 72));
+        long now = System.currentTimeMillis();
+        recipients.values().removeIf(r -> r.state != State.QUEUED && now - r.updatedAt > ttl);
+        if (queueFileLines <= 2 * recipients.size() + 100) {
+            return;
+        }
+        try {
+            if (recipients.isEmpty()) {
+                Files.deleteIfExists(queueFile.toPath());
+            } else {
+                Files.createDirectories(queueFile.getParentFile().toPath());
+                File tmp = new File(queueFile.getParentFile(), queueFile.getName() + ".tmp");
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                    for (Recipient recipient : recipients.values()) {
+                        recipient.writeJson(out);
+                        out.write('\n');
+                    }
+                }
+                Files.move(tmp.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            queueFileLines = recipients.size();
+        } catch (IOException e) {
+            Loggers.SERVER.warn("Failed to rewrite the invitation email queue " + queueFile, e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        worker.shutdownNow();
+    }
+
+    public static final class Recipient {
+        @NotNull
+        private final String id;
+        @NotNull
+        private final String projectId;
+        @NotNull
+        private final String tokenHash;
+        @NotNull
+        private final String address;
+        @NotNull
+        private final String senderName;
+        @NotNull
+        private volatile State state = State.QUEUED;
+        @Nullable
+        private volatile String error;
+        private volatile int attempts;
+        private volatile long nextAttemptAt;
+        private volatile long updatedAt = System.currentTimeMillis();
+
+        private Recipient(@NotNull String id, @NotNull String projectId, @NotNull String tokenHash, @NotNull String address, @NotNull String senderName) {
+            this.id = id;
+            this.projectId = projectId;
+            this.tokenHash = tokenHash;
+            this.address = address;
+            this.senderName = senderName;
+        }
+
+        @NotNull
+        public String getAddress() {
+            return address;
+        }
+
+        @NotNull
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * The last error, for queued recipients the error of the failed attempt.
+         */
+        @Nullable
+        public String getError() {
+            return error;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Time of the last state change in milliseconds.
+         */
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        private void writeJson(@NotNull Writer out) throws IOException {
+            new JsonWriter(out).beginObject()
+                    .property("id", id)
+                    .property("projectId", projectId)
+                    .property("tokenHash", tokenHash)
+                    .property("address", address)
+                    .property("sender", senderName)
+                    .property("state", state.name())
+                    .property("error", error)
+                    .property("attempts", String.valueOf(attempts))
+                    .property("nextAttemptAt", String.valueOf(nextAttemptAt))
+                    .property("updatedAt", String.valueOf(updatedAt))
+                    .endObject();
+        }
+
+        @NotNull
+        private static Recipient fromJson(@NotNull Map<String, String> json) {
+            String id = json.get("id");
+            String projectId = json.get("projectId");
+            String tokenHash = json.get("tokenHash");
+            String address = json.get("address");
+            if (id == null || projectId == null || tokenHash == null || address == null) {
+                throw new IllegalArgumentException("Incomplete recipient record");
+            }
+            Recipient recipient = new Recipient(id, projectId, tokenHash, address, String.valueOf(json.get("sender")));
+            recipient.state = State.valueOf(json.get("state"));
+            recipient.error = json.get("error");
+            recipient.attempts = Integer.parseInt(json.get("attempts"));
+            recipient.nextAttemptAt = Long.parseLong(json.get("nextAttemptAt"));
+            recipient.updatedAt = Long.parseLong(json.get("updatedAt"));
+            return recipient;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.SProject;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Something that happened to an invitation, delivered to listeners subscribed with {@link InvitationEventBus}.
+ * <p>
+ * Events are snapshots: they don't reference {@link Invitation} objects, which are re-created on every change of the project,
+ * use {@link InvitationsFacadeApi#findInvitation(String)} to get the current state of the invitation.
+ */
+public final class InvitationEvent {
+
+    public enum Type {
+        CREATED, UPDATED, ENABLED, DISABLED, VIEWED, ACCEPTED, REMOVED
+    }
+
+    @NotNull
+    private final Type type;
+    @NotNull
+    private final String token;
+    @NotNull
+    private final String name;
+    @NotNull
+    private final String invitationTypeId;
+    @NotNull
+    private final String projectExternalId;
+    @NotNull
+    private final List<String> projectPath;
+    @Nullable
+    private final Long userId;
+    private final long timestamp = System.currentTimeMillis();
+
+    InvitationEvent(@NotNull Type type, @NotNull Invitation invitation, @Nullable Long userId) {
+        this.type = type;
+        this.token = invitation.getToken();
+        this.name = invitation.getName();
+        this.invitationTypeId = invitation.getType().getId();
+        this.projectExternalId = invitation.getProject().getExternalId();
+        List<SProject> path = invitation.getProject().getProjectPath();
+        List<String> pathIds = new ArrayList<>(path.size());
+        path.forEach(p -> pathIds.add(p.getProjectId()));
+        this.projectPath = Collections.unmodifiableList(pathIds);
+        this.userId = userId;
+    }
+
+    @NotNull
+    public Type getType() {
+        return type;
+    }
+
+    @NotNull
+    public String getToken() {
+        return token;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    @NotNull
+    public String getInvitationTypeId() {
+        return invitationTypeId;
+    }
+
+    @NotNull
+    public String getProjectExternalId() {
+        return projectExternalId;
+    }
+
+    /**
+     * Internal ids of the project of the invitation and its ancestors starting from the root project.
+     */
+    @NotNull
+    public List<String> getProjectPath() {
+        return projectPath;
+    }
+
+    /**
+     * Id of the user who viewed or accepted the invitation, null for other events.
+     */
+    @Nullable
+    public Long getUserId() {
+        return userId;
+    }
+
+    /**
+     * Time of the event in milliseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + token + " in " + projectExternalId;
+    }
+}
@@ -0,0 +1,198 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes invitation lifecycle events to listeners of other plugins.
+ * <p>
+ * Publishing only puts the event into a ring buffer of {@code teamcity.invitations.events.bufferSize} events, so storage
+ * mutations and acceptance requests are never blocked by listeners. Every subscription reads the buffer at its own pace on
+ * one of {@code teamcity.invitations.events.threads} delivery threads: it reads up to {@code teamcity.invitations.events.batchSize}
+ * events, passes the matching ones to the listener and, if there is more to read, schedules itself again behind the other
+ * subscriptions, so a busy listener doesn't hold a delivery thread. A subscription which falls behind by more than the buffer
+ * size loses the oldest events, they are counted in {@link Subscription#getDroppedCount()}.
+ */
+@ThreadSafe
+public class InvitationEventBus implements DisposableBean {
+
+    static final String BUFFER_SIZE_PROPERTY = "teamcity.invitations.events.bufferSize";
+    static final String THREADS_PROPERTY = "teamcity.invitations.events.threads";
+    static final String BATCH_SIZE_PROPERTY = "teamcity.invitations.events.batchSize";
+
+    @GuardedBy("this")
+    private final InvitationEvent[] ring;
+
+    /**
+     * Sequence number of the next published event.
+     */
+    @GuardedBy("this")
+    private long published;
+
+    @NotNull
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    @NotNull
+    private final ExecutorService delivery;
+    @NotNull
+    private final AtomicLong dropped = new AtomicLong();
+
+    public InvitationEventBus(@NotNull InvitationsMetrics metrics) {
+        ring = new InvitationEvent[Math.max(1, TeamCityProperties.getInteger(BUFFER_SIZE_PROPERTY, 8192))];
+        int threads = Math.max(1, TeamCityProperties.getInteger(THREADS_PROPERTY, 2));
+        delivery = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Invitation events delivery"));
+        metrics.registerGauge("eventsPublished", this::getPublishedCount);
+        metrics.registerGauge("eventsDropped", dropped::get);
+    }
+
+    /**
+     * Subscribes the listener to the events of the given types in the project and its subprojects.
+     *
+     * @param subtree project to receive events of together with its subprojects, null for all projects
+     * @param types   types of events to receive, empty for all types
+     */
+    @NotNull
+    public Subscription subscribe(@NotNull InvitationEventListener listener, @Nullable SProject subtree, @NotNull Set<InvitationEvent.Type> types) {
+        Subscription subscription = new Subscription(listener, subtree != null ? subtree.getProjectId() : null,
+                types.isEmpty() ? EnumSet.allOf(InvitationEvent.Type.class) : EnumSet.copyOf(types), getPublishedCount());
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    void publish(@NotNull InvitationEvent.Type type, @NotNull Invitation invitation, @Nullable Long userId) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        InvitationEvent event = new InvitationEvent(type, invitation, userId);
+        synchronized (this) {
+            ring[(int) (published % ring.length)] = event;
+            published++;
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    public synchronized long getPublishedCount() {
+        return published;
+    }
+
+    /**
+     * Moves the cursor of the subscription over at most {@code maxEvents} events and returns them, skipping the events
+     * which were already overwritten.
+     */
+    @NotNull
+    private synchronized List<InvitationEvent> read(@NotNull Subscription subscription, int maxEvents) {
+        long oldest = Math.max(0, published - ring.length);
+        if (subscription.cursor < oldest) {
+            long lost = oldest - subscription.cursor;
+            subscription.dropped.addAndGet(lost);
+            dropped.addAndGet(lost);
+            subscription.cursor = oldest;
+        }
+        int count = (int) Math.min(maxEvents, published - subscription.cursor);
+        List<InvitationEvent> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(ring[(int) ((subscription.cursor + i) % ring.length)]);
+        }
+        subscription.cursor += count;
+        return result;
+    }
+
+    @Override
+    public void destroy() {
+        subscriptions.clear();
+        delivery.shutdownNow();
+    }
+
+    public final class Subscription {
+        @NotNull
+        private final InvitationEventListener listener;
+        @Nullable
+        private final String subtreeProjectId;
+        @NotNull
+        private final EnumSet<InvitationEvent.Type> types;
+        @NotNull
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        @NotNull
+        private final AtomicLong dropped = new AtomicLong();
+        @GuardedBy("InvitationEventBus.this")
+        private long cursor;
+
+        private Subscription(@NotNull InvitationEventListener listener, @Nullable String subtreeProjectId,
+                             @NotNull EnumSet<InvitationEvent.Type> types, long cursor) {
+            this.listener = listener;
+            this.subtreeProjectId = subtreeProjectId;
+            this.types = types;
+            this.cursor = cursor;
+        }
+
+        private void signal() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    delivery.execute(this::deliver);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        /**
+         * Delivers one batch and gives the thread back, the rest is delivered by the next scheduled call.
+         */
+        private void deliver() {
+            if (!subscriptions.contains(this)) {
+                scheduled.set(false);
+                return;
+            }
+            List<InvitationEvent> batch = read(this, Math.max(1, TeamCityProperties.getInteger(BATCH_SIZE_PROPERTY, 100)));
+            batch.removeIf(event -> !matches(event));
+            if (!batch.isEmpty()) {
+                try {
+                    listener.invitationEvents(Collections.unmodifiableList(batch));
+                } catch (Throwable e) {
+                    Loggers.SERVER.warn("Invitation events listener " + listener + " failed", e);
+                }
+            }
+            scheduled.set(false);
+            if (hasPending()) {
+                signal();//also covers events published after the read but before the flag was cleared
+            }
+        }
+
+        private boolean hasPending() {
+            synchronized (InvitationEventBus.this) {
+                return cursor < published;
+            }
+        }
+
+        private boolean matches(@NotNull InvitationEvent event) {
+            return types.contains(event.getType()) && (subtreeProjectId == null || event.getProjectPath().contains(subtreeProjectId));
+        }
+
+        public void unsubscribe() {
+            subscriptions.remove(this);
+        }
+
+        /**
+         * Number of events this subscription lost because it fell behind by more than the buffer size.
+         */
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+    }
+}
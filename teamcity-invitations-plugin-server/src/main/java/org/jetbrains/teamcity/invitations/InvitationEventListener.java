@@ -0,0 +1,14 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Receives invitation events subscribed with {@link InvitationEventBus}. Called from a delivery thread of the bus, never
+ * concurrently for the same subscription, with the events in the order they were published.
+ */
+public interface InvitationEventListener {
+
+    void invitationEvents(@NotNull List<InvitationEvent> events);
+}
@@ -0,0 +1,124 @@
+package org.jetbrains.teamcity.invitations;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * JFR event definitions, loaded only through {@link InvitationFlightRecorder} when the JVM supports flight recording.
+ */
+final class InvitationFlightEvents {
+
+    private static final EventType REBUILD = EventType.getEventType(RebuildEvent.class);
+    private static final EventType LOOKUP_MISS = EventType.getEventType(LookupMissEvent.class);
+    private static final EventType PERSIST = EventType.getEventType(PersistEvent.class);
+    private static final EventType LANDING = EventType.getEventType(LandingEvent.class);
+    private static final EventType PROCEED = EventType.getEventType(ProceedEvent.class);
+    private static final EventType ACCEPT = EventType.getEventType(AcceptEvent.class);
+
+    private InvitationFlightEvents() {
+    }
+
+    static boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    @Nullable
+    static InvitationFlightEvent begin(@NotNull InvitationFlightRecorder.Kind kind) {
+        InvitationFlightEvent event;
+        switch (kind) {
+            case REBUILD:
+                event = REBUILD.isEnabled() ? new RebuildEvent() : null;
+                break;
+            case LOOKUP_MISS:
+                event = LOOKUP_MISS.isEnabled() ? new LookupMissEvent() : null;
+                break;
+            case PERSIST:
+                event = PERSIST.isEnabled() ? new PersistEvent() : null;
+                break;
+            case LANDING:
+                event = LANDING.isEnabled() ? new LandingEvent() : null;
+                break;
+            case PROCEED:
+                event = PROCEED.isEnabled() ? new ProceedEvent() : null;
+                break;
+            case ACCEPT:
+                event = ACCEPT.isEnabled() ? new AcceptEvent() : null;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event kind " + kind);
+        }
+        if (event != null) {
+            event.begin();
+        }
+        return event;
+    }
+
+    static void commit(@NotNull Object started, @Nullable String projectId, @Nullable String invitationType, int entries) {
+        InvitationFlightEvent event = (InvitationFlightEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.projectId = projectId;
+            event.invitationType = invitationType;
+            if (event instanceof RebuildEvent) {
+                ((RebuildEvent) event).entries = entries;
+            }
+            event.commit();
+        }
+    }
+
+    @Category({"TeamCity", "Invitations"})
+    @StackTrace(false)
+    abstract static class InvitationFlightEvent extends Event {
+        @Label("Project ID")
+        String projectId;
+
+        @Label("Invitation Type")
+        String invitationType;
+    }
+
+    @Name("org.jetbrains.teamcity.invitations.Rebuild")
+    @Label("Invitations Cache Rebuild")
+    @Description("Rebuild of the invitation token cache from the project features")
+    static final class RebuildEvent extends InvitationFlightEvent {
+        @Label("Entries")
+        int entries;
+    }
+
+    @Name("org.jetbrains.teamcity.invitations.LookupMiss")
+    @Label("Invitation Lookup Miss")
+    @Description("Lookup of an invitation token that doesn't exist")
+    static final class LookupMissEvent extends InvitationFlightEvent {
+    }
+
+    @Name("org.jetbrains.teamcity.invitations.Persist")
+    @Label("Invitations Persist")
+    @Description("Persisting project settings after an invitation change")
+    static final class PersistEvent extends InvitationFlightEvent {
+    }
+
+    @Name("org.jetbrains.teamcity.invitations.Landing")
+    @Label("Invitation Landing")
+    @Description("Handling of the invitation landing page request")
+    static final class LandingEvent extends InvitationFlightEvent {
+    }
+
+    @Name("org.jetbrains.teamcity.invitations.Proceed")
+    @Label("Invitation Proceed")
+    @Description("Handling of the request accepting an invitation")
+    static final class ProceedEvent extends InvitationFlightEvent {
+    }
+
+    @Name("org.jetbrains.teamcity.invitations.Accept")
+    @Label("Invitation Accepted")
+    @Description("Invitation type specific acceptance work: role and group assignment, project creation workflow setup")
+    static final class AcceptEvent extends InvitationFlightEvent {
+    }
+}
@@ -0,0 +1,56 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emits Java Flight Recorder events for the invitation hot paths.
+ * <p>
+ * JFR classes are touched only when the running JVM provides them, so the plugin still works on JVMs without {@code jdk.jfr}.
+ * {@link #begin(Kind)} returns {@code null} unless the corresponding event is enabled in an active recording,
+ * so nothing is allocated while recording is off.
+ */
+final class InvitationFlightRecorder {
+
+    enum Kind {
+        REBUILD, LOOKUP_MISS, PERSIST, LANDING, PROCEED, ACCEPT
+    }
+
+    private static final boolean AVAILABLE = isJfrAvailable();
+
+    private InvitationFlightRecorder() {
+    }
+
+    /**
+     * Starts timing an event of the given kind, returns {@code null} when the event is not recorded.
+     */
+    @Nullable
+    static Object begin(@NotNull Kind kind) {
+        return AVAILABLE ? InvitationFlightEvents.begin(kind) : null;
+    }
+
+    static void commit(@Nullable Object event, @Nullable SProject project, @Nullable InvitationType invitationType) {
+        if (event != null) {
+            InvitationFlightEvents.commit(event, project != null ? project.getProjectId() : null,
+                    invitationType != null ? invitationType.getId() : null, -1);
+        }
+    }
+
+    static void commitRebuild(@Nullable Object event, int entries) {
+        if (event != null) {
+            InvitationFlightEvents.commit(event, null, null, entries);
+        }
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return InvitationFlightEvents.isAvailable();
+        } catch (ClassNotFoundException | LinkageError e) {
+            Loggers.SERVER.debug("Java Flight Recorder is not available, invitation events won't be recorded");
+            return false;
+        }
+    }
+}
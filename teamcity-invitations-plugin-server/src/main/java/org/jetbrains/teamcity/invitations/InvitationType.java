@@ -30,6 +30,12 @@ public interface InvitationType<T extends Invitation> {
 
     void validate(@NotNull HttpServletRequest request, @NotNull SProject project, @NotNull ActionErrors actionErrors);
 
+    /**
+     * Validates the invitation read with {@link #readFrom} like {@link #validate(HttpServletRequest, SProject, ActionErrors)}
+     * validates the create dialog, on behalf of the user.
+     */
+    void validate(@NotNull T invitation, @NotNull AuthorityHolder user, @NotNull ActionErrors actionErrors);
+
     @NotNull
     T createNewInvitation(@NotNull HttpServletRequest request, @NotNull SProject project, @NotNull String token);
 
@@ -0,0 +1,206 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.function.Predicate;
+
+/**
+ * Lists invitations of all projects the user can see invitations in, as JSON.
+ * <p>
+ * Invitations are returned in token order, a page at a time: the response ends with {@code nextCursor} which is passed as
+ * the {@code cursor} parameter to get the next page, it is null when all invitations were scanned. Filters: {@code project}
+ * (external id, the project and its subprojects), {@code type}, {@code createdBy} (user id), {@code role}, {@code group},
+ * {@code enabled} and {@code valid}. Invitations are written as they are read from the index, so the size of the page
+ * doesn't affect memory.
+ * <p>
+ * A page scans at most {@code teamcity.invitations.api.maxScannedPerPage} invitations, so a filter matching few of them
+ * doesn't read the whole index on every call: the page may then hold fewer invitations than the limit, or none, and the
+ * cursor points at where the scan stopped.
+ */
+public class InvitationsApiController extends BaseController {
+    static final String PATH = "/admin/invitationsApi.html";
+    static final String PAGE_SIZE_PROPERTY = "teamcity.invitations.api.pageSize";
+    static final String MAX_PAGE_SIZE_PROPERTY = "teamcity.invitations.api.maxPageSize";
+    static final String MAX_SCANNED_PROPERTY = "teamcity.invitations.api.maxScannedPerPage";
+
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final TeamCityCoreFacade core;
+    @NotNull
+    private final InvitationsLandingController invitationsController;
+
+    public InvitationsApiController(@NotNull WebControllerManager webControllerManager,
+                                    @NotNull InvitationsStorage invitations,
+                                    @NotNull TeamCityCoreFacade core,
+                                    @NotNull InvitationsLandingController invitationsController) {
+        this.invitations = invitations;
+        this.core = core;
+        this.invitationsController = invitationsController;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Authentication required");
+            return null;
+        }
+
+        Predicate<Invitation> filter;
+        String cursor;
+        int limit;
+        try {
+            filter = createFilter(request);
+            cursor = decodeCursor(request.getParameter("cursor"));
+            limit = getLimit(request);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+        int maxScanned = Math.max(limit, TeamCityProperties.getInteger(MAX_SCANNED_PROPERTY, 10000));
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JsonWriter json = new JsonWriter(response.getWriter());
+        json.beginObject();
+        json.name("invitations").beginArray();
+        String lastScanned = null;
+        boolean stopped = false;
+        int scanned = 0;
+        int written = 0;
+        for (Invitation invitation : invitations.getInvitationsAfter(cursor)) {
+            if (written == limit || scanned == maxScanned) {
+                stopped = true;
+                break;
+            }
+            scanned++;
+            lastScanned = invitation.getToken();
+            if (!filter.test(invitation) || !invitation.isAvailableFor(user)) {
+                continue;
+            }
+            write(json, invitation);
+            written++;
+        }
+        json.endArray();
+        json.property("count", written);
+        json.property("nextCursor", stopped && lastScanned != null ? encodeCursor(lastScanned) : null);
+        json.endObject();
+        json.flush();
+        return null;
+    }
+
+    @NotNull
+    private Predicate<Invitation> createFilter(@NotNull HttpServletRequest request) {
+        Predicate<Invitation> filter = invitation -> true;
+
+        String projectExtId = request.getParameter("project");
+        if (!StringUtil.isEmptyOrSpaces(projectExtId)) {
+            SProject project = core.findProjectByExtId(projectExtId);
+            if (project == null) {
+                throw new IllegalArgumentException("Project '" + projectExtId + "' not found");
+            }
+            String projectId = project.getProjectId();
+            filter = filter.and(invitation -> invitation.getProject().getProjectPath().stream().anyMatch(p -> projectId.equals(p.getProjectId())));
+        }
+
+        String type = request.getParameter("type");
+        if (!StringUtil.isEmptyOrSpaces(type)) {
+            filter = filter.and(invitation -> type.equals(invitation.getType().getId()));
+        }
+
+        String createdBy = request.getParameter("createdBy");
+        if (!StringUtil.isEmptyOrSpaces(createdBy)) {
+            long userId = parseLong("createdBy", createdBy);
+            filter = filter.and(invitation -> invitation.getCreatedByUserId() == userId);
+        }
+
+        String role = request.getParameter("role");
+        if (!StringUtil.isEmptyOrSpaces(role)) {
+            filter = filter.and(invitation -> role.equals(invitation.getRoleId()));
+        }
+
+        String group = request.getParameter("group");
+        if (!StringUtil.isEmptyOrSpaces(group)) {
+            filter = filter.and(invitation -> group.equals(invitation.getGroupKey()));
+        }
+
+        String enabled = request.getParameter("enabled");
+        if (!StringUtil.isEmptyOrSpaces(enabled)) {
+            boolean value = Boolean.parseBoolean(enabled);
+            filter = filter.and(invitation -> invitation.isEnabled() == value);
+        }
+
+        String valid = request.getParameter("valid");
+        if (!StringUtil.isEmptyOrSpaces(valid)) {
+            boolean value = Boolean.parseBoolean(valid);
+            filter = filter.and(invitation -> (invitations.getValidationError(invitation) == null) == value);
+        }
+        return filter;
+    }
+
+    private void write(@NotNull JsonWriter json, @NotNull Invitation invitation) throws IOException {
+        json.beginObject()
+                .property("token", invitation.getToken())
+                .property("url", invitationsController.getInvitationsPath() + "?token=" + invitation.getToken())
+                .property("type", invitation.getType().getId())
+                .property("name", invitation.getName())
+                .property("project", invitation.getProject().getExternalId())
+                .property("enabled", invitation.isEnabled())
+                .property("reusable", invitation.isReusable())
+                .property("createdBy", invitation.getCreatedByUserId())
+                .property("createdAt", invitation.getCreatedAt())
+                .property("role", invitation.getRoleId())
+                .property("group", invitation.getGroupKey())
+                .property("validationError", invitations.getValidationError(invitation))
+                .endObject();
+    }
+
+    private static int getLimit(@NotNull HttpServletRequest request) {
+        int pageSize = TeamCityProperties.getInteger(PAGE_SIZE_PROPERTY, 100);
+        String limit = request.getParameter("limit");
+        int requested = StringUtil.isEmptyOrSpaces(limit) ? pageSize : (int) Math.min(parseLong("limit", limit), Integer.MAX_VALUE);
+        return Math.max(1, Math.min(requested, TeamCityProperties.getInteger(MAX_PAGE_SIZE_PROPERTY, 1000)));
+    }
+
+    private static long parseLong(@NotNull String name, @NotNull String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter '" + name + "' must be a number: " + value);
+        }
+    }
+
+    @NotNull
+    private static String encodeCursor(@NotNull String token) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Nullable
+    private static String decodeCursor(@Nullable String cursor) {
+        if (StringUtil.isEmptyOrSpaces(cursor)) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.Role;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Creates invitations in a project from CSV posted as the request body (or the {@code csv} parameter), one invitation per record:
+ * <pre>name,type,role or group,welcome text,single|multi</pre>
+ * The type is {@code join} or {@code create} (or the id of the invitation type), a header record starting with {@code name} is skipped.
+ * <p>
+ * Roles and groups the user can give in the project are looked up once for all records. If any record is invalid nothing is
+ * created and the errors are returned with status 400. Otherwise all invitations are added with one persist and the response is a CSV
+ * file with the links of the created invitations.
+ */
+public class InvitationsBulkCreateController extends BaseController {
+    static final String PATH = "/admin/invitationsBulkCreate.html";
+    static final String MAX_ROWS_PROPERTY = "teamcity.invitations.bulk.maxRows";
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final TeamCityCoreFacade core;
+    @NotNull
+    private final RolesAndGroupsCache rolesAndGroups;
+    @NotNull
+    private final InvitationsLandingController invitationsController;
+    @NotNull
+    private final JoinProjectInvitationType joinProjectInvitationType;
+    @NotNull
+    private final CreateNewProjectInvitationType createNewProjectInvitationType;
+
+    public InvitationsBulkCreateController(@NotNull WebControllerManager webControllerManager,
+                                           @NotNull InvitationsStorage invitations,
+                                           @NotNull TeamCityCoreFacade core,
+                                           @NotNull RolesAndGroupsCache rolesAndGroups,
+                                           @NotNull InvitationsLandingController invitationsController,
+                                           @NotNull JoinProjectInvitationType joinProjectInvitationType,
+                                           @NotNull CreateNewProjectInvitationType createNewProjectInvitationType) {
+        this.invitations = invitations;
+        this.core = core;
+        this.rolesAndGroups = rolesAndGroups;
+        this.invitationsController = invitationsController;
+        this.joinProjectInvitationType = joinProjectInvitationType;
+        this.createNewProjectInvitationType = createNewProjectInvitationType;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Authentication required");
+            return null;
+        }
+        if (!"POST".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "CSV must be posted");
+            return null;
+        }
+        SProject project = core.findProjectByExtId(request.getParameter("projectId"));
+        if (project == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Project '" + request.getParameter("projectId") + "' not found");
+            return null;
+        }
+
+        Catalog catalog = new Catalog(user, project);
+        List<Invitation> created = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        int maxRows = TeamCityProperties.getInteger(MAX_ROWS_PROPERTY, 5000);
+
+        String csv = request.getParameter("csv");
+        BufferedReader reader = csv != null ? new BufferedReader(new StringReader(csv)) : request.getReader();
+        int recordNumber = 0;
+        List<String> record;
+        try {
+            while ((record = Csv.readRecord(reader)) != null) {
+                recordNumber++;
+                if (record.size() == 1 && record.get(0).trim().isEmpty() || recordNumber == 1 && "name".equalsIgnoreCase(record.get(0).trim())) {
+                    continue;
+                }
+                if (created.size() + errors.size() >= maxRows) {
+                    errors.add("Too many rows, at most " + maxRows + " invitations can be created at once");
+                    break;
+                }
+                try {
+                    created.add(createInvitation(record, catalog, user, project));
+                } catch (IllegalArgumentException e) {
+                    if (errors.size() < MAX_REPORTED_ERRORS) {
+                        errors.add("Row " + recordNumber + ": " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            errors.add("Row " + (recordNumber + 1) + ": " + e.getMessage());
+        }
+
+        if (!errors.isEmpty() || created.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.setContentType("text/plain");
+            response.setCharacterEncoding("UTF-8");
+            Writer out = response.getWriter();
+            out.write(errors.isEmpty() ? "No invitations found" : String.join("\n", errors));
+            out.flush();
+            return null;
+        }
+
+        invitations.addInvitations(project, created);
+        Loggers.ACTIVITIES.info("User " + user.describe(false) + " created " + created.size() + " invitations in the project " + project.describe(false) + " from CSV");
+
+        response.setContentType("text/csv");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=invitations-" + project.getExternalId() + ".csv");
+        Writer out = response.getWriter();
+        Csv.writeRecord(out, "name", "type", "role", "group", "multi", "link");
+        for (Invitation invitation : created) {
+            Csv.writeRecord(out, invitation.getName(), invitation.getType().getId(), StringUtil.emptyIfNull(invitation.getRoleId()),
+                    StringUtil.emptyIfNull(invitation.getGroupKey()), invitation.isReusable() ? "multi" : "single",
+                    invitationsController.getInvitationsPath() + "?token=" + invitation.getToken());
+        }
+        out.flush();
+        return null;
+    }
+
+    @NotNull
+    private Invitation createInvitation(@NotNull List<String> record, @NotNull Catalog catalog, @NotNull SUser user, @NotNull SProject project) {
+        if (record.size() < 5) {
+            throw new IllegalArgumentException("Expected 5 values: name, type, role or group, welcome text, single or multi");
+        }
+        String name = record.get(0).trim();
+        String type = record.get(1).trim();
+        String roleOrGroup = record.get(2).trim();
+        String welcomeText = record.get(3).trim();
+        boolean multiuser = parseMultiuser(record.get(4).trim());
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Name must not be empty");
+        }
+        if (welcomeText.isEmpty()) {
+            throw new IllegalArgumentException("Welcome text must not be empty");
+        }
+        if (roleOrGroup.isEmpty()) {
+            throw new IllegalArgumentException("Role or group must be specified");
+        }
+
+        String token = StringUtil.generateUniqueHash();
+        if ("join".equalsIgnoreCase(type) || joinProjectInvitationType.getId().equals(type)) {
+            Role role = catalog.roles.get(roleOrGroup);
+            SUserGroup group = role == null ? catalog.groups.get(roleOrGroup) : null;
+            if (role == null && group == null) {
+                throw new IllegalArgumentException("Role or group '" + roleOrGroup + "' doesn't exist or you can't give it in the project");
+            }
+            return joinProjectInvitationType.createNewInvitation(user, name, token, project, role != null ? role.getId() : null,
+                    group != null ? group.getKey() : null, multiuser, welcomeText);
+        }
+        if ("create".equalsIgnoreCase(type) || createNewProjectInvitationType.getId().equals(type)) {
+            if (!catalog.canCreateSubprojects) {
+                throw new IllegalArgumentException("You don't have permissions to create subprojects of the project");
+            }
+            Role role = catalog.roles.get(roleOrGroup);
+            if (role == null || !role.getPermissions().contains(Permission.EDIT_PROJECT)) {
+                throw new IllegalArgumentException("Role '" + roleOrGroup + "' doesn't exist or can't be given in created projects");
+            }
+            return createNewProjectInvitationType.createNewInvitation(user, name, token, project, role.getId(), multiuser, welcomeText);
+        }
+        throw new IllegalArgumentException("Unknown invitation type '" + type + "', expected 'join' or 'create'");
+    }
+
+    private static boolean parseMultiuser(@NotNull String value) {
+        if ("multi".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("single".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value) || value.isEmpty()) {
+            return false;
+        }
+        throw new IllegalArgumentException("Expected 'single' or 'multi' but was '" + value + "'");
+    }
+
+    /**
+     * Roles and groups the user can give in the project, looked up once per upload.
+     */
+    private final class Catalog {
+        private final Map<String, Role> roles = new HashMap<>();
+        private final Map<String, SUserGroup> groups = new HashMap<>();
+        private final boolean canCreateSubprojects;
+
+        private Catalog(@NotNull SUser user, @NotNull SProject project) {
+            rolesAndGroups.getAssignableRoles(user, project).forEach(role -> roles.put(role.getId(), role));
+            rolesAndGroups.getAssignableGroups(user, project).forEach(group -> groups.put(group.getKey(), group));
+            canCreateSubprojects = createNewProjectInvitationType.isAvailableFor(user, project);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds invitations created by deleted users or giving deleted roles or groups and disables or removes them.
+ * <p>
+ * Candidates are found through the secondary indexes of {@link InvitationsStorage}: only the distinct creators, roles and groups
+ * are looked up. Invitations are changed per project with one persist each. Runs every
+ * {@code teamcity.invitations.cleanup.intervalHours} with the {@code teamcity.invitations.cleanup.action} action, if the interval is set,
+ * and on demand from {@link InvitationsCleanupController}.
+ */
+@ThreadSafe
+public class InvitationsCleanup implements DisposableBean {
+
+    static final String INTERVAL_PROPERTY = "teamcity.invitations.cleanup.intervalHours";
+    static final String ACTION_PROPERTY = "teamcity.invitations.cleanup.action";
+
+    public enum Action {
+        DISABLE, REMOVE
+    }
+
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final TeamCityCoreFacade core;
+    @NotNull
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Invitations cleanup"));
+
+    public InvitationsCleanup(@NotNull InvitationsStorage invitations, @NotNull TeamCityCoreFacade core) {
+        this.invitations = invitations;
+        this.core = core;
+        int interval = TeamCityProperties.getInteger(INTERVAL_PROPERTY, 0);
+        if (interval > 0) {
+            executor.scheduleWithFixedDelay(this::scheduledCleanup, interval, interval, TimeUnit.HOURS);
+        }
+    }
+
+    @NotNull
+    public static Action getConfiguredAction() {
+        return Action.valueOf(TeamCityProperties.getProperty(ACTION_PROPERTY, Action.DISABLE.name()).trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Finds the invitations referencing deleted users, roles or groups and, unless {@code dryRun}, applies the action to them.
+     */
+    @NotNull
+    public synchronized Report cleanup(@NotNull Action action, boolean dryRun) {
+        Map<String, Candidate> candidates = core.runAsSystem(() -> findCandidates(action));
+
+        Map<String, List<Candidate>> byProject = new TreeMap<>();
+        for (Candidate candidate : candidates.values()) {
+            byProject.computeIfAbsent(candidate.invitation.getProject().getProjectId(), id -> new ArrayList<>()).add(candidate);
+        }
+
+        Report report = new Report(action, dryRun);
+        for (List<Candidate> projectCandidates : byProject.values()) {
+            SProject project = projectCandidates.get(0).invitation.getProject();
+            int changed = 0;
+            if (!dryRun) {
+                List<String> tokens = new ArrayList<>();
+                projectCandidates.forEach(candidate -> tokens.add(candidate.invitation.getToken()));
+                String description = tokens.size() + " invitations referencing deleted users, roles or groups " + (action == Action.REMOVE ? "removed" : "disabled");
+                changed = core.runAsSystem(() -> action == Action.REMOVE
+                        ? invitations.removeInvitations(project, tokens, description)
+                        : invitations.disableInvitations(project, tokens, description));
+            }
+            report.projects.add(new ProjectReport(project, projectCandidates, changed));
+        }
+
+        Loggers.ACTIVITIES.info("Invitations cleanup" + (dryRun ? " (dry run)" : "") + ": " + report.getCandidatesCount() + " invitations in "
+                + report.projects.size() + " projects reference deleted users, roles or groups, " + report.getChangedCount() + " " + action.name().toLowerCase(Locale.ENGLISH) + "d");
+        return report;
+    }
+
+    @NotNull
+    private Map<String, Candidate> findCandidates(@NotNull Action action) {
+        Map<String, Candidate> candidates = new LinkedHashMap<>();
+        for (Long userId : invitations.getInvitationCreatorIds()) {
+            if (core.getUser(userId) == null) {
+                addCandidates(candidates, invitations.getInvitationsCreatedBy(userId), "creator with id " + userId + " is deleted", action);
+            }
+        }
+        for (String roleId : invitations.getInvitationRoleIds()) {
+            if (core.findRoleById(roleId) == null) {
+                addCandidates(candidates, invitations.getInvitationsWithRole(roleId), "role '" + roleId + "' is deleted", action);
+            }
+        }
+        for (String groupKey : invitations.getInvitationGroupKeys()) {
+            if (core.findGroup(groupKey) == null) {
+                addCandidates(candidates, invitations.getInvitationsWithGroup(groupKey), "group '" + groupKey + "' is deleted", action);
+            }
+        }
+        return candidates;
+    }
+
+    private static void addCandidates(@NotNull Map<String, Candidate> candidates, @NotNull List<Invitation> found, @NotNull String reason, @NotNull Action action) {
+        for (Invitation invitation : found) {
+            if (action == Action.DISABLE && !invitation.isEnabled()) {
+                continue;
+            }
+            candidates.computeIfAbsent(invitation.getToken(), token -> new Candidate(invitation)).reasons.add(reason);
+        }
+    }
+
+    private void scheduledCleanup() {
+        try {
+            cleanup(getConfiguredAction(), false);
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to clean up invitations", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private static final class Candidate {
+        @NotNull
+        private final Invitation invitation;
+        @NotNull
+        private final List<String> reasons = new ArrayList<>();
+
+        private Candidate(@NotNull Invitation invitation) {
+            this.invitation = invitation;
+        }
+    }
+
+    private static final class ProjectReport {
+        @NotNull
+        private final SProject project;
+        @NotNull
+        private final List<Candidate> candidates;
+        private final int changed;
+
+        private ProjectReport(@NotNull SProject project, @NotNull List<Candidate> candidates, int changed) {
+            this.project = project;
+            this.candidates = candidates;
+            this.changed = changed;
+        }
+    }
+
+    public static final class Report {
+        @NotNull
+        private final Action action;
+        private final boolean dryRun;
+        @NotNull
+        private final List<ProjectReport> projects = new ArrayList<>();
+
+        private Report(@NotNull Action action, boolean dryRun) {
+            this.action = action;
+            this.dryRun = dryRun;
+        }
+
+        public int getCandidatesCount() {
+            return projects.stream().mapToInt(p -> p.candidates.size()).sum();
+        }
+
+        public int getChangedCount() {
+            return projects.stream().mapToInt(p -> p.changed).sum();
+        }
+
+        @NotNull
+        public List<String> getCandidateTokens() {
+            List<String> result = new ArrayList<>();
+            projects.forEach(p -> p.candidates.forEach(c -> result.add(c.invitation.getToken())));
+            return result;
+        }
+
+        public void writeJson(@NotNull JsonWriter json) throws IOException {
+            json.beginObject()
+                    .property("action", action.name().toLowerCase(Locale.ENGLISH))
+                    .property("dryRun", dryRun)
+                    .property("candidates", getCandidatesCount())
+                    .property("changed", getChangedCount());
+            json.name("projects").beginArray();
+            for (ProjectReport project : projects) {
+                json.beginObject()
+                        .property("project", project.project.getExternalId())
+                        .property("changed", project.changed);
+                json.name("invitations").beginArray();
+                for (Candidate candidate : project.candidates) {
+                    json.beginObject()
+                            .property("token", candidate.invitation.getToken())
+                            .property("name", candidate.invitation.getName())
+                            .property("reason", String.join("; ", candidate.reasons))
+                            .endObject();
+                }
+                json.endArray();
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+}
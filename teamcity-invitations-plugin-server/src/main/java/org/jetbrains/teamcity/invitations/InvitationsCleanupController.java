@@ -0,0 +1,62 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Locale;
+
+/**
+ * Runs {@link InvitationsCleanup} and returns its report as JSON. GET always runs in the dry-run mode, POST changes
+ * invitations unless {@code dryRun=true}. The {@code action} parameter is {@code disable} or {@code remove}, the configured action by default.
+ */
+public class InvitationsCleanupController extends BaseController {
+    static final String PATH = "/admin/invitationsCleanup.html";
+
+    @NotNull
+    private final InvitationsCleanup cleanup;
+
+    public InvitationsCleanupController(@NotNull WebControllerManager webControllerManager,
+                                        @NotNull InvitationsCleanup cleanup) {
+        this.cleanup = cleanup;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "You don't have permissions to clean up invitations");
+            return null;
+        }
+
+        InvitationsCleanup.Action action;
+        String actionParam = request.getParameter("action");
+        try {
+            action = StringUtil.isEmptyOrSpaces(actionParam) ? InvitationsCleanup.getConfiguredAction()
+                    : InvitationsCleanup.Action.valueOf(actionParam.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action '" + actionParam + "'");
+            return null;
+        }
+        boolean dryRun = !"POST".equals(request.getMethod()) || Boolean.parseBoolean(request.getParameter("dryRun"));
+
+        InvitationsCleanup.Report report = cleanup.cleanup(action, dryRun);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JsonWriter json = new JsonWriter(response.getWriter());
+        report.writeJson(json);
+        json.flush();
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sends the invitation link by email. POST with {@code token} and {@code addresses} separated with commas, semicolons or
+ * whitespace queues the emails in {@link InvitationEmailQueue} and returns how many were queued and which addresses are
+ * invalid, GET with {@code token} returns the state of every recipient of the invitation.
+ */
+public class InvitationsEmailController extends BaseController {
+    static final String PATH = "/admin/invitationsEmail.html";
+
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final InvitationEmailQueue emailQueue;
+
+    public InvitationsEmailController(@NotNull WebControllerManager webControllerManager,
+                                      @NotNull InvitationsStorage invitations,
+                                      @NotNull InvitationEmailQueue emailQueue) {
+        this.invitations = invitations;
+        this.emailQueue = emailQueue;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Authentication required");
+            return null;
+        }
+        String token = request.getParameter("token");
+        Invitation invitation = StringUtil.isEmptyOrSpaces(token) ? null : invitations.getInvitation(token);
+        if (invitation == null || !invitation.isAvailableFor(user)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invitation '" + token + "' not found");
+            return null;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        if (!"POST".equals(request.getMethod())) {
+            JsonWriter json = new JsonWriter(response.getWriter());
+            json.beginObject().name("recipients").beginArray();
+            for (InvitationEmailQueue.Recipient recipient : emailQueue.getRecipients(invitation.getToken())) {
+                json.beginObject()
+                        .property("address", recipient.getAddress())
+                        .property("state", recipient.getState().name())
+                        .property("attempts", recipient.getAttempts())
+                        .property("updatedAt", recipient.getUpdatedAt())
+                        .property("error", recipient.getError())
+                        .endObject();
+            }
+            json.endArray().endObject();
+            json.flush();
+            return null;
+        }
+
+        if (!invitation.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The invitation is disabled");
+            return null;
+        }
+        if (!emailQueue.isConfigured()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invitation emails are not configured on the server");
+            return null;
+        }
+        Set<String> addresses = new LinkedHashSet<>();
+        List<String> invalid = new ArrayList<>();
+        for (String address : String.valueOf(request.getParameter("addresses")).split("[,;\\s]+")) {
+            if (address.isEmpty()) {
+                continue;
+            }
+            if (InvitationEmailQueue.isValidAddress(address)) {
+                addresses.add(address);
+            } else {
+                invalid.add(address);
+            }
+        }
+
+        List<InvitationEmailQueue.Recipient> queued;
+        try {
+            queued = emailQueue.enqueue(invitation, user.getDescriptiveName(), addresses);
+        } catch (InvitationException e) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return null;
+        }
+
+        JsonWriter json = new JsonWriter(response.getWriter());
+        json.beginObject().property("queued", queued.size()).name("invalid").beginArray();
+        for (String address : invalid) {
+            json.value(address);
+        }
+        json.endArray().endObject();
+        json.flush();
+        return null;
+    }
+}
@@ -0,0 +1,255 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.agent.Constants;
+import jetbrains.buildServer.controllers.ActionErrors;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+import static org.jetbrains.teamcity.invitations.AbstractInvitation.TOKEN_PARAM_NAME;
+
+/**
+ * Export and import of invitations as NDJSON: one JSON object per line with the parameters of the invitation,
+ * its type and the external id of its project.
+ * <p>
+ * GET exports invitations of all projects or of the {@code project} subtree, {@code excludeSecrets=true} drops tokens.
+ * POST imports the request body. Lines are read one by one and added in batches of
+ * {@code teamcity.invitations.import.batchSize} with one persist per project, so neither direction holds the whole
+ * set of invitations in memory. Invitations without a token get a new one, invitations with a token which already exists are skipped.
+ * Imported invitations are created by the importing user and validated like invitations created in the dialog.
+ */
+public class InvitationsExportController extends BaseController {
+    static final String PATH = "/admin/invitationsExport.html";
+    static final String PROJECT_PARAM = "project";
+    private static final String CREATED_BY_PARAM = "createdByUserId";
+    static final String BATCH_SIZE_PROPERTY = "teamcity.invitations.import.batchSize";
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final TeamCityCoreFacade core;
+
+    public InvitationsExportController(@NotNull WebControllerManager webControllerManager,
+                                       @NotNull InvitationsStorage invitations,
+                                       @NotNull TeamCityCoreFacade core) {
+        this.invitations = invitations;
+        this.core = core;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Authentication required");
+            return null;
+        }
+        if ("POST".equals(request.getMethod())) {
+            importInvitations(user, request, response);
+        } else {
+            exportInvitations(user, request, response);
+        }
+        return null;
+    }
+
+    private void exportInvitations(@NotNull SUser user, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+        String projectId = null;
+        String projectExtId = request.getParameter(PROJECT_PARAM);
+        if (!StringUtil.isEmptyOrSpaces(projectExtId)) {
+            SProject project = core.findProjectByExtId(projectExtId);
+            if (project == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Project '" + projectExtId + "' not found");
+                return;
+            }
+            projectId = project.getProjectId();
+        }
+        boolean excludeSecrets = Boolean.parseBoolean(request.getParameter("excludeSecrets"));
+
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=invitations.ndjson");
+        Writer out = response.getWriter();
+        for (Invitation invitation : invitations.getInvitationsAfter(null)) {
+            if (projectId != null && !isInSubtree(invitation.getProject(), projectId)) {
+                continue;
+            }
+            if (!invitation.isAvailableFor(user)) {
+                continue;
+            }
+            JsonWriter json = new JsonWriter(out).beginObject();
+            json.property(PROJECT_PARAM, invitation.getProject().getExternalId());
+            json.property(InvitationsStorage.INVITATION_TYPE, invitation.getType().getId());
+            for (Map.Entry<String, String> param : new TreeMap<>(invitation.asMap()).entrySet()) {
+                if (excludeSecrets && param.getKey().startsWith(Constants.SECURE_PROPERTY_PREFIX)) {
+                    continue;
+                }
+                json.property(param.getKey(), param.getValue());
+            }
+            json.endObject();
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private void importInvitations(@NotNull SUser user, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+        int batchSize = Math.max(1, TeamCityProperties.getInteger(BATCH_SIZE_PROPERTY, 500));
+        ImportBatch batch = new ImportBatch();
+        ImportResult result = new ImportResult();
+
+        BufferedReader reader = request.getReader();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (StringUtil.isEmptyOrSpaces(line)) {
+                continue;
+            }
+            try {
+                Invitation invitation = readInvitation(line, batch, user);
+                if (invitation == null) {
+                    result.skipped++;
+                    continue;
+                }
+                if (!invitation.isAvailableFor(user)) {
+                    throw new IllegalArgumentException("You don't have permissions to create the invitation in the project " + invitation.getProject().describe(false));
+                }
+                batch.add(invitation);
+            } catch (RuntimeException e) {
+                result.failed(lineNumber, e.getMessage() != null ? e.getMessage() : e.toString());
+                continue;
+            }
+            if (batch.size() >= batchSize) {
+                result.imported += batch.flush();
+            }
+        }
+        result.imported += batch.flush();
+        Loggers.ACTIVITIES.info("User " + user.describe(false) + " imported " + result.imported + " invitations, skipped " + result.skipped + ", failed " + result.failed);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JsonWriter json = new JsonWriter(response.getWriter());
+        result.writeJson(json);
+        json.flush();
+    }
+
+    /**
+     * Returns null if the invitation with the same token already exists.
+     */
+    @Nullable
+    private Invitation readInvitation(@NotNull String line, @NotNull ImportBatch batch, @NotNull SUser user) {
+        Map<String, String> params = JsonReader.parseFlatObject(line);
+        String projectExtId = params.remove(PROJECT_PARAM);
+        SProject project = core.findProjectByExtId(projectExtId);
+        if (project == null) {
+            throw new IllegalArgumentException("Project '" + projectExtId + "' not found");
+        }
+        String typeId = params.get(InvitationsStorage.INVITATION_TYPE);
+        InvitationType<?> type = typeId != null ? invitations.getInvitationType(typeId) : null;
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown invitation type '" + typeId + "'");
+        }
+
+        String token = params.get(TOKEN_PARAM_NAME);
+        if (StringUtil.isEmptyOrSpaces(token)) {
+            params.put(TOKEN_PARAM_NAME, StringUtil.generateUniqueHash());
+        } else if (invitations.hasInvitation(token) || batch.contains(token)) {
+            return null;
+        }
+        params.put(CREATED_BY_PARAM, String.valueOf(user.getId()));
+        return readValidated(type, params, project, user);
+    }
+
+    @NotNull
+    private static <T extends Invitation> T readValidated(@NotNull InvitationType<T> type, @NotNull Map<String, String> params,
+                                                         @NotNull SProject project, @NotNull SUser user) {
+        T invitation = type.readFrom(params, project);
+        ActionErrors errors = new ActionErrors();
+        type.validate(invitation, user, errors);
+        if (errors.hasErrors()) {
+            Set<String> messages = new LinkedHashSet<>();
+            errors.getErrors().forEach(error -> messages.add(error.getMessage()));
+            throw new IllegalArgumentException(String.join("; ", messages));
+        }
+        return invitation;
+    }
+
+    private static boolean isInSubtree(@NotNull SProject project, @NotNull String rootProjectId) {
+        return project.getProjectPath().stream().anyMatch(p -> rootProjectId.equals(p.getProjectId()));
+    }
+
+    /**
+     * Invitations read but not added yet, grouped by project.
+     */
+    private final class ImportBatch {
+        private final Map<String, List<Invitation>> byProject = new LinkedHashMap<>();
+        private final Set<String> tokens = new HashSet<>();
+
+        private void add(@NotNull Invitation invitation) {
+            byProject.computeIfAbsent(invitation.getProject().getProjectId(), id -> new ArrayList<>()).add(invitation);
+            tokens.add(invitation.getToken());
+        }
+
+        private boolean contains(@NotNull String token) {
+            return tokens.contains(token);
+        }
+
+        private int size() {
+            return tokens.size();
+        }
+
+        private int flush() {
+            int added = 0;
+            for (List<Invitation> projectInvitations : byProject.values()) {
+                invitations.addInvitations(projectInvitations.get(0).getProject(), projectInvitations);
+                added += projectInvitations.size();
+            }
+            byProject.clear();
+            tokens.clear();
+            return added;
+        }
+    }
+
+    private static final class ImportResult {
+        private int imported;
+        private int skipped;
+        private int failed;
+        private final List<String> errors = new ArrayList<>();
+
+        private void failed(int line, @NotNull String message) {
+            failed++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add("Line " + line + ": " + message);
+            }
+        }
+
+        private void writeJson(@NotNull JsonWriter json) throws IOException {
+            json.beginObject()
+                    .property("imported", imported)
+                    .property("skipped", skipped)
+                    .property("failed", failed);
+            json.name("errors").beginArray();
+            for (String error : errors) {
+                json.value(error);
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+}
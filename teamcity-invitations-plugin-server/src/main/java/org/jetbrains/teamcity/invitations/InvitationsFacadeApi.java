@@ -8,6 +8,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
+import java.util.Set;
 import java.util.function.Function;
 
 import static java.util.stream.Collectors.toList;
@@ -18,12 +19,17 @@ public class InvitationsFacadeApi {
     private final JoinProjectInvitationType joinProjectInvitationType;
     private final InvitationsLandingController invitationsLandingController;
     private final InvitationLandingProvider invitationLandingProvider;
+    private final InvitationsSubtreeOperations subtreeOperations;
+    private final InvitationEventBus eventBus;
 
-    public InvitationsFacadeApi(InvitationsStorage invitationsStorage, JoinProjectInvitationType joinProjectInvitationType, InvitationsLandingController invitationsLandingController, InvitationLandingProvider invitationsLandingProvider) {
+    public InvitationsFacadeApi(InvitationsStorage invitationsStorage, JoinProjectInvitationType joinProjectInvitationType, InvitationsLandingController invitationsLandingController, InvitationLandingProvider invitationsLandingProvider,
+                                InvitationsSubtreeOperations subtreeOperations, InvitationEventBus eventBus) {
         this.invitationsStorage = invitationsStorage;
         this.joinProjectInvitationType = joinProjectInvitationType;
         this.invitationsLandingController = invitationsLandingController;
         this.invitationLandingProvider = invitationsLandingProvider;
+        this.subtreeOperations = subtreeOperations;
+        this.eventBus = eventBus;
     }
 
     public Invitation createJoinProjectInvitation(@NotNull SUser inviter, @NotNull String name, @NotNull SProject project,
@@ -43,11 +49,58 @@ public class InvitationsFacadeApi {
                 .collect(toList());
     }
 
+    /**
+     * Invitations of the project including inheritable invitations of its ancestors.
+     */
+    @NotNull
+    public List<Invitation> getEffectiveInvitations(@NotNull SProject project) {
+        return invitationsStorage.getEffectiveInvitations(project);
+    }
+
     @Nullable
     public Invitation findInvitation(@NotNull String token) {
         return invitationsStorage.getInvitation(token);
     }
 
+    /**
+     * Invitations of all projects created by the user.
+     */
+    @NotNull
+    public List<Invitation> findInvitationsCreatedBy(long userId) {
+        return invitationsStorage.getInvitationsCreatedBy(userId);
+    }
+
+    /**
+     * Invitations of all projects which give the role.
+     */
+    @NotNull
+    public List<Invitation> findInvitationsWithRole(@NotNull String roleId) {
+        return invitationsStorage.getInvitationsWithRole(roleId);
+    }
+
+    /**
+     * Invitations of all projects which add users to the group.
+     */
+    @NotNull
+    public List<Invitation> findInvitationsWithGroup(@NotNull String groupKey) {
+        return invitationsStorage.getInvitationsWithGroup(groupKey);
+    }
+
+    @NotNull
+    public List<Invitation> findInvitationsOfType(@NotNull String invitationTypeId) {
+        return invitationsStorage.getInvitationsOfType(invitationTypeId);
+    }
+
+    /**
+     * Starts disabling, enabling or removing the invitations of the project and its subprojects which the user can change, use the
+     * returned operation to wait for it, see the per-project outcomes or cancel it.
+     */
+    @NotNull
+    public InvitationsSubtreeOperations.Operation startSubtreeOperation(@NotNull SUser user, @NotNull SProject project,
+                                                                        @NotNull InvitationsSubtreeOperations.Action action) {
+        return subtreeOperations.start(user, project, action);
+    }
+
     /**
      * Returns relative link to invitations admin tab in the project
      */
@@ -64,4 +117,17 @@ public class InvitationsFacadeApi {
     public void registerLandingPageProvider(@NotNull Function<Invitation, String> provider) {
         invitationLandingProvider.registerCustomProvider(provider);
     }
+
+    /**
+     * Subscribes the listener to invitation events of the given types in the project and its subprojects, the listener is called
+     * asynchronously with batches of events.
+     *
+     * @param subtree null to receive events of all projects
+     * @param types   empty to receive events of all types
+     */
+    @NotNull
+    public InvitationEventBus.Subscription subscribe(@NotNull InvitationEventListener listener, @Nullable SProject subtree,
+                                                     @NotNull Set<InvitationEvent.Type> types) {
+        return eventBus.subscribe(listener, subtree, types);
+    }
 }
@@ -0,0 +1,68 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.healthStatus.*;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.healthStatus.HealthStatusItemPageExtension;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Reports projects with invalid invitations, as found by the last validation of {@link InvitationsHealthValidator}.
+ */
+public class InvitationsHealthReport extends HealthStatusReport {
+    static final String TYPE = "invalidInvitations";
+    private static final ItemCategory CATEGORY = new ItemCategory("invalidInvitations", "Invalid invitations", ItemSeverity.WARN);
+
+    @NotNull
+    private final InvitationsStorage invitations;
+
+    public InvitationsHealthReport(@NotNull InvitationsStorage invitations,
+                                   @NotNull PagePlaces pagePlaces,
+                                   @NotNull PluginDescriptor pluginDescriptor) {
+        this.invitations = invitations;
+        HealthStatusItemPageExtension pageExtension = new HealthStatusItemPageExtension(TYPE, pagePlaces);
+        pageExtension.setIncludeUrl(pluginDescriptor.getPluginResourcesPath("invitationsHealthReport.jsp"));
+        pageExtension.setVisibleOutsideAdminArea(false);
+        pageExtension.register();
+    }
+
+    @NotNull
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @NotNull
+    @Override
+    public String getDisplayName() {
+        return "Invalid invitations";
+    }
+
+    @NotNull
+    @Override
+    public Collection<ItemCategory> getCategories() {
+        return Collections.singletonList(CATEGORY);
+    }
+
+    @Override
+    public boolean canReportItemsFor(@NotNull HealthStatusScope scope) {
+        return scope.isItemWithSeverityAccepted(CATEGORY.getSeverity());
+    }
+
+    @Override
+    public void report(@NotNull HealthStatusScope scope, @NotNull HealthStatusItemConsumer resultConsumer) {
+        for (SProject project : scope.getProjects()) {
+            List<Invitation> invalid = invitations.getInvalidInvitations(project);
+            if (invalid.isEmpty()) {
+                continue;
+            }
+            Map<String, Object> data = new HashMap<>();
+            data.put("project", project);
+            data.put("invitations", invalid);
+            resultConsumer.consumeForProject(project, new HealthStatusItem(TYPE + "_" + project.getProjectId(), CATEGORY, data));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates all invitations in the background, every {@code teamcity.invitations.health.intervalSeconds} and
+ * {@code teamcity.invitations.health.delayMillis} after roles, groups or projects change. Changes coming in a burst
+ * result in one validation.
+ */
+@ThreadSafe
+public class InvitationsHealthValidator implements DisposableBean {
+
+    static final String INTERVAL_PROPERTY = "teamcity.invitations.health.intervalSeconds";
+    static final String DELAY_PROPERTY = "teamcity.invitations.health.delayMillis";
+
+    @NotNull
+    private final InvitationsStorage invitations;
+
+    @NotNull
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Invitations validation"));
+
+    @NotNull
+    private final AtomicBoolean validationRequested = new AtomicBoolean();
+
+    @NotNull
+    private final AtomicLong invalidInvitations = new AtomicLong();
+
+    public InvitationsHealthValidator(@NotNull InvitationsStorage invitations,
+                                      @NotNull TeamCityCoreFacade core,
+                                      @NotNull EventDispatcher<ProjectsModelListener> events,
+                                      @NotNull InvitationsMetrics metrics) {
+        this.invitations = invitations;
+        metrics.registerGauge("invalidInvitations", invalidInvitations::get);
+        core.addRolesAndGroupsListener(new RolesAndGroupsListener() {
+            @Override
+            public void rolesChanged() {
+                requestValidation();
+            }
+
+            @Override
+            public void groupChanged(@NotNull SUserGroup group) {
+                requestValidation();
+            }
+        });
+        events.addListener(new ProjectsModelListenerAdapter() {
+            @Override
+            public void projectCreated(@NotNull String projectId, @Nullable SUser user) {
+                requestValidation();
+            }
+
+            @Override
+            public void projectRemoved(@NotNull String projectId) {
+                requestValidation();
+            }
+
+            @Override
+            public void projectMoved(@NotNull SProject project, @NotNull SProject originalParentProject) {
+                requestValidation();
+            }
+
+            @Override
+            public void projectFeatureAdded(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
+                requestValidation();
+            }
+
+            @Override
+            public void projectFeatureChanged(@NotNull SProject project, @NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
+                requestValidation();
+            }
+        });
+        int interval = Math.max(1, TeamCityProperties.getInteger(INTERVAL_PROPERTY, 600));
+        executor.scheduleWithFixedDelay(this::validate, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Schedules a validation unless one is already scheduled.
+     */
+    void requestValidation() {
+        if (validationRequested.compareAndSet(false, true)) {
+            try {
+                executor.schedule(this::validate, TeamCityProperties.getInteger(DELAY_PROPERTY, 1000), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //shut down
+            }
+        }
+    }
+
+    void validate() {
+        validationRequested.set(false);
+        try {
+            long start = System.nanoTime();
+            int invalid = invitations.validateInvitations();
+            invalidInvitations.set(invalid);
+            Loggers.SERVER.debug("Validated invitations in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, invalid: " + invalid);
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to validate invitations", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
@@ -4,8 +4,10 @@ import jetbrains.buildServer.RootUrlHolder;
 import jetbrains.buildServer.controllers.AuthorizationInterceptor;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.web.impl.TeamCityInternalKeys;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
 import jetbrains.buildServer.web.util.WebUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -29,13 +31,23 @@ public class InvitationsLandingController extends BaseController {
     @NotNull
     private final RootUrlHolder rootUrlHolder;
 
+    @NotNull
+    private final InvitationsMetrics metrics;
+
+    @NotNull
+    private final InvitationEventBus eventBus;
+
     public InvitationsLandingController(@NotNull WebControllerManager webControllerManager,
                                         @NotNull InvitationsStorage invitations,
                                         @NotNull AuthorizationInterceptor authorizationInterceptor,
-                                        @NotNull TeamCityCoreFacade core, @NotNull RootUrlHolder rootUrlHolder) {
+                                        @NotNull TeamCityCoreFacade core, @NotNull RootUrlHolder rootUrlHolder,
+                                        @NotNull InvitationsMetrics metrics,
+                                        @NotNull InvitationEventBus eventBus) {
         this.invitations = invitations;
         this.core = core;
         this.rootUrlHolder = rootUrlHolder;
+        this.metrics = metrics;
+        this.eventBus = eventBus;
         webControllerManager.registerController(INVITATIONS_PATH, this);
         authorizationInterceptor.addPathNotRequiringAuth(INVITATIONS_PATH);
     }
@@ -43,18 +55,28 @@ public class InvitationsLandingController extends BaseController {
     @Nullable
     @Override
     protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
-        String token = request.getParameter(TOKEN_URL_PARAM);
-        Invitation invitation = core.runAsSystem(() -> invitations.getInvitation(token));
-        if (invitation == null) {
-            Loggers.SERVER.warn("Request with unknown invitation token received: " + WebUtil.getRequestDump(request));
-            return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Not found invitation"));
-        }
-        if (invitation.getValidationError() != null) {
-            Loggers.SERVER.warn("User tries to accept the invitation '" + token + "' that is invalid: " + invitation.getValidationError());
+        Object landingEvent = InvitationFlightRecorder.begin(InvitationFlightRecorder.Kind.LANDING);
+        Invitation invitation = null;
+        try {
+            String token = request.getParameter(TOKEN_URL_PARAM);
+            invitation = core.runAsSystem(() -> invitations.getInvitation(token));
+            if (invitation == null) {
+                Loggers.SERVER.warn("Request with unknown invitation token received: " + WebUtil.getRequestDump(request));
+                return new ModelAndView(core.getPluginResourcesPath("invitationLanding.jsp"), Collections.singletonMap("title", "Not found invitation"));
+            }
+            metrics.landingHit(invitation.getType());
+            SUser viewer = SessionUser.getUser(request);
+            eventBus.publish(InvitationEvent.Type.VIEWED, invitation, viewer != null ? viewer.getId() : null);
+            String validationError = invitations.getValidationError(invitation);
+            if (validationError != null) {
+                Loggers.SERVER.warn("User tries to accept the invitation '" + token + "' that is invalid: " + validationError);
+            }
+            request.getSession().setAttribute(TeamCityInternalKeys.FIRST_LOGIN_REDIRECT_URL,
+                    InvitationsProceedController.PATH + "?token=" + token);
+            return invitation.processInvitationRequest(request, response);
+        } finally {
+            InvitationFlightRecorder.commit(landingEvent, invitation != null ? invitation.getProject() : null, invitation != null ? invitation.getType() : null);
         }
-        request.getSession().setAttribute(TeamCityInternalKeys.FIRST_LOGIN_REDIRECT_URL,
-                InvitationsProceedController.PATH + "?token=" + token);
-        return invitation.processInvitationRequest(request, response);
     }
 
     @NotNull
@@ -0,0 +1,205 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and timers describing how the plugin behaves under load.
+ * All recording methods are allocation-free once the invitation type counters are registered, so they can be called from request threads.
+ */
+@ThreadSafe
+public class InvitationsMetrics {
+
+    private final ConcurrentMap<String, TypeCounters> byType = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final LongAdder unknownTokenLookups = new LongAdder();
+    private final Timer rebuilds = new Timer();
+    private final AtomicLong lastRebuildEntries = new AtomicLong();
+    private final Timer persists = new Timer();
+
+    public void registerInvitationType(@NotNull InvitationType invitationType) {
+        byType.putIfAbsent(invitationType.getId(), new TypeCounters());
+    }
+
+    /**
+     * Registers a value that is sampled only when metrics are read.
+     */
+    public void registerGauge(@NotNull String name, @NotNull LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Current value of the gauge, 0 if there is no such gauge.
+     */
+    public long getGauge(@NotNull String name) {
+        LongSupplier gauge = gauges.get(name);
+        return gauge != null ? gauge.getAsLong() : 0;
+    }
+
+    public void landingHit(@NotNull InvitationType invitationType) {
+        countersOf(invitationType).landingHits.increment();
+    }
+
+    public void proceedCalled(@NotNull InvitationType invitationType) {
+        countersOf(invitationType).proceedCalls.increment();
+    }
+
+    public void invitationAccepted(@NotNull InvitationType invitationType) {
+        countersOf(invitationType).acceptances.increment();
+    }
+
+    public void unknownTokenLookup() {
+        unknownTokenLookups.increment();
+    }
+
+    public void cacheRebuilt(long durationNanos, int entries) {
+        rebuilds.record(durationNanos);
+        lastRebuildEntries.set(entries);
+    }
+
+    public void persisted(long durationNanos) {
+        persists.record(durationNanos);
+    }
+
+    public long getUnknownTokenLookups() {
+        return unknownTokenLookups.sum();
+    }
+
+    public long getLandingHits(@NotNull InvitationType invitationType) {
+        return countersOf(invitationType).landingHits.sum();
+    }
+
+    public long getAcceptances(@NotNull InvitationType invitationType) {
+        return countersOf(invitationType).acceptances.sum();
+    }
+
+    @NotNull
+    public Timer getRebuilds() {
+        return rebuilds;
+    }
+
+    @NotNull
+    public Timer getPersists() {
+        return persists;
+    }
+
+    public void writeJson(@NotNull JsonWriter json) throws IOException {
+        json.beginObject();
+        json.name("types").beginObject();
+        for (Map.Entry<String, TypeCounters> entry : new TreeMap<>(byType).entrySet()) {
+            json.name(entry.getKey()).beginObject()
+                    .property("landingHits", entry.getValue().landingHits.sum())
+                    .property("proceedCalls", entry.getValue().proceedCalls.sum())
+                    .property("acceptances", entry.getValue().acceptances.sum())
+                    .endObject();
+        }
+        json.endObject();
+        json.property("unknownTokenLookups", unknownTokenLookups.sum());
+        json.name("cacheRebuilds");
+        rebuilds.writeJson(json, "lastEntries", lastRebuildEntries.get());
+        json.name("persists");
+        persists.writeJson(json, null, 0);
+        json.name("gauges").beginObject();
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            json.property(entry.getKey(), entry.getValue().getAsLong());
+        }
+        json.endObject();
+        json.endObject();
+    }
+
+    @NotNull
+    private TypeCounters countersOf(@NotNull InvitationType invitationType) {
+        TypeCounters counters = byType.get(invitationType.getId());
+        return counters != null ? counters : byType.computeIfAbsent(invitationType.getId(), id -> new TypeCounters());
+    }
+
+    private static final class TypeCounters {
+        private final LongAdder landingHits = new LongAdder();
+        private final LongAdder proceedCalls = new LongAdder();
+        private final LongAdder acceptances = new LongAdder();
+    }
+
+    /**
+     * Duration recorder with a log2 histogram of microseconds: bucket {@code i} holds durations in {@code [2^(i-1), 2^i)} microseconds.
+     */
+    @ThreadSafe
+    public static final class Timer {
+        private static final int BUCKETS = 40;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        public void record(long durationNanos) {
+            long nanos = Math.max(durationNanos, 0);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            long micros = nanos / 1000;
+            int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            histogram.incrementAndGet(bucket);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * Returns the upper bound (in microseconds) of the histogram bucket containing the given percentile.
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = histogram.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        private void writeJson(@NotNull JsonWriter json, @Nullable String extraName, long extraValue) throws IOException {
+            json.beginObject()
+                    .property("count", getCount())
+                    .property("totalMillis", getTotalNanos() / 1_000_000)
+                    .property("maxMicros", getMaxNanos() / 1000)
+                    .property("p50Micros", getPercentileMicros(50))
+                    .property("p99Micros", getPercentileMicros(99));
+            if (extraName != null) {
+                json.property(extraName, extraValue);
+            }
+            json.endObject();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class InvitationsMetricsController extends BaseController {
+    static final String PATH = "/admin/invitationsMetrics.html";
+
+    @NotNull
+    private final InvitationsMetrics metrics;
+
+    public InvitationsMetricsController(@NotNull WebControllerManager webControllerManager,
+                                        @NotNull InvitationsMetrics metrics) {
+        this.metrics = metrics;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "You don't have permissions to view invitation metrics");
+            return null;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JsonWriter json = new JsonWriter(response.getWriter());
+        metrics.writeJson(json);
+        json.flush();
+        return null;
+    }
+}
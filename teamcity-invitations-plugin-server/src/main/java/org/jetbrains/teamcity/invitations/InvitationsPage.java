@@ -0,0 +1,45 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.List;
+
+@Immutable
+public final class InvitationsPage {
+
+    @NotNull
+    private final List<Invitation> invitations;
+    private final int offset;
+    private final int total;
+
+    InvitationsPage(@NotNull List<Invitation> invitations, int offset, int total) {
+        this.invitations = invitations;
+        this.offset = offset;
+        this.total = total;
+    }
+
+    @NotNull
+    public List<Invitation> getInvitations() {
+        return invitations;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Number of invitations matching the query on all pages.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public boolean isHasMore() {
+        return offset + invitations.size() < total;
+    }
+
+    public int getNextOffset() {
+        return offset + invitations.size();
+    }
+}
@@ -26,11 +26,16 @@ public class InvitationsProceedController extends BaseController {
     @NotNull
     private final TeamCityCoreFacade core;
 
+    @NotNull
+    private final InvitationsMetrics metrics;
+
     public InvitationsProceedController(@NotNull WebControllerManager webControllerManager,
                                         @NotNull InvitationsStorage invitations,
-                                        @NotNull TeamCityCoreFacade core) {
+                                        @NotNull TeamCityCoreFacade core,
+                                        @NotNull InvitationsMetrics metrics) {
         this.invitations = invitations;
         this.core = core;
+        this.metrics = metrics;
         webControllerManager.registerController(PATH, this);
     }
 
@@ -38,36 +43,52 @@ public class InvitationsProceedController extends BaseController {
     @Nullable
     @Override
     protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
-        SUser user = SessionUser.getUser(request);
+        Object proceedEvent = InvitationFlightRecorder.begin(InvitationFlightRecorder.Kind.PROCEED);
+        Invitation invitation = null;
+        try {
+            SUser user = SessionUser.getUser(request);
 
-        Object tokenObj = request.getParameter("token");
-        if (tokenObj != null) {
-            String token = (String) tokenObj;
+            Object tokenObj = request.getParameter("token");
+            if (tokenObj != null) {
+                String token = (String) tokenObj;
 
-            if (UserFunctions.isGuestUser(user)) {
-                redirectTo(request.getContextPath() + InvitationsLandingController.INVITATIONS_PATH + "?guestError=1&token=" + token, response);
-                return null;
-            }
+                if (UserFunctions.isGuestUser(user)) {
+                    redirectTo(request.getContextPath() + InvitationsLandingController.INVITATIONS_PATH + "?guestError=1&token=" + token, response);
+                    return null;
+                }
 
-            Invitation invitation = core.runAsSystem(() -> invitations.getInvitation(token));
-            if (invitation == null) {
-                Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation doesn't exist anymore");
-                return new ModelAndView(new RedirectView("/"));
-            }
-            if (!invitation.isEnabled()) {
-                Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation is disabled");
-                return new ModelAndView(new RedirectView("/"));
-            }
-            if (invitation.getValidationError() != null) {
-                Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation is invalid: " + invitation.getValidationError());
+                invitation = core.runAsSystem(() -> invitations.getInvitation(token));
+                if (invitation == null) {
+                    Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation doesn't exist anymore");
+                    return new ModelAndView(new RedirectView("/"));
+                }
+                metrics.proceedCalled(invitation.getType());
+                if (!invitation.isEnabled()) {
+                    Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation is disabled");
+                    return new ModelAndView(new RedirectView("/"));
+                }
+                String validationError = invitations.getValidationError(invitation);
+                if (validationError != null) {
+                    Loggers.SERVER.warn("User accepted the invitation with token " + token + " but invitation is invalid: " + validationError);
+                    return new ModelAndView(new RedirectView("/"));
+                }
+                ModelAndView result;
+                try {
+                    result = invitation.invitationAccepted(user, request, response);
+                } catch (AcceptanceRejectedException e) {
+                    Loggers.SERVER.info("Acceptance of the invitation " + invitation.describe(false) + " by " + user.describe(false) + " rejected: " + e.getMessage());
+                    response.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                    return null;
+                }
+                Loggers.ACTIVITIES.info("User " + user.describe(false) + " accepted the invitation " + invitation.describe(true) + ".");
+                return result;
+            } else {
+                Loggers.SERVER.warn("User accepted the invitation with unknown token: " + WebUtil.getRequestDump(request));
                 return new ModelAndView(new RedirectView("/"));
             }
-            ModelAndView result = invitation.invitationAccepted(user, request, response);
-            Loggers.ACTIVITIES.info("User " + user.describe(false) + " accepted the invitation " + invitation.describe(true) + ".");
-            return result;
-        } else {
-            Loggers.SERVER.warn("User accepted the invitation with unknown token: " + WebUtil.getRequestDump(request));
-            return new ModelAndView(new RedirectView("/"));
+        } finally {
+            InvitationFlightRecorder.commit(proceedEvent, invitation != null ? invitation.getProject() : null, invitation != null ? invitation.getType() : null);
         }
     }
 }
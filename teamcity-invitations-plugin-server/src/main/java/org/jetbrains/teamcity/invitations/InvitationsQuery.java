@@ -0,0 +1,81 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Comparator;
+
+/**
+ * One page of the invitations list of a project: filters, sort order and the page bounds. An {@code inherited} query lists
+ * the inheritable invitations of the project ancestors instead of the project's own ones.
+ */
+@Immutable
+public final class InvitationsQuery {
+
+    public enum Sort {
+        NAME(Comparator.comparing(Invitation::getName, String.CASE_INSENSITIVE_ORDER)),
+        TYPE(Comparator.<Invitation, String>comparing(invitation -> invitation.getType().getDescription())
+                .thenComparing(Invitation::getName, String.CASE_INSENSITIVE_ORDER)),
+        CREATED(Comparator.comparingLong(Invitation::getCreatedAt));
+
+        @NotNull
+        private final Comparator<Invitation> comparator;
+
+        Sort(@NotNull Comparator<Invitation> comparator) {
+            //token makes the order total, so pages don't overlap when invitations have equal keys
+            this.comparator = comparator.thenComparing(Invitation::getToken);
+        }
+    }
+
+    @NotNull
+    private final Sort sort;
+    private final boolean descending;
+    @Nullable
+    private final String typeId;
+    @Nullable
+    private final Boolean enabled;
+    @Nullable
+    private final Long createdByUserId;
+    private final boolean inherited;
+    private final int offset;
+    private final int limit;
+
+    public InvitationsQuery(@NotNull Sort sort, boolean descending, @Nullable String typeId, @Nullable Boolean enabled,
+                            @Nullable Long createdByUserId, boolean inherited, int offset, int limit) {
+        if (offset < 0 || limit <= 0) {
+            throw new IllegalArgumentException("Invalid page bounds: offset " + offset + ", limit " + limit);
+        }
+        this.sort = sort;
+        this.descending = descending;
+        this.typeId = typeId;
+        this.enabled = enabled;
+        this.createdByUserId = createdByUserId;
+        this.inherited = inherited;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public boolean isInherited() {
+        return inherited;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @NotNull
+    Comparator<Invitation> getComparator() {
+        return descending ? sort.comparator.reversed() : sort.comparator;
+    }
+
+    boolean matches(@NotNull Invitation invitation) {
+        return (typeId == null || typeId.equals(invitation.getType().getId()))
+                && (enabled == null || enabled == invitation.isEnabled())
+                && (createdByUserId == null || createdByUserId == invitation.getCreatedByUserId());
+    }
+}
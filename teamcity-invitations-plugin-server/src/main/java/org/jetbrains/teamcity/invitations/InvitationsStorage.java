@@ -5,98 +5,550 @@ import jetbrains.buildServer.serverSide.ProjectsModelListener;
 import jetbrains.buildServer.serverSide.ProjectsModelListenerAdapter;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.jetbrains.teamcity.invitations.AbstractInvitation.TOKEN_PARAM_NAME;
 
+/**
+ * Invitations are stored as project features. The storage keeps an index of the invitations of all active projects:
+ * by token and by project. The index is built on the first access and then updated per project when its invitation features
+ * change, so lookups never read the project features.
+ * <p>
+ * Secondary indexes by creator, role, group and invitation type are kept in sync with the token index, so
+ * queries by these keys take time proportional to the number of found invitations.
+ * <p>
+ * Inherited invitations of a project are the inheritable ones in the indexed lists of its ancestors. Only the ids of the
+ * ancestors are cached per project, the invitations are always read from the index, so a moved or removed project drops
+ * the cached ids of its subtree while changes of invitations drop nothing.
+ * <p>
+ * Validation errors are precomputed per project by {@link #validateInvitations()}, which {@link InvitationsHealthValidator}
+ * calls in the background, so request paths don't resolve roles and groups of the invitation.
+ */
 @ThreadSafe
 public class InvitationsStorage {
 
-    private static final String PROJECT_FEATURE_TYPE = "Invitation";
-    private static final String INVITATION_TYPE = "invitationType";
+    static final String PROJECT_FEATURE_TYPE = "Invitation";
+    static final String INVITATION_TYPE = "invitationType";
+    static final String MAX_VISIBLE_COUNTS_PROPERTY = "teamcity.invitations.visibleCounts.maxSize";
 
     private final TeamCityCoreFacade teamCityCore;
+    private final InvitationsMetrics metrics;
+    private final RolesAndGroupsCache rolesAndGroups;
+    private final InvitationEventBus eventBus;
     private final Map<String, InvitationType> invitationTypes;
 
+    private final ConcurrentSkipListMap<String, Invitation> myInvitationsByToken = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, ProjectInvitations> myInvitationsByProject = new ConcurrentHashMap<>();
+    private final SecondaryIndex<Long> myInvitationsByCreator = new SecondaryIndex<>(Invitation::getCreatedByUserId);
+    private final SecondaryIndex<String> myInvitationsByRole = new SecondaryIndex<>(Invitation::getRoleId);
+    private final SecondaryIndex<String> myInvitationsByGroup = new SecondaryIndex<>(Invitation::getGroupKey);
+    private final SecondaryIndex<String> myInvitationsByType = new SecondaryIndex<>(invitation -> invitation.getType().getId());
+    private final ConcurrentMap<String, Integer> myBatchesInProgress = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<String>> myAncestorIds = new ConcurrentHashMap<>();
+    private final AtomicLong myAncestorIdsRevision = new AtomicLong();
+    private final Set<String> myClaimedTokens = ConcurrentHashMap.newKeySet();
+
     @GuardedBy("this")
-    private Map<String, Invitation> myInvitationByTokenCache;
+    private volatile boolean myIndexBuilt;
 
     public InvitationsStorage(@NotNull TeamCityCoreFacade teamCityCore,
-                              @NotNull EventDispatcher<ProjectsModelListener> events) {
+                              @NotNull EventDispatcher<ProjectsModelListener> events,
+                              @NotNull InvitationsMetrics metrics,
+                              @NotNull RolesAndGroupsCache rolesAndGroups,
+                              @NotNull InvitationEventBus eventBus) {
         this.teamCityCore = teamCityCore;
+        this.metrics = metrics;
+        this.rolesAndGroups = rolesAndGroups;
+        this.eventBus = eventBus;
         this.invitationTypes = new ConcurrentHashMap<>();
         events.addListener(new ProjectsModelListenerAdapter() {
             @Override
             public void projectFeatureAdded(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
-                resetCache();
+                if (isInvitation(projectFeature)) reindex(project);
             }
 
             @Override
             public void projectFeatureRemoved(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
-                resetCache();
+                if (isInvitation(projectFeature)) reindex(project);
             }
 
             @Override
             public void projectFeatureChanged(@NotNull SProject project, @NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
-                resetCache();
+                if (isInvitation(before) || isInvitation(after)) reindex(project);
+            }
+
+            @Override
+            public void projectRemoved(@NotNull String projectId) {
+                unindex(projectId);
+            }
+
+            @Override
+            public void projectArchived(@NotNull String projectId) {
+                unindex(projectId);
+            }
+
+            @Override
+            public void projectDearchived(@NotNull String projectId) {
+                SProject project = teamCityCore.runAsSystem(() -> teamCityCore.findProjectByIntId(projectId));
+                if (project != null) reindex(project);
+            }
+
+            @Override
+            public void projectMoved(@NotNull SProject project, @NotNull SProject originalParentProject) {
+                invalidateAncestorIds(project.getProjectId());
             }
         });
     }
 
     public void registerInvitationType(InvitationType invitationType) {
         this.invitationTypes.put(invitationType.getId(), invitationType);
+        metrics.registerInvitationType(invitationType);
     }
 
     public Invitation addInvitation(@NotNull Invitation invitation) {
         Map<String, String> params = invitation.asMap();
         params.put(INVITATION_TYPE, invitation.getType().getId());
         invitation.getProject().addFeature(PROJECT_FEATURE_TYPE, params);
-        teamCityCore.persist(invitation.getProject(), "Invitation added");
+        persist(invitation.getProject(), invitation.getType(), "Invitation added");
         Loggers.SERVER.info("Invitation " + invitation.describe(false) + " is created in the project " + invitation.getProject().describe(false));
-        getInvitation(invitation.getToken());//populate cache
+        eventBus.publish(InvitationEvent.Type.CREATED, invitation, null);
         return invitation;
     }
 
+    /**
+     * Adds invitations to the project persisting it once. The project is re-indexed once after all invitations are added.
+     */
+    public void addInvitations(@NotNull SProject project, @NotNull List<? extends Invitation> invitations) {
+        if (invitations.isEmpty()) {
+            return;
+        }
+        myBatchesInProgress.merge(project.getProjectId(), 1, Integer::sum);
+        try {
+            for (Invitation invitation : invitations) {
+                Map<String, String> params = invitation.asMap();
+                params.put(INVITATION_TYPE, invitation.getType().getId());
+                project.addFeature(PROJECT_FEATURE_TYPE, params);
+            }
+            persist(project, null, invitations.size() + " invitations added");
+        } finally {
+            myBatchesInProgress.computeIfPresent(project.getProjectId(), (id, count) -> count > 1 ? count - 1 : null);
+            reindex(project);
+        }
+        Loggers.SERVER.info(invitations.size() + " invitations are created in the project " + project.describe(false));
+        invitations.forEach(invitation -> eventBus.publish(InvitationEvent.Type.CREATED, invitation, null));
+    }
+
+    @Nullable
+    public InvitationType getInvitationType(@NotNull String invitationTypeId) {
+        return invitationTypes.get(invitationTypeId);
+    }
+
+    public boolean hasInvitation(@NotNull String token) {
+        ensureIndexBuilt();
+        return myInvitationsByToken.containsKey(token);
+    }
+
+    /**
+     * Claims a single user invitation for the acceptance in progress, so concurrent requests with the same token can't both
+     * accept it. Returns false if another acceptance holds the claim or the invitation was already used. The claim is kept in
+     * memory only: the acceptance releases it with {@link #releaseClaim} when it is over, after removing the invitation if it succeeded.
+     */
+    boolean claim(@NotNull String token) {
+        if (!myClaimedTokens.add(token)) {
+            return false;
+        }
+        if (!hasInvitation(token)) {
+            myClaimedTokens.remove(token);//removed by the acceptance which held the claim before
+            return false;
+        }
+        return true;
+    }
+
+    void releaseClaim(@NotNull String token) {
+        myClaimedTokens.remove(token);
+    }
+
     @NotNull
     public List<Invitation> getInvitations(@NotNull SProject project) {
-        return project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream().map(feature -> fromProjectFeature(project, feature)).collect(toList());
+        ensureIndexBuilt();
+        ProjectInvitations indexed = myInvitationsByProject.get(project.getProjectId());
+        if (indexed != null) {
+            return new ArrayList<>(indexed.invitations);
+        }
+        return readInvitations(project);
+    }
+
+    /**
+     * Own invitations of the project followed by inheritable invitations of its ancestors, from the parent to the root.
+     */
+    @NotNull
+    public List<Invitation> getEffectiveInvitations(@NotNull SProject project) {
+        List<Invitation> result = getInvitations(project);
+        getInheritedInvitations(project).forEach(result::add);
+        return result;
+    }
+
+    /**
+     * Inheritable invitations of the project ancestors, from the parent to the root, streamed from the indexed lists.
+     */
+    @NotNull
+    private Stream<Invitation> getInheritedInvitations(@NotNull SProject project) {
+        return getAncestorIds(project).stream()
+                .map(myInvitationsByProject::get)
+                .filter(ancestor -> ancestor != null && ancestor.hasInheritable)
+                .flatMap(ancestor -> ancestor.invitations.stream())
+                .filter(Invitation::isInheritable);
+    }
+
+    @NotNull
+    private List<String> getAncestorIds(@NotNull SProject project) {
+        List<String> cached = myAncestorIds.get(project.getProjectId());
+        if (cached != null) {
+            return cached;
+        }
+
+        long revision = myAncestorIdsRevision.get();
+        List<SProject> path = project.getProjectPath();
+        List<String> ancestorIds = new ArrayList<>(path.size());
+        for (int i = path.size() - 2; i >= 0; i--) {
+            ancestorIds.add(path.get(i).getProjectId());
+        }
+        List<String> computed = Collections.unmodifiableList(ancestorIds);
+        myAncestorIds.put(project.getProjectId(), computed);
+        if (myAncestorIdsRevision.get() != revision) {
+            //invalidated while computing, the path may be stale
+            myAncestorIds.remove(project.getProjectId(), computed);
+        }
+        return computed;
+    }
+
+    /**
+     * Invitations of all active projects ordered by token, starting after the given token. The view is backed by the index:
+     * it isn't copied and reflects concurrent changes.
+     */
+    @NotNull
+    public Collection<Invitation> getInvitationsAfter(@Nullable String token) {
+        ensureIndexBuilt();
+        return token != null ? myInvitationsByToken.tailMap(token, false).values() : myInvitationsByToken.values();
+    }
+
+    @NotNull
+    public List<Invitation> getInvitationsCreatedBy(long userId) {
+        ensureIndexBuilt();
+        return myInvitationsByCreator.get(userId);
+    }
+
+    @NotNull
+    public List<Invitation> getInvitationsWithRole(@NotNull String roleId) {
+        ensureIndexBuilt();
+        return myInvitationsByRole.get(roleId);
+    }
+
+    @NotNull
+    public List<Invitation> getInvitationsWithGroup(@NotNull String groupKey) {
+        ensureIndexBuilt();
+        return myInvitationsByGroup.get(groupKey);
+    }
+
+    @NotNull
+    public List<Invitation> getInvitationsOfType(@NotNull String invitationTypeId) {
+        ensureIndexBuilt();
+        return myInvitationsByType.get(invitationTypeId);
+    }
+
+    /**
+     * Returns one page of the project invitations the user can see, or of the inherited ones for an
+     * {@link InvitationsQuery#isInherited() inherited} query. Only the invitations up to the end of the page
+     * are kept while scanning the project, so the cost of a page doesn't depend on the size of the whole list.
+     */
+    @NotNull
+    public InvitationsPage getInvitationsPage(@NotNull SProject project, @NotNull AuthorityHolder user, @NotNull InvitationsQuery query) {
+        ensureIndexBuilt();
+        Iterable<Invitation> invitations;
+        if (query.isInherited()) {
+            invitations = getInheritedInvitations(project)::iterator;
+        } else {
+            ProjectInvitations indexed = myInvitationsByProject.get(project.getProjectId());
+            invitations = indexed != null ? indexed.invitations : readInvitations(project);
+        }
+
+        Comparator<Invitation> comparator = query.getComparator();
+        int pageEnd = (int) Math.min((long) query.getOffset() + query.getLimit(), Integer.MAX_VALUE - 1);
+        PriorityQueue<Invitation> top = new PriorityQueue<>(Math.min(pageEnd, 1024) + 1, comparator.reversed());
+        int total = 0;
+        for (Invitation invitation : invitations) {
+            if (!query.matches(invitation) || !invitation.isAvailableFor(user)) {
+                continue;
+            }
+            total++;
+            top.add(invitation);
+            if (top.size() > pageEnd) {
+                top.poll();
+            }
+        }
+
+        List<Invitation> sorted = new ArrayList<>(top);
+        sorted.sort(comparator);
+        List<Invitation> page = query.getOffset() < sorted.size() ? sorted.subList(query.getOffset(), sorted.size()) : Collections.emptyList();
+        return new InvitationsPage(Collections.unmodifiableList(new ArrayList<>(page)), query.getOffset(), total);
     }
 
+    /**
+     * Returns the number of enabled invitations in the project the user can see. The number is cached per user
+     * until invitations of the project, roles or groups change. The counts of a project are kept for one roles and groups
+     * revision only and for at most {@code teamcity.invitations.visibleCounts.maxSize} users, further users are counted
+     * on every call.
+     */
+    public int getEnabledInvitationsCount(@NotNull SProject project, @NotNull AuthorityHolder user) {
+        ensureIndexBuilt();
+        ProjectInvitations indexed = myInvitationsByProject.get(project.getProjectId());
+        if (indexed == null || indexed.enabledCount == 0) {
+            return 0;
+        }
+        if (!(user instanceof SUser) || AdditionalPermissionsUserWrapper.isWrappedUser(user)) {
+            return indexed.countVisibleEnabled(user);
+        }
+        long revision = rolesAndGroups.getRevision();
+        VisibleCounts counts = indexed.visibleCounts;
+        if (counts == null || counts.revision != revision) {
+            //counts of the older revision are stale, they are dropped all at once
+            counts = new VisibleCounts(revision, TeamCityProperties.getInteger(MAX_VISIBLE_COUNTS_PROPERTY, 1000));
+            indexed.visibleCounts = counts;
+        }
+        long userId = ((SUser) user).getId();
+        Integer cached = counts.byUser.get(userId);
+        if (cached == null) {
+            cached = indexed.countVisibleEnabled(user);
+            if (counts.byUser.size() < counts.maxSize) {
+                counts.byUser.put(userId, cached);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Ids of users who created indexed invitations.
+     */
+    @NotNull
+    public Set<Long> getInvitationCreatorIds() {
+        ensureIndexBuilt();
+        return myInvitationsByCreator.keys();
+    }
+
+    /**
+     * Ids of roles given by indexed invitations.
+     */
+    @NotNull
+    public Set<String> getInvitationRoleIds() {
+        ensureIndexBuilt();
+        return myInvitationsByRole.keys();
+    }
+
+    /**
+     * Keys of groups given by indexed invitations.
+     */
+    @NotNull
+    public Set<String> getInvitationGroupKeys() {
+        ensureIndexBuilt();
+        return myInvitationsByGroup.keys();
+    }
+
+    /**
+     * Removes the invitations with the given tokens from the project persisting it once, returns the number of removed invitations.
+     */
+    public int removeInvitations(@NotNull SProject project, @NotNull Collection<String> tokens, @NotNull String description) {
+        return changeInvitations(project, tokens, description, InvitationEvent.Type.REMOVED, feature -> project.removeFeature(feature.getId()) != null);
+    }
+
+    /**
+     * Disables the invitations with the given tokens in the project persisting it once, returns the number of disabled invitations.
+     */
+    public int disableInvitations(@NotNull SProject project, @NotNull Collection<String> tokens, @NotNull String description) {
+        return setInvitationsEnabled(project, tokens, false, description);
+    }
+
+    /**
+     * Enables or disables the invitations with the given tokens in the project persisting it once, returns the number of changed invitations.
+     */
+    public int setInvitationsEnabled(@NotNull SProject project, @NotNull Collection<String> tokens, boolean enabled, @NotNull String description) {
+        return changeInvitations(project, tokens, description, enabled ? InvitationEvent.Type.ENABLED : InvitationEvent.Type.DISABLED, feature -> {
+            if (Boolean.parseBoolean(feature.getParameters().get("disabled")) != enabled) {
+                return false;
+            }
+            Map<String, String> params = new HashMap<>(feature.getParameters());
+            params.put("disabled", String.valueOf(!enabled));
+            return project.updateFeature(feature.getId(), PROJECT_FEATURE_TYPE, params);
+        });
+    }
+
+    /**
+     * Invitations of the project and its subprojects by project id, projects without invitations are not included.
+     * Only the projects of the subtree are looked up in the index, so the cost doesn't depend on the rest of the server.
+     */
+    @NotNull
+    public Map<String, List<Invitation>> getInvitationsInSubtree(@NotNull SProject root) {
+        ensureIndexBuilt();
+        Map<String, List<Invitation>> result = new LinkedHashMap<>();
+        List<SProject> subtree = new ArrayList<>();
+        subtree.add(root);
+        subtree.addAll(root.getProjects());
+        for (SProject project : subtree) {
+            ProjectInvitations indexed = myInvitationsByProject.get(project.getProjectId());
+            if (indexed != null && !indexed.invitations.isEmpty()) {
+                result.put(project.getProjectId(), indexed.invitations);
+            }
+        }
+        return result;
+    }
+
+    private int changeInvitations(@NotNull SProject project, @NotNull Collection<String> tokens, @NotNull String description,
+                                  @NotNull InvitationEvent.Type eventType, @NotNull Predicate<SProjectFeatureDescriptor> change) {
+        if (tokens.isEmpty()) {
+            return 0;
+        }
+        Set<String> toChange = new HashSet<>(tokens);
+        List<Invitation> changed = new ArrayList<>();
+        myBatchesInProgress.merge(project.getProjectId(), 1, Integer::sum);
+        try {
+            for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE)) {
+                if (toChange.contains(feature.getParameters().get(TOKEN_PARAM_NAME))) {
+                    Invitation before = fromProjectFeature(project, feature);
+                    if (change.test(feature)) {
+                        changed.add(before);
+                    }
+                }
+            }
+            if (!changed.isEmpty()) {
+                persist(project, null, description);
+            }
+        } finally {
+            myBatchesInProgress.computeIfPresent(project.getProjectId(), (id, count) -> count > 1 ? count - 1 : null);
+            reindex(project);
+        }
+        changed.forEach(invitation -> eventBus.publish(eventType, invitation, null));
+        return changed.size();
+    }
+
+    /**
+     * Returns the validation error of the invitation computed by the last {@link #validateInvitations()}, or computes it
+     * if invitations of the project changed since then.
+     */
+    @Nullable
+    public String getValidationError(@NotNull Invitation invitation) {
+        ensureIndexBuilt();
+        ProjectInvitations indexed = myInvitationsByProject.get(invitation.getProject().getProjectId());
+        Validation validation = indexed != null ? indexed.validation : null;
+        if (validation != null && indexed.tokens.contains(invitation.getToken())) {
+            return validation.errors.get(invitation.getToken());
+        }
+        return invitation.getValidationError();
+    }
+
+    /**
+     * Validates all invitations and stores the results in the index. Roles and groups are resolved anew, since removed roles
+     * are not always reported.
+     *
+     * @return the number of invalid invitations
+     */
+    public int validateInvitations() {
+        ensureIndexBuilt();
+        rolesAndGroups.invalidate();
+        return teamCityCore.runAsSystem(() -> {
+            int invalid = 0;
+            for (ProjectInvitations indexed : myInvitationsByProject.values()) {
+                Map<String, String> errors = new HashMap<>();
+                for (Invitation invitation : indexed.invitations) {
+                    String error = invitation.getValidationError();
+                    if (error != null) {
+                        errors.put(invitation.getToken(), error);
+                    }
+                }
+                indexed.validation = new Validation(errors);
+                invalid += errors.size();
+            }
+            return invalid;
+        });
+    }
+
+    /**
+     * Invalid invitations of the project found by the last {@link #validateInvitations()}.
+     */
+    @NotNull
+    public List<Invitation> getInvalidInvitations(@NotNull SProject project) {
+        ensureIndexBuilt();
+        ProjectInvitations indexed = myInvitationsByProject.get(project.getProjectId());
+        Validation validation = indexed != null ? indexed.validation : null;
+        if (validation == null || validation.errors.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return indexed.invitations.stream().filter(invitation -> validation.errors.containsKey(invitation.getToken())).collect(toList());
+    }
+
+    /**
+     * Counts the acceptance of the invitation and publishes {@link InvitationEvent.Type#ACCEPTED}, called once the user got
+     * what the invitation gives, which may be after the request accepting it has returned.
+     */
+    void acceptanceCompleted(@NotNull Invitation invitation, long userId) {
+        metrics.invitationAccepted(invitation.getType());
+        eventBus.publish(InvitationEvent.Type.ACCEPTED, invitation, userId);
+    }
+
+    /**
+     * Removes the invitation, returns {@code null} when there is no such invitation or another thread has removed it first.
+     */
+    @Nullable
     public Invitation removeInvitation(@NotNull SProject project, @NotNull String token) {
-        Optional<SProjectFeatureDescriptor> featureDescriptor = project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream()
-                .filter(feature -> feature.getParameters().get(TOKEN_PARAM_NAME).equals(token))
-                .findFirst();
+        Optional<SProjectFeatureDescriptor> featureDescriptor = findFeature(project, token);
 
         if (featureDescriptor.isPresent()) {
-            project.removeFeature(featureDescriptor.get().getId());
-            teamCityCore.persist(project, "Invitation removed");
-            return fromProjectFeature(project, featureDescriptor.get());
+            if (project.removeFeature(featureDescriptor.get().getId()) == null) {
+                return null;//removed concurrently
+            }
+            persist(project, invitationTypes.get(featureDescriptor.get().getParameters().get(INVITATION_TYPE)), "Invitation removed");
+            Invitation removed = fromProjectFeature(project, featureDescriptor.get());
+            eventBus.publish(InvitationEvent.Type.REMOVED, removed, null);
+            return removed;
         } else {
             return null;
         }
     }
 
     public boolean updateInvitation(@NotNull Invitation invitation, @NotNull String description) {
-        Optional<SProjectFeatureDescriptor> featureDescriptor = invitation.getProject().getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream()
-                .filter(feature -> feature.getParameters().get(TOKEN_PARAM_NAME).equals(invitation.getToken()))
-                .findFirst();
+        Optional<SProjectFeatureDescriptor> featureDescriptor = findFeature(invitation.getProject(), invitation.getToken());
 
         if (featureDescriptor.isPresent()) {
             Map<String, String> params = invitation.asMap();
             params.put(INVITATION_TYPE, invitation.getType().getId());
+            String createdAt = featureDescriptor.get().getParameters().get(AbstractInvitation.CREATED_AT_PARAM_NAME);
+            if (createdAt != null) {
+                params.put(AbstractInvitation.CREATED_AT_PARAM_NAME, createdAt);//edits re-create the invitation from the form
+            }
+            boolean wasEnabled = !Boolean.parseBoolean(featureDescriptor.get().getParameters().get("disabled"));
             invitation.getProject().updateFeature(featureDescriptor.get().getId(), PROJECT_FEATURE_TYPE, params);
-            teamCityCore.persist(invitation.getProject(), description);
+            persist(invitation.getProject(), invitation.getType(), description);
+            eventBus.publish(wasEnabled == invitation.isEnabled() ? InvitationEvent.Type.UPDATED
+                    : invitation.isEnabled() ? InvitationEvent.Type.ENABLED : InvitationEvent.Type.DISABLED, invitation, null);
             return true;
         } else {
             return false;
@@ -105,25 +557,247 @@ public class InvitationsStorage {
 
     @Nullable
     public Invitation getInvitation(@NotNull String token) {
+        Object lookupMissEvent = InvitationFlightRecorder.begin(InvitationFlightRecorder.Kind.LOOKUP_MISS);
+        ensureIndexBuilt();
+        Invitation found = myInvitationsByToken.get(token);
+        if (found == null) {
+            metrics.unknownTokenLookup();
+            InvitationFlightRecorder.commit(lookupMissEvent, null, null);
+        }
+        return found;
+    }
+
+    private void ensureIndexBuilt() {
+        if (myIndexBuilt) {
+            return;
+        }
         synchronized (this) {
-            if (myInvitationByTokenCache == null) {
-                myInvitationByTokenCache = new HashMap<>();
-                for (SProject project : teamCityCore.getActiveProjects()) {
-                    for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE)) {
-                        myInvitationByTokenCache.put(feature.getParameters().get(TOKEN_PARAM_NAME), fromProjectFeature(project, feature));
-                    }
+            if (myIndexBuilt) {
+                return;
+            }
+            Object rebuildEvent = InvitationFlightRecorder.begin(InvitationFlightRecorder.Kind.REBUILD);
+            long start = System.nanoTime();
+            for (SProject project : teamCityCore.runAsSystem(teamCityCore::getActiveProjects)) {
+                index(project);
+            }
+            myIndexBuilt = true;
+            metrics.cacheRebuilt(System.nanoTime() - start, myInvitationsByToken.size());
+            InvitationFlightRecorder.commitRebuild(rebuildEvent, myInvitationsByToken.size());
+        }
+    }
+
+    private synchronized void reindex(@NotNull SProject project) {
+        if (myIndexBuilt && !myBatchesInProgress.containsKey(project.getProjectId())) {
+            index(project);
+        }
+    }
+
+    private synchronized void unindex(@NotNull String projectId) {
+        ProjectInvitations removed = myInvitationsByProject.remove(projectId);
+        invalidateAncestorIds(projectId);
+        if (removed != null) {
+            for (Invitation invitation : removed.invitations) {
+                if (myInvitationsByToken.remove(invitation.getToken(), invitation)) {
+                    removeFromSecondaryIndexes(invitation);
+                }
+            }
+        }
+    }
+
+    /**
+     * New invitations of the project are put into the token index before the stale ones are removed,
+     * so concurrent lookups of unchanged tokens always succeed.
+     */
+    @GuardedBy("this")
+    private void index(@NotNull SProject project) {
+        List<Invitation> invitations = readInvitations(project);
+        ProjectInvitations indexed = new ProjectInvitations(invitations);
+        ProjectInvitations previous = myInvitationsByProject.put(project.getProjectId(), indexed);
+        Set<String> tokens = new HashSet<>();
+        for (Invitation invitation : invitations) {
+            Invitation replaced = myInvitationsByToken.put(invitation.getToken(), invitation);
+            addToSecondaryIndexes(invitation);
+            if (replaced != null) {
+                removeFromSecondaryIndexes(replaced);
+            }
+            tokens.add(invitation.getToken());
+        }
+        if (previous != null) {
+            for (Invitation stale : previous.invitations) {
+                if (!tokens.contains(stale.getToken()) && myInvitationsByToken.remove(stale.getToken(), stale)) {
+                    removeFromSecondaryIndexes(stale);
                 }
             }
-            return myInvitationByTokenCache.get(token);
         }
     }
 
-    private synchronized void resetCache() {
-        myInvitationByTokenCache = null;
+    /**
+     * Drops the cached ancestor ids of the project and of all projects in its subtree.
+     */
+    private void invalidateAncestorIds(@NotNull String projectId) {
+        myAncestorIdsRevision.incrementAndGet();
+        myAncestorIds.entrySet().removeIf(entry -> entry.getKey().equals(projectId) || entry.getValue().contains(projectId));
+    }
+
+    @GuardedBy("this")
+    private void addToSecondaryIndexes(@NotNull Invitation invitation) {
+        myInvitationsByCreator.add(invitation);
+        myInvitationsByRole.add(invitation);
+        myInvitationsByGroup.add(invitation);
+        myInvitationsByType.add(invitation);
+    }
+
+    @GuardedBy("this")
+    private void removeFromSecondaryIndexes(@NotNull Invitation invitation) {
+        myInvitationsByCreator.remove(invitation);
+        myInvitationsByRole.remove(invitation);
+        myInvitationsByGroup.remove(invitation);
+        myInvitationsByType.remove(invitation);
+    }
+
+    @NotNull
+    private List<Invitation> readInvitations(@NotNull SProject project) {
+        return project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream().map(feature -> fromProjectFeature(project, feature)).collect(toList());
+    }
+
+    @NotNull
+    private Optional<SProjectFeatureDescriptor> findFeature(@NotNull SProject project, @NotNull String token) {
+        return project.getOwnFeaturesOfType(PROJECT_FEATURE_TYPE).stream()
+                .filter(feature -> token.equals(feature.getParameters().get(TOKEN_PARAM_NAME)))
+                .findFirst();
+    }
+
+    private void persist(@NotNull SProject project, @Nullable InvitationType invitationType, @NotNull String description) {
+        Object persistEvent = InvitationFlightRecorder.begin(InvitationFlightRecorder.Kind.PERSIST);
+        long start = System.nanoTime();
+        try {
+            teamCityCore.persist(project, description);
+        } finally {
+            metrics.persisted(System.nanoTime() - start);
+            InvitationFlightRecorder.commit(persistEvent, project, invitationType);
+        }
+    }
+
+    /**
+     * SHA-256 hash of the token, identifies an invitation where the token itself must not be kept: it lets anyone accept the invitation.
+     */
+    @NotNull
+    static String tokenHash(@NotNull String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static boolean isInvitation(@NotNull SProjectFeatureDescriptor feature) {
+        return PROJECT_FEATURE_TYPE.equals(feature.getType());
     }
 
     private Invitation fromProjectFeature(SProject project, SProjectFeatureDescriptor feature) {
         InvitationType invitationType = invitationTypes.get(feature.getParameters().get(INVITATION_TYPE));
         return invitationType.readFrom(feature.getParameters(), project);
     }
+
+    private static final class ProjectInvitations {
+        @NotNull
+        private final List<Invitation> invitations;
+        private final int enabledCount;
+        private final boolean hasInheritable;
+        @NotNull
+        private final Set<String> tokens;
+        @Nullable
+        private volatile VisibleCounts visibleCounts;
+        @Nullable
+        private volatile Validation validation;
+
+        private ProjectInvitations(@NotNull List<Invitation> invitations) {
+            this.invitations = Collections.unmodifiableList(invitations);
+            this.tokens = invitations.stream().map(Invitation::getToken).collect(toSet());
+            this.enabledCount = (int) invitations.stream().filter(Invitation::isEnabled).count();
+            this.hasInheritable = invitations.stream().anyMatch(Invitation::isInheritable);
+        }
+
+        private int countVisibleEnabled(@NotNull AuthorityHolder user) {
+            return (int) invitations.stream()
+                    .filter(Invitation::isEnabled)
+                    .filter(invitation -> invitation.isAvailableFor(user))
+                    .count();
+        }
+    }
+
+    /**
+     * Invitations grouped by a key. Modified under the storage lock only; readers may briefly see both the old and the
+     * new instance of a re-indexed invitation, so results are deduplicated by token.
+     */
+    private static final class SecondaryIndex<K> {
+        @NotNull
+        private final Function<Invitation, K> keyOf;
+        private final ConcurrentMap<K, Set<Invitation>> byKey = new ConcurrentHashMap<>();
+
+        private SecondaryIndex(@NotNull Function<Invitation, K> keyOf) {
+            this.keyOf = keyOf;
+        }
+
+        private void add(@NotNull Invitation invitation) {
+            K key = keyOf.apply(invitation);
+            if (key != null) {
+                byKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(invitation);
+            }
+        }
+
+        private void remove(@NotNull Invitation invitation) {
+            K key = keyOf.apply(invitation);
+            if (key != null) {
+                byKey.computeIfPresent(key, (k, invitations) -> {
+                    invitations.remove(invitation);
+                    return invitations.isEmpty() ? null : invitations;
+                });
+            }
+        }
+
+        @NotNull
+        private Set<K> keys() {
+            return new HashSet<>(byKey.keySet());
+        }
+
+        @NotNull
+        private List<Invitation> get(@NotNull K key) {
+            Set<Invitation> invitations = byKey.get(key);
+            if (invitations == null) {
+                return Collections.emptyList();
+            }
+            Map<String, Invitation> byToken = new LinkedHashMap<>();
+            invitations.forEach(invitation -> byToken.put(invitation.getToken(), invitation));
+            return new ArrayList<>(byToken.values());
+        }
+    }
+
+    private static final class VisibleCounts {
+        private final long revision;
+        private final int maxSize;
+        private final ConcurrentMap<Long, Integer> byUser = new ConcurrentHashMap<>();
+
+        private VisibleCounts(long revision, int maxSize) {
+            this.revision = revision;
+            this.maxSize = maxSize;
+        }
+    }
+
+    private static final class Validation {
+        /**
+         * Validation errors by token of invalid invitations.
+         */
+        @NotNull
+        private final Map<String, String> errors;
+
+        private Validation(@NotNull Map<String, String> errors) {
+            this.errors = errors;
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Locale;
+
+/**
+ * Starts, polls and cancels {@link InvitationsSubtreeOperations}. POST with {@code projectId} and {@code action}
+ * ({@code disable}, {@code enable} or {@code remove}) starts an operation, GET with {@code id} returns its state,
+ * POST with {@code id} and {@code cancel=true} cancels it. Only the user who started an operation can see it.
+ */
+public class InvitationsSubtreeController extends BaseController {
+    static final String PATH = "/admin/invitationsSubtree.html";
+
+    @NotNull
+    private final InvitationsSubtreeOperations subtreeOperations;
+    @NotNull
+    private final TeamCityCoreFacade core;
+
+    public InvitationsSubtreeController(@NotNull WebControllerManager webControllerManager,
+                                        @NotNull InvitationsSubtreeOperations subtreeOperations,
+                                        @NotNull TeamCityCoreFacade core) {
+        this.subtreeOperations = subtreeOperations;
+        this.core = core;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Authentication required");
+            return null;
+        }
+
+        InvitationsSubtreeOperations.Operation operation;
+        String id = request.getParameter("id");
+        if (!StringUtil.isEmptyOrSpaces(id)) {
+            operation = subtreeOperations.getOperation(id, user.getId());
+            if (operation == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown operation '" + id + "'");
+                return null;
+            }
+            if ("POST".equals(request.getMethod()) && Boolean.parseBoolean(request.getParameter("cancel"))) {
+                operation.cancel();
+            }
+        } else {
+            if (!"POST".equals(request.getMethod())) {
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Operations must be started with POST");
+                return null;
+            }
+            SProject project = core.findProjectByExtId(request.getParameter("projectId"));
+            if (project == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Project '" + request.getParameter("projectId") + "' not found");
+                return null;
+            }
+            String actionParam = request.getParameter("action");
+            InvitationsSubtreeOperations.Action action;
+            try {
+                action = InvitationsSubtreeOperations.Action.valueOf(String.valueOf(actionParam).trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action '" + actionParam + "'");
+                return null;
+            }
+            operation = subtreeOperations.start(user, project, action);
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        JsonWriter json = new JsonWriter(response.getWriter());
+        operation.writeJson(json);
+        json.flush();
+        return null;
+    }
+}
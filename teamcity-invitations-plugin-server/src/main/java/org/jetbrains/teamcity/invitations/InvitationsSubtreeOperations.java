@@ -0,0 +1,270 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Disables, enables or removes all invitations of a project and its subprojects.
+ * <p>
+ * Projects of the subtree are changed in parallel by {@code teamcity.invitations.subtree.threads} workers, every project is
+ * persisted once and only its part of the {@link InvitationsStorage} index is rebuilt. Only invitations the user could change
+ * one by one are changed, the others are reported as skipped. An operation can be cancelled: projects which were not started
+ * yet are left as they are. Operations can be polled by their id for {@code teamcity.invitations.subtree.statusTtlSeconds}
+ * after they finished.
+ */
+@ThreadSafe
+public class InvitationsSubtreeOperations implements DisposableBean {
+
+    static final String THREADS_PROPERTY = "teamcity.invitations.subtree.threads";
+    static final String STATUS_TTL_PROPERTY = "teamcity.invitations.subtree.statusTtlSeconds";
+
+    public enum Action {
+        DISABLE, ENABLE, REMOVE
+    }
+
+    public enum State {
+        QUEUED, DONE, FAILED, CANCELLED
+    }
+
+    @NotNull
+    private final InvitationsStorage invitations;
+    @NotNull
+    private final TeamCityCoreFacade core;
+    @NotNull
+    private final ExecutorService workers;
+    @NotNull
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+
+    public InvitationsSubtreeOperations(@NotNull InvitationsStorage invitations, @NotNull TeamCityCoreFacade core) {
+        this.invitations = invitations;
+        this.core = core;
+        int threads = Math.max(1, TeamCityProperties.getInteger(THREADS_PROPERTY, 4));
+        workers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Invitations subtree operation"));
+    }
+
+    /**
+     * Starts applying the action to the invitations of the project and its subprojects on behalf of the user.
+     */
+    @NotNull
+    public Operation start(@NotNull SUser user, @NotNull SProject root, @NotNull Action action) {
+        expireOperations();
+        Map<String, List<Invitation>> byProject = invitations.getInvitationsInSubtree(root);
+        List<ProjectResult> projects = new ArrayList<>();
+        for (List<Invitation> projectInvitations : byProject.values()) {
+            projects.add(new ProjectResult(projectInvitations.get(0).getProject(), projectInvitations));
+        }
+        projects.sort(Comparator.comparing(p -> p.project.getFullName()));
+
+        Operation operation = new Operation(user, root, action, projects);
+        operations.put(operation.id, operation);
+        Loggers.ACTIVITIES.info("User " + user.describe(false) + " started to " + operation.getActionName() + " invitations of "
+                + projects.size() + " projects in the subtree of " + root.describe(false));
+        for (ProjectResult project : projects) {
+            try {
+                workers.execute(() -> operation.apply(project));
+            } catch (RejectedExecutionException e) {
+                operation.finish(project, State.CANCELLED, 0, 0, "The server is shutting down");
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * Returns the operation with the given id if it was started by the user.
+     */
+    @Nullable
+    public Operation getOperation(@NotNull String id, long userId) {
+        Operation operation = operations.get(id);
+        return operation != null && operation.user.getId() == userId ? operation : null;
+    }
+
+    private void expireOperations() {
+        long ttlNanos = TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger(STATUS_TTL_PROPERTY, 3600));
+        long now = System.nanoTime();
+        operations.values().removeIf(o -> o.finishedAtNanos != 0 && now - o.finishedAtNanos > ttlNanos);
+    }
+
+    @Override
+    public void destroy() {
+        workers.shutdownNow();
+    }
+
+    public final class Operation {
+        @NotNull
+        private final String id = StringUtil.generateUniqueHash();
+        @NotNull
+        private final SUser user;
+        @NotNull
+        private final SProject root;
+        @NotNull
+        private final Action action;
+        @NotNull
+        private final List<ProjectResult> projects;
+        @NotNull
+        private final AtomicInteger remaining;
+        @NotNull
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        private volatile long finishedAtNanos;
+
+        private Operation(@NotNull SUser user, @NotNull SProject root, @NotNull Action action, @NotNull List<ProjectResult> projects) {
+            this.user = user;
+            this.root = root;
+            this.action = action;
+            this.projects = projects;
+            this.remaining = new AtomicInteger(projects.size());
+            if (projects.isEmpty()) {
+                markDone();
+            }
+        }
+
+        private void apply(@NotNull ProjectResult project) {
+            if (cancelled) {
+                finish(project, State.CANCELLED, 0, 0, null);
+                return;
+            }
+            try {
+                List<String> tokens = new ArrayList<>();
+                int skipped = core.runAsSystem(() -> {
+                    int notAvailable = 0;
+                    for (Invitation invitation : project.invitations) {
+                        if (!invitation.isAvailableFor(user)) {
+                            notAvailable++;
+                        } else if (action == Action.REMOVE || invitation.isEnabled() == (action == Action.DISABLE)) {
+                            tokens.add(invitation.getToken());
+                        }
+                    }
+                    return notAvailable;
+                });
+                String description = tokens.size() + " invitations " + getActionName() + "d in the subtree of the project " + root.getExternalId()
+                        + " by " + user.describe(false);
+                int changed = core.runAsSystem(() -> action == Action.REMOVE
+                        ? invitations.removeInvitations(project.project, tokens, description)
+                        : invitations.setInvitationsEnabled(project.project, tokens, action == Action.ENABLE, description));
+                finish(project, State.DONE, changed, skipped, null);
+            } catch (Exception e) {
+                Loggers.SERVER.warn("Failed to " + getActionName() + " invitations of the project " + project.project.describe(false), e);
+                finish(project, State.FAILED, 0, 0, e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        }
+
+        private void finish(@NotNull ProjectResult project, @NotNull State state, int changed, int skipped, @Nullable String error) {
+            project.changed = changed;
+            project.skipped = skipped;
+            project.error = error;
+            project.state = state;
+            if (remaining.decrementAndGet() == 0) {
+                markDone();
+                Loggers.ACTIVITIES.info("User " + user.describe(false) + (cancelled ? " cancelled" : " finished") + " the operation to "
+                        + getActionName() + " invitations in the subtree of " + root.describe(false) + ", " + getChangedCount() + " invitations changed");
+            }
+        }
+
+        private void markDone() {
+            finishedAtNanos = System.nanoTime();
+            done.countDown();
+        }
+
+        /**
+         * Projects which were not started yet are not changed, the project being changed at the moment is finished.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Waits until all projects are processed, returns false if the timeout passed first.
+         */
+        public boolean await(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        @NotNull
+        public String getId() {
+            return id;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public int getChangedCount() {
+            return projects.stream().mapToInt(p -> p.changed).sum();
+        }
+
+        public int getSkippedCount() {
+            return projects.stream().mapToInt(p -> p.skipped).sum();
+        }
+
+        @NotNull
+        public Map<String, State> getProjectStates() {
+            Map<String, State> result = new LinkedHashMap<>();
+            projects.forEach(p -> result.put(p.project.getExternalId(), p.state));
+            return result;
+        }
+
+        @NotNull
+        private String getActionName() {
+            return action.name().toLowerCase(Locale.ENGLISH);
+        }
+
+        public void writeJson(@NotNull JsonWriter json) throws IOException {
+            json.beginObject()
+                    .property("id", id)
+                    .property("project", root.getExternalId())
+                    .property("action", getActionName())
+                    .property("done", isDone())
+                    .property("cancelled", cancelled)
+                    .property("changed", getChangedCount())
+                    .property("skipped", getSkippedCount());
+            json.name("projects").beginArray();
+            for (ProjectResult project : projects) {
+                json.beginObject()
+                        .property("project", project.project.getExternalId())
+                        .property("state", project.state.name())
+                        .property("invitations", project.invitations.size())
+                        .property("changed", project.changed)
+                        .property("skipped", project.skipped)
+                        .property("error", project.error)
+                        .endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+
+    private static final class ProjectResult {
+        @NotNull
+        private final SProject project;
+        @NotNull
+        private final List<Invitation> invitations;
+        @NotNull
+        private volatile State state = State.QUEUED;
+        private volatile int changed;
+        private volatile int skipped;
+        @Nullable
+        private volatile String error;
+
+        private ProjectResult(@NotNull SProject project, @NotNull List<Invitation> invitations) {
+            this.project = project;
+            this.invitations = invitations;
+        }
+    }
+}
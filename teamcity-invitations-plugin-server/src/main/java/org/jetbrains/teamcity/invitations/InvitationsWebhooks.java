@@ -0,0 +1,415 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Posts invitation events to webhooks configured by the {@code InvitationsWebhook} project feature.
+ * <p>
+ * The feature has the {@code url} parameter and the optional {@code events} parameter with comma-separated
+ * {@link InvitationEvent.Type event types}, {@code ACCEPTED} by default. It receives the events of its project and all subprojects.
+ * <p>
+ * Events come from {@link InvitationEventBus}, so the requests producing them never wait for the network. They are appended to
+ * an outbox file per webhook under the plugin data directory, which is read back on startup, and every
+ * {@code teamcity.invitations.webhooks.intervalSeconds} the outboxes are sent as JSON {@code {"events": [...]}} in batches of up to
+ * {@code teamcity.invitations.webhooks.batchSize} events. A webhook that fails is retried with exponential backoff starting from
+ * {@code teamcity.invitations.webhooks.retryInitialMillis} up to {@code teamcity.invitations.webhooks.maxBackoffSeconds}. An outbox
+ * keeps at most {@code teamcity.invitations.webhooks.maxOutboxEvents} events, the oldest are dropped.
+ * <p>
+ * The token of an invitation lets anyone accept it, so it is neither sent nor written to the outboxes: events identify the
+ * invitation by {@code invitationId}, the SHA-256 hash of the token, along with its project and name.
+ */
+@ThreadSafe
+public class InvitationsWebhooks implements InvitationEventListener, DisposableBean {
+
+    static final String FEATURE_TYPE = "InvitationsWebhook";
+    static final String URL_PARAM = "url";
+    static final String EVENTS_PARAM = "events";
+
+    static final String INTERVAL_PROPERTY = "teamcity.invitations.webhooks.intervalSeconds";
+    static final String BATCH_SIZE_PROPERTY = "teamcity.invitations.webhooks.batchSize";
+    static final String RETRY_INITIAL_PROPERTY = "teamcity.invitations.webhooks.retryInitialMillis";
+    static final String MAX_BACKOFF_PROPERTY = "teamcity.invitations.webhooks.maxBackoffSeconds";
+    static final String MAX_OUTBOX_PROPERTY = "teamcity.invitations.webhooks.maxOutboxEvents";
+    static final String TIMEOUT_PROPERTY = "teamcity.invitations.webhooks.timeoutMillis";
+
+    private static final String OUTBOX_SUFFIX = ".ndjson";
+
+    @NotNull
+    private final TeamCityCoreFacade core;
+    @NotNull
+    private final File outboxDirectory;
+    @NotNull
+    private final ConcurrentMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+    @NotNull
+    private final InvitationEventBus.Subscription subscription;
+    @NotNull
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Invitations webhooks"));
+
+    private final LongAdder eventsDelivered = new LongAdder();
+    private final LongAdder batchesDelivered = new LongAdder();
+    private final LongAdder deliveryFailures = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+
+    public InvitationsWebhooks(@NotNull InvitationEventBus eventBus, @NotNull TeamCityCoreFacade core, @NotNull InvitationsMetrics metrics) {
+        this.core = core;
+        this.outboxDirectory = new File(core.getPluginDataDirectory(), "invitations/webhooks");
+        loadOutboxes();
+        metrics.registerGauge("webhookEventsQueued", () -> outboxes.values().stream().mapToLong(Outbox::size).sum());
+        metrics.registerGauge("webhookEventsDelivered", eventsDelivered::sum);
+        metrics.registerGauge("webhookBatchesDelivered", batchesDelivered::sum);
+        metrics.registerGauge("webhookDeliveryFailures", deliveryFailures::sum);
+        metrics.registerGauge("webhookEventsDropped", eventsDropped::sum);
+        subscription = eventBus.subscribe(this, null, Collections.emptySet());
+        int interval = Math.max(1, TeamCityProperties.getInteger(INTERVAL_PROPERTY, 10));
+        executor.scheduleWithFixedDelay(this::scheduledDelivery, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void invitationEvents(@NotNull List<InvitationEvent> events) {
+        Map<String, List<SProjectFeatureDescriptor>> webhooksByProject = new HashMap<>();
+        Map<Outbox, List<String>> added = new LinkedHashMap<>();
+        for (InvitationEvent event : events) {
+            String line = null;
+            for (String projectId : event.getProjectPath()) {
+                List<SProjectFeatureDescriptor> webhooks = webhooksByProject.computeIfAbsent(projectId, this::findWebhooks);
+                for (SProjectFeatureDescriptor webhook : webhooks) {
+                    if (!getEventTypes(webhook).contains(event.getType())) {
+                        continue;
+                    }
+                    if (line == null) {
+                        line = toJson(event);
+                    }
+                    Outbox outbox = outboxes.computeIfAbsent(outboxKey(projectId, webhook.getId()), key -> new Outbox(projectId, webhook.getId()));
+                    added.computeIfAbsent(outbox, o -> new ArrayList<>()).add(line);
+                }
+            }
+        }
+        added.forEach(Outbox::add);
+    }
+
+    /**
+     * Sends the outboxes of webhooks which are not waiting for a retry.
+     */
+    void deliver() {
+        long now = System.currentTimeMillis();
+        for (Outbox outbox : outboxes.values()) {
+            if (outbox.size() == 0 || outbox.nextAttemptAt > now) {
+                continue;
+            }
+            String url = core.runAsSystem(() -> findUrl(outbox));
+            if (url == null) {
+                Loggers.SERVER.info("Webhook " + outbox.featureId + " of the project " + outbox.projectId + " is removed, discarding its " + outbox.size() + " undelivered invitation events");
+                outbox.clear();
+                continue;
+            }
+            int batchSize = Math.max(1, TeamCityProperties.getInteger(BATCH_SIZE_PROPERTY, 500));
+            Batch batch;
+            while (!(batch = outbox.peek(batchSize)).events.isEmpty()) {
+                try {
+                    post(url, batch.events);
+                } catch (IOException e) {
+                    outbox.failures++;
+                    long backoff = Math.min(TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(MAX_BACKOFF_PROPERTY, 3600)),
+                            TeamCityProperties.getInteger(RETRY_INITIAL_PROPERTY, 5000) * (1L << Math.min(outbox.failures - 1, 30)));
+                    outbox.nextAttemptAt = System.currentTimeMillis() + backoff;
+                    deliveryFailures.increment();
+                    Loggers.SERVER.warn("Failed to deliver " + batch.events.size() + " invitation events to " + url + ", retrying in " + backoff + "ms: " + e.getMessage());
+                    break;
+                }
+                outbox.remove(batch);
+                outbox.failures = 0;
+                eventsDelivered.add(batch.events.size());
+                batchesDelivered.increment();
+            }
+        }
+    }
+
+    long getQueuedCount() {
+        return outboxes.values().stream().mapToLong(Outbox::size).sum();
+    }
+
+    private void scheduledDelivery() {
+        try {
+            deliver();
+        } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to deliver invitation events to webhooks", e);
+        }
+    }
+
+    private void post(@NotNull String url, @NotNull List<String> batch) throws IOException {
+        int timeout = TeamCityProperties.getInteger(TIMEOUT_PROPERTY, 10000);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            try (Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8)) {
+                out.write("{\"events\":[");
+                out.write(String.join(",", batch));
+                out.write("]}");
+            }
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                body.close();
+            }
+            if (status / 100 != 2) {
+                throw new IOException("Unexpected response " + status);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @NotNull
+    private List<SProjectFeatureDescriptor> findWebhooks(@NotNull String projectId) {
+        return core.runAsSystem(() -> {
+            SProject project = core.findProjectByIntId(projectId);
+            return project != null ? new ArrayList<>(project.getOwnFeaturesOfType(FEATURE_TYPE)) : Collections.<SProjectFeatureDescriptor>emptyList();
+        });
+    }
+
+    @Nullable
+    private String findUrl(@NotNull Outbox outbox) {
+        for (SProjectFeatureDescriptor webhook : findWebhooks(outbox.projectId)) {
+            if (webhook.getId().equals(outbox.featureId)) {
+                String url = webhook.getParameters().get(URL_PARAM);
+                return StringUtil.isEmptyOrSpaces(url) ? null : url.trim();
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    private static Set<InvitationEvent.Type> getEventTypes(@NotNull SProjectFeatureDescriptor webhook) {
+        String events = webhook.getParameters().get(EVENTS_PARAM);
+        if (StringUtil.isEmptyOrSpaces(events)) {
+            return EnumSet.of(InvitationEvent.Type.ACCEPTED);
+        }
+        Set<InvitationEvent.Type> result = EnumSet.noneOf(InvitationEvent.Type.class);
+        for (String type : events.split(",")) {
+            try {
+                result.add(InvitationEvent.Type.valueOf(type.trim().toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException e) {
+                //unknown types are ignored
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static String toJson(@NotNull InvitationEvent event) {
+        StringWriter result = new StringWriter();
+        try {
+            JsonWriter json = new JsonWriter(result).beginObject()
+                    .property("type", event.getType().name())
+                    .property("invitationId", InvitationsStorage.tokenHash(event.getToken()))
+                    .property("name", event.getName())
+                    .property("invitationType", event.getInvitationTypeId())
+                    .property("project", event.getProjectExternalId())
+                    .property("timestamp", event.getTimestamp());
+            if (event.getUserId() != null) {
+                json.property("userId", event.getUserId());
+            }
+            json.endObject().flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    @NotNull
+    private static String outboxKey(@NotNull String projectId, @NotNull String featureId) {
+        return projectId + "." + featureId;
+    }
+
+    private void loadOutboxes() {
+        File[] files = outboxDirectory.listFiles((dir, name) -> name.endsWith(OUTBOX_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String key = file.getName().substring(0, file.getName().length() - OUTBOX_SUFFIX.length());
+            int separator = key.indexOf('.');
+            if (separator <= 0) {
+                continue;
+            }
+            Outbox outbox = new Outbox(key.substring(0, separator), key.substring(separator + 1));
+            try {
+                outbox.load();
+                outboxes.put(key, outbox);
+            } catch (IOException e) {
+                Loggers.SERVER.warn("Failed to read the invitation webhook outbox " + file, e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        subscription.unsubscribe();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Events read from an outbox together with the sequence number of the first one.
+     */
+    private static final class Batch {
+        private final long firstSequence;
+        @NotNull
+        private final List<String> events;
+
+        private Batch(long firstSequence, @NotNull List<String> events) {
+            this.firstSequence = firstSequence;
+            this.events = events;
+        }
+    }
+
+    /**
+     * Events are numbered in the order they are added, the number of the first event in the queue is {@code headSequence}.
+     * Events leave the queue only from the head, when delivered, trimmed or cleared, so a delivered batch is removed by its
+     * sequence numbers and events trimmed while it was being sent don't make newer events go with it.
+     */
+    private final class Outbox {
+        @NotNull
+        private final String projectId;
+        @NotNull
+        private final String featureId;
+        @NotNull
+        private final File file;
+        @GuardedBy("this")
+        private final ArrayDeque<String> events = new ArrayDeque<>();
+        @GuardedBy("this")
+        private long headSequence;
+        private volatile int failures;
+        private volatile long nextAttemptAt;
+
+        private Outbox(@NotNull String projectId, @NotNull String featureId) {
+            this.projectId = projectId;
+            this.featureId = featureId;
+            this.file = new File(outboxDirectory, outboxKey(projectId, featureId) + OUTBOX_SUFFIX);
+        }
+
+        private synchronized void load() throws IOException {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("{") && line.endsWith("}")) {//a line can be cut by a crash while appending
+                    events.add(line);
+                }
+            }
+            if (trim()) {
+                rewrite();
+            }
+        }
+
+        private synchronized void add(@NotNull List<String> lines) {
+            events.addAll(lines);
+            if (trim()) {
+                rewrite();
+                return;
+            }
+            try {
+                Files.createDirectories(outboxDirectory.toPath());
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+                    for (String line : lines) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                }
+            } catch (IOException e) {
+                Loggers.SERVER.warn("Failed to write the invitation webhook outbox " + file + ", the events will be lost on restart", e);
+            }
+        }
+
+        /**
+         * Drops the oldest events above the limit, returns true if some were dropped.
+         */
+        private boolean trim() {
+            int max = Math.max(1, TeamCityProperties.getInteger(MAX_OUTBOX_PROPERTY, 10000));
+            boolean trimmed = false;
+            while (events.size() > max) {
+                events.poll();
+                headSequence++;
+                eventsDropped.increment();
+                trimmed = true;
+            }
+            return trimmed;
+        }
+
+        @NotNull
+        private synchronized Batch peek(int max) {
+            List<String> result = new ArrayList<>(Math.min(max, events.size()));
+            Iterator<String> it = events.iterator();
+            while (it.hasNext() && result.size() < max) {
+                result.add(it.next());
+            }
+            return new Batch(headSequence, result);
+        }
+
+        /**
+         * Removes the events of the batch which are still queued, events trimmed in the meantime are already gone.
+         */
+        private synchronized void remove(@NotNull Batch batch) {
+            long end = batch.firstSequence + batch.events.size();
+            while (headSequence < end && !events.isEmpty()) {
+                events.poll();
+                headSequence++;
+            }
+            rewrite();
+        }
+
+        private synchronized void clear() {
+            headSequence += events.size();
+            events.clear();
+            rewrite();
+        }
+
+        private synchronized int size() {
+            return events.size();
+        }
+
+        private void rewrite() {
+            try {
+                if (events.isEmpty()) {
+                    Files.deleteIfExists(file.toPath());
+                    return;
+                }
+                Files.createDirectories(outboxDirectory.toPath());
+                File tmp = new File(outboxDirectory, file.getName() + ".tmp");
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                    for (String line : events) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Loggers.SERVER.warn("Failed to write the invitation webhook outbox " + file, e);
+            }
+        }
+    }
+}
@@ -8,8 +8,6 @@ import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
 import jetbrains.buildServer.serverSide.auth.Permission;
 import jetbrains.buildServer.serverSide.auth.Role;
-import jetbrains.buildServer.serverSide.auth.RoleScope;
-import jetbrains.buildServer.serverSide.impl.auth.ServerAuthUtil;
 import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.web.util.SessionUser;
@@ -24,15 +22,18 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
-import static java.util.stream.Collectors.toList;
-
 public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjectInvitationType.InvitationImpl> implements InvitationType<JoinProjectInvitationType.InvitationImpl> {
 
     private final TeamCityCoreFacade core;
+    private final RolesAndGroupsCache rolesAndGroups;
+    private final InvitationAcceptanceExecutor acceptanceExecutor;
 
-    public JoinProjectInvitationType(InvitationsStorage invitationsStorage, TeamCityCoreFacade core, InvitationLandingProvider invitationLandingProvider) {
+    public JoinProjectInvitationType(InvitationsStorage invitationsStorage, TeamCityCoreFacade core, InvitationLandingProvider invitationLandingProvider,
+                                     RolesAndGroupsCache rolesAndGroups, InvitationAcceptanceExecutor acceptanceExecutor) {
         super(invitationsStorage, core, invitationLandingProvider);
         this.core = core;
+        this.rolesAndGroups = rolesAndGroups;
+        this.acceptanceExecutor = acceptanceExecutor;
     }
 
     @NotNull
@@ -66,6 +67,7 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         modelAndView.getModel().put("groups", availableGroups);
 
         modelAndView.getModel().put("multiuser", invitation == null ? "true" : invitation.multi);
+        modelAndView.getModel().put("inheritable", invitation != null && invitation.isInheritable());
 
         String preselectedRole = null;
         String preselectedGroup = null;
@@ -93,18 +95,12 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
 
     @NotNull
     private List<SUserGroup> getAvailableGroups(@NotNull AuthorityHolder user, @NotNull SProject project) {
-        return core.getAvailableGroups().stream()
-                .filter(group -> !group.getRolesWithScope(RoleScope.projectScope(project.getProjectId())).isEmpty())
-                .filter(group -> ServerAuthUtil.canAddToRemoveFromGroup(user, group))
-                .collect(toList());
+        return rolesAndGroups.getAssignableGroups(user, project);
     }
 
     @NotNull
     private List<Role> getAvailableRoles(@NotNull AuthorityHolder currentUser, @NotNull SProject project) {
-        return core.getAvailableRoles().stream()
-                .filter(Role::isProjectAssociationSupported)
-                .filter(role -> ServerAuthUtil.canChangeUserOrGroupRole(currentUser, RoleScope.projectScope(project.getProjectId()), role))
-                .collect(toList());
+        return rolesAndGroups.getAssignableRoles(currentUser, project);
     }
 
     @Override
@@ -116,6 +112,25 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         }
     }
 
+    @Override
+    public void validate(@NotNull InvitationImpl invitation, @NotNull AuthorityHolder user, @NotNull ActionErrors errors) {
+        validateTexts(invitation.getName(), invitation.getWelcomeText(), errors);
+        String roleId = invitation.roleId;
+        String groupKey = invitation.groupKey;
+        if (StringUtil.isEmptyOrSpaces(roleId) && StringUtil.isEmptyOrSpaces(groupKey)) {
+            errors.addError(new InvalidProperty("role", "Either the role or the group must be specified"));
+            errors.addError(new InvalidProperty("group", "Either the role or the group must be specified"));
+            return;
+        }
+        SProject project = invitation.getProject();
+        if (roleId != null && getAvailableRoles(user, project).stream().noneMatch(role -> role.getId().equals(roleId))) {
+            errors.addError(new InvalidProperty("role", "Role '" + roleId + "' doesn't exist or can't be given in the project"));
+        }
+        if (groupKey != null && getAvailableGroups(user, project).stream().noneMatch(group -> group.getKey().equals(groupKey))) {
+            errors.addError(new InvalidProperty("group", "Group '" + groupKey + "' doesn't exist or can't be given in the project"));
+        }
+    }
+
     @NotNull
     @Override
     public InvitationImpl createNewInvitation(@NotNull HttpServletRequest request, @NotNull SProject project, @NotNull String token) {
@@ -149,6 +164,8 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         private final String roleId;
         @Nullable
         private final String groupKey;
+        @Nullable
+        private volatile ResolvedRoleAndGroup resolved;
 
         InvitationImpl(@NotNull SUser currentUser, @NotNull String name, @NotNull String token, @NotNull SProject project, @Nullable String roleId,
                        @Nullable String groupKey, boolean multi, @NotNull String welcomeText) {
@@ -186,50 +203,79 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         @Nullable
         @Override
         public String getValidationError() {
-            String result = "";
-            if (roleId != null && JoinProjectInvitationType.this.core.findRoleById(roleId) == null) {
-                result += "Role '" + roleId + "' doesn't exists anymore";
-            }
-            if (groupKey != null && JoinProjectInvitationType.this.core.findGroup(groupKey) == null) {
-                if (!result.isEmpty()) result += "; ";
-                result += "Group '" + groupKey + "' doesn't exists anymore";
-            }
-            return result.isEmpty() ? null : result;
+            return resolve().validationError;
         }
 
         @NotNull
         public ModelAndView invitationAccepted(@NotNull SUser user, @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
+            Object acceptEvent = InvitationFlightRecorder.begin(InvitationFlightRecorder.Kind.ACCEPT);
+            boolean singleUse = !isReusable();
+            boolean claimHandedOver = false;
+            if (singleUse && !claim(this)) {
+                Loggers.SERVER.warn("User " + user.describe(false) + " accepted the single user invitation " + describe(false) + " which is already used");
+                InvitationFlightRecorder.commit(acceptEvent, project, getType());
+                return new ModelAndView(new RedirectView("/", true));
+            }
             try {
-                SProject created = core.runAsSystem(() -> {
-                    Role role = getRole();
-                    SUserGroup group = getGroup();
-                    if (role == null && group == null) {
-                        throw new InvitationException("Failed to proceed invitation with a non-existing role '" + roleId + "' and group '" + groupKey + "'");
-                    }
-
-                    if (role != null) core.addRole(user, role, project.getProjectId());
-                    if (group != null) core.assignToGroup(user, group);
-
-                    return project;
-                });
-
-                invitationWorkflowFinished(this);
-
-                return new ModelAndView(new RedirectView("/project.html?projectId=" + created.getExternalId(), true));
+                Role role = getRole();
+                SUserGroup group = getGroup();
+                if (role == null && group == null) {
+                    throw new InvitationException("Failed to proceed invitation with a non-existing role '" + roleId + "' and group '" + groupKey + "'");
+                }
+
+                String projectUrl = "/project.html?projectId=" + project.getExternalId();
+                if (acceptanceExecutor.isEnabled()) {
+                    String acceptanceId = acceptanceExecutor.submit(project.getProjectId(), user.getId(), projectUrl, () -> {
+                        try {
+                            grant(user, role, group);
+                        } finally {
+                            if (singleUse) releaseClaim(this);
+                        }
+                    });
+                    claimHandedOver = true;
+                    ModelAndView pending = new ModelAndView(core.getPluginResourcesPath("invitationAcceptancePending.jsp"));
+                    pending.getModel().put("statusUrl", InvitationAcceptanceStatusController.PATH + "?id=" + acceptanceId);
+                    pending.getModel().put("projectUrl", projectUrl);
+                    return pending;
+                }
+
+                grant(user, role, group);
+                return new ModelAndView(new RedirectView(projectUrl, true));
+            } catch (AcceptanceRejectedException e) {
+                throw e;
             } catch (Exception e) {
                 Loggers.SERVER.warn("Failed to create project for the invited user " + user.describe(false), e);
                 return new ModelAndView(new RedirectView("/", true));
+            } finally {
+                if (singleUse && !claimHandedOver) releaseClaim(this);
+                InvitationFlightRecorder.commit(acceptEvent, project, getType());
             }
         }
 
+        private void grant(@NotNull SUser user, @Nullable Role role, @Nullable SUserGroup group) {
+            core.runAsSystem(() -> {
+                if (role != null) core.addRole(user, role, project.getProjectId());
+                if (group != null) core.assignToGroup(user, group);
+                return null;
+            });
+            invitationWorkflowFinished(this, user);
+        }
+
         @Nullable
         public Role getRole() {
-            return roleId != null ? JoinProjectInvitationType.this.core.findRoleById(roleId) : null;
+            return resolve().role;
         }
 
         @Nullable
         public SUserGroup getGroup() {
-            return groupKey != null ? JoinProjectInvitationType.this.core.findGroup(groupKey) : null;
+            return resolve().group;
+        }
+
+        @NotNull
+        private ResolvedRoleAndGroup resolve() {
+            ResolvedRoleAndGroup result = rolesAndGroups.resolve(resolved, roleId, groupKey);
+            resolved = result;
+            return result;
         }
 
         @Nullable
@@ -237,11 +283,13 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
             return JoinProjectInvitationType.this.core.getUser(createdByUserId);
         }
 
+        @Override
         @Nullable
         public String getRoleId() {
             return roleId;
         }
 
+        @Override
         @Nullable
         public String getGroupKey() {
             return groupKey;
@@ -250,9 +298,11 @@ public class JoinProjectInvitationType extends AbstractInvitationType<JoinProjec
         @NotNull
         @Override
         public String describe(boolean verbose) {
+            Role role = getRole();
+            SUserGroup group = getGroup();
             return "'join " + project.describe(false) + ", " +
-                    "role: " + (getRole() != null ? getRole().describe(false) : " <empty>") +
-                    ", group: " + (getGroup() != null ? getGroup().describe(false) : " <empty>") + "'";
+                    "role: " + (role != null ? role.describe(false) : " <empty>") +
+                    ", group: " + (group != null ? group.describe(false) : " <empty>") + "'";
         }
     }
 }
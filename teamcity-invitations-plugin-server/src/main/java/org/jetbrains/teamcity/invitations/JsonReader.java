@@ -0,0 +1,145 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader for flat objects with string values, the counterpart of {@link JsonWriter} for the lines
+ * of invitation exports. Null values are skipped, anything else than a string or null is rejected.
+ */
+public final class JsonReader {
+
+    @NotNull
+    private final String text;
+    private int pos;
+
+    private JsonReader(@NotNull String text) {
+        this.text = text;
+    }
+
+    @NotNull
+    public static Map<String, String> parseFlatObject(@NotNull String text) {
+        JsonReader reader = new JsonReader(text);
+        Map<String, String> result = reader.readObject();
+        reader.skipWhitespace();
+        if (reader.pos != text.length()) {
+            throw reader.error("Unexpected content after the object");
+        }
+        return result;
+    }
+
+    @NotNull
+    private Map<String, String> readObject() {
+        Map<String, String> result = new LinkedHashMap<>();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return result;
+        }
+        while (true) {
+            skipWhitespace();
+            String name = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (text.startsWith("null", pos)) {
+                pos += 4;
+            } else {
+                result.put(name, readString());
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return result;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    @NotNull
+    private String readString() {
+        expect('"');
+        StringBuilder result = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return result.toString();
+            }
+            if (c != '\\') {
+                result.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    result.append(escaped);
+                    break;
+                case 'b':
+                    result.append('\b');
+                    break;
+                case 'f':
+                    result.append('\f');
+                    break;
+                case 'n':
+                    result.append('\n');
+                    break;
+                case 'r':
+                    result.append('\r');
+                    break;
+                case 't':
+                    result.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length()) {
+                        throw error("Truncated unicode escape");
+                    }
+                    try {
+                        result.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Malformed unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw error("Unknown escape '\\" + escaped + "'");
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    private char peek() {
+        if (pos >= text.length()) {
+            throw error("Unexpected end of input");
+        }
+        return text.charAt(pos);
+    }
+
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    @NotNull
+    private IllegalArgumentException error(@NotNull String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,152 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer: values are written straight to the underlying writer, nothing is buffered.
+ */
+public class JsonWriter {
+
+    @NotNull
+    private final Writer out;
+    private boolean needComma;
+
+    public JsonWriter(@NotNull Writer out) {
+        this.out = out;
+    }
+
+    @NotNull
+    public JsonWriter beginObject() throws IOException {
+        separate();
+        out.write('{');
+        needComma = false;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter endObject() throws IOException {
+        out.write('}');
+        needComma = true;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter beginArray() throws IOException {
+        separate();
+        out.write('[');
+        needComma = false;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter endArray() throws IOException {
+        out.write(']');
+        needComma = true;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter name(@NotNull String name) throws IOException {
+        separate();
+        writeString(name);
+        out.write(':');
+        needComma = false;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter value(@Nullable String value) throws IOException {
+        separate();
+        if (value == null) {
+            out.write("null");
+        } else {
+            writeString(value);
+        }
+        needComma = true;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        needComma = true;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter value(double value) throws IOException {
+        separate();
+        out.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+        needComma = true;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        needComma = true;
+        return this;
+    }
+
+    @NotNull
+    public JsonWriter property(@NotNull String name, @Nullable String value) throws IOException {
+        return name(name).value(value);
+    }
+
+    @NotNull
+    public JsonWriter property(@NotNull String name, long value) throws IOException {
+        return name(name).value(value);
+    }
+
+    @NotNull
+    public JsonWriter property(@NotNull String name, boolean value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void separate() throws IOException {
+        if (needComma) {
+            out.write(',');
+        }
+    }
+
+    private void writeString(@NotNull String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,135 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.RoleEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the user groups holding roles in a project.
+ * <p>
+ * The index maps project ids to the groups with roles scoped to the project. It is built from all groups on the first lookup
+ * and updated from the group events the server sends: created and deleted groups. The server doesn't report roles given to
+ * or taken from a group, so the index is also rebuilt when it gets older than {@code teamcity.invitations.rolesAndGroups.maxAgeMillis},
+ * the same period {@link RolesAndGroupsCache} moves its revision on.
+ * <p>
+ * The index is an immutable snapshot replaced on every change, group events are rare and lookups don't lock.
+ */
+@ThreadSafe
+public class ProjectGroupsIndex {
+
+    @NotNull
+    private final TeamCityCoreFacade core;
+
+    @Nullable
+    private volatile Snapshot snapshot;
+
+    public ProjectGroupsIndex(@NotNull TeamCityCoreFacade core) {
+        this.core = core;
+        core.addRolesAndGroupsListener(new RolesAndGroupsListener() {
+            @Override
+            public void rolesChanged() {
+                //roles of users and role definitions don't change which groups have roles in a project
+            }
+
+            @Override
+            public void groupChanged(@NotNull SUserGroup group) {
+                update(group, false);
+            }
+
+            @Override
+            public void groupRemoved(@NotNull SUserGroup group) {
+                update(group, true);
+            }
+        });
+    }
+
+    /**
+     * Returns groups which have at least one role scoped to the project.
+     */
+    @NotNull
+    public Collection<SUserGroup> getGroupsWithRolesIn(@NotNull String projectId) {
+        List<SUserGroup> groups = getSnapshot().groupsByProject.get(projectId);
+        return groups != null ? groups : Collections.emptyList();
+    }
+
+    @NotNull
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current != null && !current.isExpired()) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current == null || current.isExpired()) {
+                current = snapshot = build();
+            }
+            return current;
+        }
+    }
+
+    @NotNull
+    private Snapshot build() {
+        Map<String, List<SUserGroup>> groupsByProject = new HashMap<>();
+        for (SUserGroup group : core.runAsSystem(core::getAvailableGroups)) {
+            for (String projectId : getProjectIds(group)) {
+                groupsByProject.computeIfAbsent(projectId, id -> new ArrayList<>()).add(group);
+            }
+        }
+        long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(TeamCityProperties.getInteger(RolesAndGroupsCache.MAX_AGE_PROPERTY, 60000));
+        return new Snapshot(System.nanoTime() + maxAgeNanos, groupsByProject);
+    }
+
+    private synchronized void update(@NotNull SUserGroup group, boolean removed) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return;//built on the first lookup
+        }
+        Map<String, List<SUserGroup>> groupsByProject = new HashMap<>();
+        for (Map.Entry<String, List<SUserGroup>> entry : current.groupsByProject.entrySet()) {
+            List<SUserGroup> groups = new ArrayList<>(entry.getValue());
+            groups.removeIf(g -> g.getKey().equals(group.getKey()));
+            if (!groups.isEmpty()) {
+                groupsByProject.put(entry.getKey(), groups);
+            }
+        }
+        if (!removed) {
+            for (String projectId : getProjectIds(group)) {
+                groupsByProject.computeIfAbsent(projectId, id -> new ArrayList<>()).add(group);
+            }
+        }
+        snapshot = new Snapshot(current.expiresAt, groupsByProject);
+    }
+
+    @NotNull
+    private static Set<String> getProjectIds(@NotNull SUserGroup group) {
+        Set<String> projectIds = new HashSet<>();
+        for (RoleEntry entry : new ArrayList<>(group.getRoles())) {
+            String projectId = entry.getScope().getProjectId();
+            if (!entry.getScope().isGlobal() && projectId != null) {
+                projectIds.add(projectId);
+            }
+        }
+        return projectIds;
+    }
+
+    private static final class Snapshot {
+        private final long expiresAt;
+        @NotNull
+        private final Map<String, List<SUserGroup>> groupsByProject;
+
+        private Snapshot(long expiresAt, @NotNull Map<String, List<SUserGroup>> groupsByProject) {
+            this.expiresAt = expiresAt;
+            this.groupsByProject = groupsByProject;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.serverSide.auth.Role;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Role and group of an invitation as they were at the given {@link RolesAndGroupsCache} revision.
+ */
+@Immutable
+final class ResolvedRoleAndGroup {
+    final long revision;
+    @Nullable
+    final Role role;
+    @Nullable
+    final SUserGroup group;
+    @Nullable
+    final String validationError;
+
+    ResolvedRoleAndGroup(long revision, @Nullable String roleId, @Nullable Role role, @Nullable String groupKey, @Nullable SUserGroup group) {
+        this.revision = revision;
+        this.role = role;
+        this.group = group;
+
+        String error = "";
+        if (roleId != null && role == null) {
+            error += "Role '" + roleId + "' doesn't exists anymore";
+        }
+        if (groupKey != null && group == null) {
+            if (!error.isEmpty()) error += "; ";
+            error += "Group '" + groupKey + "' doesn't exists anymore";
+        }
+        this.validationError = error.isEmpty() ? null : error;
+    }
+}
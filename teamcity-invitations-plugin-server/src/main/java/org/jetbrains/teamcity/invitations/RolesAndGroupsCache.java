@@ -0,0 +1,245 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.Role;
+import jetbrains.buildServer.serverSide.auth.RoleScope;
+import jetbrains.buildServer.serverSide.impl.auth.ServerAuthUtil;
+import jetbrains.buildServer.users.SUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Tracks changes of roles and user groups with a revision number, so invitations can keep their resolved role and group
+ * until something changes instead of looking them up on every call. The server reports only some of the changes: not roles
+ * removed from or edited in the server configuration, nor roles of users and groups. So the revision also moves on when it
+ * gets older than {@code teamcity.invitations.rolesAndGroups.maxAgeMillis}.
+ * <p>
+ * Also caches which roles and groups a user can hand out in a project. Computing them scans all roles of the server and
+ * checks the groups {@link ProjectGroupsIndex} finds in the project, and the admin tab does it for every invitation it shows. Cached decisions are dropped on any change of roles or groups,
+ * and since revoked roles are usually not reported, they are also kept no longer than
+ * {@code teamcity.invitations.authorizationCache.maxAgeMillis}. When {@code teamcity.invitations.authorizationCache.maxSize}
+ * decisions are cached, the expired ones are dropped, then the oldest ones until a quarter of the cache is free.
+ * <p>
+ * The properties are read once per revision, so changed values apply from the next one.
+ */
+@ThreadSafe
+public class RolesAndGroupsCache {
+
+    static final String MAX_DECISIONS_PROPERTY = "teamcity.invitations.authorizationCache.maxSize";
+    static final String MAX_AGE_PROPERTY = "teamcity.invitations.rolesAndGroups.maxAgeMillis";
+    static final String MAX_DECISION_AGE_PROPERTY = "teamcity.invitations.authorizationCache.maxAgeMillis";
+
+    @NotNull
+    private final TeamCityCoreFacade core;
+
+    @NotNull
+    private final ProjectGroupsIndex groupsIndex;
+
+    @NotNull
+    private final AtomicLong revision = new AtomicLong();
+
+    @NotNull
+    private volatile Settings settings = new Settings();
+
+    @NotNull
+    private final ConcurrentMap<DecisionKey, Decision> decisions = new ConcurrentHashMap<>();
+
+    public RolesAndGroupsCache(@NotNull TeamCityCoreFacade core, @NotNull ProjectGroupsIndex groupsIndex) {
+        this.core = core;
+        this.groupsIndex = groupsIndex;
+        core.addRolesAndGroupsListener(new RolesAndGroupsListener() {
+            @Override
+            public void rolesChanged() {
+                invalidate();
+            }
+
+            @Override
+            public void groupChanged(@NotNull SUserGroup group) {
+                invalidate();
+            }
+
+            @Override
+            public void groupRemoved(@NotNull SUserGroup group) {
+                invalidate();
+            }
+        });
+    }
+
+    public long getRevision() {
+        if (System.nanoTime() - settings.revisionExpiresAt >= 0) {
+            invalidate();
+        }
+        return revision.get();
+    }
+
+    public void invalidate() {
+        settings = new Settings();
+        revision.incrementAndGet();
+        decisions.clear();
+    }
+
+    /**
+     * Returns the previously resolved role and group if nothing has changed since, resolves them again otherwise.
+     */
+    @NotNull
+    ResolvedRoleAndGroup resolve(@Nullable ResolvedRoleAndGroup previous, @Nullable String roleId, @Nullable String groupKey) {
+        long current = getRevision();
+        if (previous != null && previous.revision == current) {
+            return previous;
+        }
+        return new ResolvedRoleAndGroup(current, roleId, roleId != null ? core.findRoleById(roleId) : null,
+                groupKey, groupKey != null ? core.findGroup(groupKey) : null);
+    }
+
+    /**
+     * Project roles the user is allowed to give in the project.
+     */
+    @NotNull
+    List<Role> getAssignableRoles(@NotNull AuthorityHolder user, @NotNull SProject project) {
+        Decision decision = getDecision(user, project);
+        if (decision == null) {
+            return computeAssignableRoles(user, project);
+        }
+        List<Role> roles = decision.roles;
+        if (roles == null) {
+            roles = decision.roles = computeAssignableRoles(user, project);
+        }
+        return roles;
+    }
+
+    /**
+     * Groups having roles in the project which the user is allowed to add users to.
+     */
+    @NotNull
+    List<SUserGroup> getAssignableGroups(@NotNull AuthorityHolder user, @NotNull SProject project) {
+        Decision decision = getDecision(user, project);
+        if (decision == null) {
+            return computeAssignableGroups(user, project);
+        }
+        List<SUserGroup> groups = decision.groups;
+        if (groups == null) {
+            groups = decision.groups = computeAssignableGroups(user, project);
+        }
+        return groups;
+    }
+
+    @Nullable
+    private Decision getDecision(@NotNull AuthorityHolder user, @NotNull SProject project) {
+        if (!(user instanceof SUser) || AdditionalPermissionsUserWrapper.isWrappedUser(user)) {
+            return null;
+        }
+        long current = getRevision();
+        Settings currentSettings = settings;
+        DecisionKey key = new DecisionKey(((SUser) user).getId(), project.getProjectId());
+        Decision decision = decisions.get(key);
+        if (decision == null || decision.isExpired(current, currentSettings)) {
+            if (decisions.size() >= currentSettings.maxDecisions) {
+                evict(current, currentSettings);
+            }
+            decision = new Decision(current);
+            decisions.put(key, decision);
+        }
+        return decision;
+    }
+
+    /**
+     * Drops expired decisions, then the oldest ones until a quarter of the cache is free.
+     */
+    private void evict(long current, @NotNull Settings currentSettings) {
+        decisions.values().removeIf(decision -> decision.isExpired(current, currentSettings));
+        int excess = decisions.size() - currentSettings.maxDecisions * 3 / 4;
+        if (excess <= 0) {
+            return;
+        }
+        decisions.entrySet().stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().createdAt))
+                .limit(excess)
+                .map(Map.Entry::getKey)
+                .collect(toList())
+                .forEach(decisions::remove);
+    }
+
+    @NotNull
+    private List<Role> computeAssignableRoles(@NotNull AuthorityHolder user, @NotNull SProject project) {
+        RoleScope scope = RoleScope.projectScope(project.getProjectId());
+        return Collections.unmodifiableList(core.getAvailableRoles().stream()
+                .filter(Role::isProjectAssociationSupported)
+                .filter(role -> ServerAuthUtil.canChangeUserOrGroupRole(user, scope, role))
+                .collect(toList()));
+    }
+
+    @NotNull
+    private List<SUserGroup> computeAssignableGroups(@NotNull AuthorityHolder user, @NotNull SProject project) {
+        return Collections.unmodifiableList(groupsIndex.getGroupsWithRolesIn(project.getProjectId()).stream()
+                .filter(group -> ServerAuthUtil.canAddToRemoveFromGroup(user, group))
+                .collect(toList()));
+    }
+
+    private static final class DecisionKey {
+        private final long userId;
+        @NotNull
+        private final String projectId;
+
+        private DecisionKey(long userId, @NotNull String projectId) {
+            this.userId = userId;
+            this.projectId = projectId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DecisionKey)) return false;
+            DecisionKey that = (DecisionKey) o;
+            return userId == that.userId && projectId.equals(that.projectId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(userId) + projectId.hashCode();
+        }
+    }
+
+    private static final class Decision {
+        private final long revision;
+        private final long createdAt = System.nanoTime();
+        @Nullable
+        private volatile List<Role> roles;
+        @Nullable
+        private volatile List<SUserGroup> groups;
+
+        private Decision(long revision) {
+            this.revision = revision;
+        }
+
+        private boolean isExpired(long currentRevision, @NotNull Settings settings) {
+            return revision != currentRevision || System.nanoTime() - createdAt >= settings.maxDecisionAgeNanos;
+        }
+    }
+
+    private static final class Settings {
+        private final long revisionExpiresAt;
+        private final long maxDecisionAgeNanos;
+        private final int maxDecisions;
+
+        private Settings() {
+            revisionExpiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TeamCityProperties.getInteger(MAX_AGE_PROPERTY, 60000));
+            maxDecisionAgeNanos = TimeUnit.MILLISECONDS.toNanos(TeamCityProperties.getInteger(MAX_DECISION_AGE_PROPERTY, 10000));
+            maxDecisions = Math.max(1, TeamCityProperties.getInteger(MAX_DECISIONS_PROPERTY, 10000));
+        }
+    }
+}
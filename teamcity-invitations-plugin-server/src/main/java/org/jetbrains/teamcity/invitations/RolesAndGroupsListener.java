@@ -0,0 +1,25 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.groups.SUserGroup;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Changes of roles and user groups reported by {@link TeamCityCoreFacade#addRolesAndGroupsListener(RolesAndGroupsListener)}.
+ */
+public interface RolesAndGroupsListener {
+
+    /**
+     * Roles of a user or role definitions of the server have changed.
+     */
+    default void rolesChanged() {
+    }
+
+    /**
+     * The group was created, or its roles or members have changed.
+     */
+    default void groupChanged(@NotNull SUserGroup group) {
+    }
+
+    default void groupRemoved(@NotNull SUserGroup group) {
+    }
+}
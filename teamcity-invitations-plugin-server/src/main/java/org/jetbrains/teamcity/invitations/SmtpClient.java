@@ -0,0 +1,187 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Minimal SMTP client sending several messages in one session, only what {@link InvitationEmailQueue} needs:
+ * EHLO, STARTTLS or SSL with the certificate checked against the host name, AUTH PLAIN, and MAIL/RCPT/DATA per message
+ * with RSET after a rejected message.
+ */
+final class SmtpClient implements Closeable {
+
+    /**
+     * Error response of the server. The session can be used for the next message after it.
+     */
+    static final class SmtpException extends IOException {
+        private final int code;
+
+        SmtpException(int code, @NotNull String message) {
+            super(message);
+            this.code = code;
+        }
+
+        /**
+         * 5xx responses mean that the message won't be accepted if it is sent again.
+         */
+        boolean isPermanent() {
+            return code >= 500;
+        }
+    }
+
+    @NotNull
+    private Socket socket;
+    @NotNull
+    private BufferedReader in;
+    @NotNull
+    private Writer out;
+
+    private SmtpClient(@NotNull Socket socket) throws IOException {
+        attach(socket);
+    }
+
+    @NotNull
+    static SmtpClient connect(@NotNull SmtpSettings settings, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(settings.getHost(), settings.getPort()), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            if (settings.getSecurity() == SmtpSettings.Security.SSL) {
+                socket = startTls(socket, settings.getHost(), settings.getPort());
+            }
+            SmtpClient client = new SmtpClient(socket);
+            client.expect(220);
+            String domain = getLocalDomain();
+            client.command("EHLO " + domain, 250);
+            if (settings.getSecurity() == SmtpSettings.Security.STARTTLS) {
+                client.command("STARTTLS", 220);
+                client.attach(startTls(socket, settings.getHost(), settings.getPort()));
+                client.command("EHLO " + domain, 250);
+            }
+            String login = settings.getLogin();
+            if (login != null && !login.isEmpty()) {
+                String password = settings.getPassword() != null ? settings.getPassword() : "";
+                String credentials = Base64.getEncoder().encodeToString(("\0" + login + "\0" + password).getBytes(StandardCharsets.UTF_8));
+                client.command("AUTH PLAIN " + credentials, 235);
+            }
+            return client;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Layers TLS over the connected socket. The certificate must be valid for the host name of the server, as for HTTPS.
+     */
+    @NotNull
+    private static SSLSocket startTls(@NotNull Socket socket, @NotNull String host, int port) throws IOException {
+        SSLSocket tls = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+        SSLParameters parameters = tls.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        tls.setSSLParameters(parameters);
+        tls.setSoTimeout(socket.getSoTimeout());
+        tls.startHandshake();
+        return tls;
+    }
+
+    /**
+     * Sends the message, lines of which must be separated with CRLF.
+     */
+    void send(@NotNull String from, @NotNull String to, @NotNull String message) throws IOException {
+        try {
+            command("MAIL FROM:<" + from + ">", 250);
+            command("RCPT TO:<" + to + ">", 250);
+            command("DATA", 354);
+            for (String line : message.split("\r\n", -1)) {
+                if (line.startsWith(".")) {
+                    out.write('.');
+                }
+                out.write(line);
+                out.write("\r\n");
+            }
+            command(".", 250);
+        } catch (SmtpException e) {
+            try {
+                command("RSET", 250);
+            } catch (SmtpException ignored) {
+                //the next message will fail too if the session is broken
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            command("QUIT", 221);
+        } catch (IOException ignored) {
+            //the session is over anyway
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void attach(@NotNull Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    private void command(@NotNull String command, int expectedCode) throws IOException {
+        out.write(command);
+        out.write("\r\n");
+        out.flush();
+        expect(expectedCode);
+    }
+
+    /**
+     * Reads a possibly multiline response, 251 is accepted where 250 is expected.
+     */
+    private void expect(int expectedCode) throws IOException {
+        String line;
+        StringBuilder text = new StringBuilder();
+        do {
+            line = in.readLine();
+            if (line == null) {
+                throw new EOFException("Connection closed by the SMTP server");
+            }
+            if (line.length() < 3) {
+                throw new IOException("Malformed SMTP response: " + line);
+            }
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(line.length() > 4 ? line.substring(4) : "");
+        } while (line.length() > 3 && line.charAt(3) == '-');
+
+        int code;
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed SMTP response: " + line);
+        }
+        if (code != expectedCode && !(expectedCode == 250 && code == 251)) {
+            throw new SmtpException(code, code + " " + text);
+        }
+    }
+
+    @NotNull
+    private static String getLocalDomain() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+}
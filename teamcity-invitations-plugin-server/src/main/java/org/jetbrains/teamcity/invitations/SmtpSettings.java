@@ -0,0 +1,73 @@
+package org.jetbrains.teamcity.invitations;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * SMTP server the invitation emails are sent through, see {@link TeamCityCoreFacade#getSmtpSettings()}.
+ */
+@Immutable
+public final class SmtpSettings {
+
+    public enum Security {
+        NONE, STARTTLS, SSL
+    }
+
+    @NotNull
+    private final String host;
+    private final int port;
+    @Nullable
+    private final String login;
+    @Nullable
+    private final String password;
+    @NotNull
+    private final String from;
+    @NotNull
+    private final Security security;
+
+    public SmtpSettings(@NotNull String host, int port, @Nullable String login, @Nullable String password, @NotNull String from, @NotNull Security security) {
+        this.host = host;
+        this.port = port;
+        this.login = login;
+        this.password = password;
+        this.from = from;
+        this.security = security;
+    }
+
+    @NotNull
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Null or empty if the server doesn't require authentication.
+     */
+    @Nullable
+    public String getLogin() {
+        return login;
+    }
+
+    @Nullable
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * Address the emails are sent from.
+     */
+    @NotNull
+    public String getFrom() {
+        return from;
+    }
+
+    @NotNull
+    public Security getSecurity() {
+        return security;
+    }
+}
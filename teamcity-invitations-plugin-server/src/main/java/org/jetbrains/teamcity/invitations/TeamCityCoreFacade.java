@@ -8,6 +8,7 @@ import jetbrains.buildServer.users.SUser;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Supplier;
@@ -37,6 +38,11 @@ public interface TeamCityCoreFacade {
 
     void assignToGroup(@NotNull SUser user, @NotNull SUserGroup group);
 
+    /**
+     * The listener is notified when roles or user groups are added, removed or changed, and when roles or groups of a user change.
+     */
+    void addRolesAndGroupsListener(@NotNull RolesAndGroupsListener listener);
+
     //PROJECTS
     @NotNull
     SProject createProject(@NotNull String parentExtId, @NotNull String name);
@@ -58,4 +64,17 @@ public interface TeamCityCoreFacade {
     @NotNull
     String getPluginResourcesPath(@NotNull String path);
 
+    /**
+     * Directory for the data plugins keep outside of the project configs.
+     */
+    @NotNull
+    File getPluginDataDirectory();
+
+    //EMAIL
+    /**
+     * SMTP settings of the invitation emails from the plugin configuration, null if sending emails is not configured.
+     */
+    @Nullable
+    SmtpSettings getSmtpSettings();
+
 }
@@ -1,7 +1,10 @@
 package org.jetbrains.teamcity.invitations;
 
 import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.groups.UserGroup;
+import jetbrains.buildServer.groups.UserGroupListenerAdapter;
 import jetbrains.buildServer.groups.UserGroupManager;
+import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
 import jetbrains.buildServer.serverSide.auth.Role;
@@ -9,17 +12,31 @@ import jetbrains.buildServer.serverSide.auth.RoleScope;
 import jetbrains.buildServer.serverSide.auth.RolesManager;
 import jetbrains.buildServer.serverSide.identifiers.ProjectIdentifiersManager;
 import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.User;
 import jetbrains.buildServer.users.UserModel;
+import jetbrains.buildServer.users.UserModelListenerAdapter;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 import java.util.function.Supplier;
 
 public class TeamCityCoreFacadeImpl implements TeamCityCoreFacade {
+    static final String SMTP_HOST_PROPERTY = "teamcity.invitations.email.smtp.host";
+    static final String SMTP_PORT_PROPERTY = "teamcity.invitations.email.smtp.port";
+    static final String SMTP_LOGIN_PROPERTY = "teamcity.invitations.email.smtp.login";
+    static final String SMTP_PASSWORD_PROPERTY = "teamcity.invitations.email.smtp.password";
+    static final String SMTP_FROM_PROPERTY = "teamcity.invitations.email.smtp.from";
+    static final String SMTP_SECURITY_PROPERTY = "teamcity.invitations.email.smtp.security";
+
     private final RolesManager rolesManager;
     private final ProjectManager projectManager;
     private final ProjectIdentifiersManager projectIdentifiersManager;
@@ -28,9 +45,12 @@ public class TeamCityCoreFacadeImpl implements TeamCityCoreFacade {
     private final PluginDescriptor pluginDescriptor;
     private final UserModel userModel;
     private final ConfigActionFactory myConfigActionFactory;
+    private final EventDispatcher<BuildServerListener> serverEvents;
+    private final ServerPaths serverPaths;
 
     public TeamCityCoreFacadeImpl(RolesManager rolesManager, ProjectManager projectManager, ProjectIdentifiersManager projectIdentifiersManager, SecurityContextEx securityContext,
-                                  UserGroupManager userGroupManager, PluginDescriptor pluginDescriptor, UserModel userModel, ConfigActionFactory myConfigActionFactory) {
+                                  UserGroupManager userGroupManager, PluginDescriptor pluginDescriptor, UserModel userModel, ConfigActionFactory myConfigActionFactory,
+                                  EventDispatcher<BuildServerListener> serverEvents, ServerPaths serverPaths) {
         this.rolesManager = rolesManager;
         this.projectManager = projectManager;
         this.projectIdentifiersManager = projectIdentifiersManager;
@@ -39,6 +59,8 @@ public class TeamCityCoreFacadeImpl implements TeamCityCoreFacade {
         this.pluginDescriptor = pluginDescriptor;
         this.userModel = userModel;
         this.myConfigActionFactory = myConfigActionFactory;
+        this.serverEvents = serverEvents;
+        this.serverPaths = serverPaths;
     }
 
     @Nullable
@@ -82,6 +104,39 @@ public class TeamCityCoreFacadeImpl implements TeamCityCoreFacade {
         group.addUser(user);
     }
 
+    @Override
+    public void addRolesAndGroupsListener(@NotNull RolesAndGroupsListener listener) {
+        userModel.addListener(new UserModelListenerAdapter() {
+            @Override
+            public void userAccountChanged(User user) {
+                listener.rolesChanged();
+            }
+
+            @Override
+            public void userAccountRemoved(User user) {
+                listener.rolesChanged();
+            }
+        });
+        userGroupManager.addListener(new UserGroupListenerAdapter() {
+            @Override
+            public void groupCreated(@NotNull UserGroup group) {
+                if (group instanceof SUserGroup) listener.groupChanged((SUserGroup) group);
+            }
+
+            @Override
+            public void groupDeleted(@NotNull UserGroup group) {
+                if (group instanceof SUserGroup) listener.groupRemoved((SUserGroup) group);
+            }
+        });
+        //roles are defined in the main server configuration
+        serverEvents.addListener(new BuildServerAdapter() {
+            @Override
+            public void serverConfigurationReloaded() {
+                listener.rolesChanged();
+            }
+        });
+    }
+
     @NotNull
     @Override
     public List<SProject> getActiveProjects() {
@@ -138,4 +193,34 @@ public class TeamCityCoreFacadeImpl implements TeamCityCoreFacade {
     public String getPluginResourcesPath(@NotNull String path) {
         return pluginDescriptor.getPluginResourcesPath(path);
     }
+
+    @NotNull
+    @Override
+    public File getPluginDataDirectory() {
+        return serverPaths.getPluginDataDirectory();
+    }
+
+    /**
+     * SMTP settings of the invitation emails from the {@code teamcity.invitations.email.smtp.*} internal properties,
+     * emails are not sent while the host or the sender address is not set.
+     */
+    @Nullable
+    @Override
+    public SmtpSettings getSmtpSettings() {
+        String host = TeamCityProperties.getPropertyOrNull(SMTP_HOST_PROPERTY);
+        String from = TeamCityProperties.getPropertyOrNull(SMTP_FROM_PROPERTY);
+        if (StringUtil.isEmptyOrSpaces(host) || StringUtil.isEmptyOrSpaces(from)) {
+            return null;
+        }
+        SmtpSettings.Security security;
+        try {
+            security = SmtpSettings.Security.valueOf(TeamCityProperties.getProperty(SMTP_SECURITY_PROPERTY, "NONE").trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            Loggers.SERVER.warn("Unknown " + SMTP_SECURITY_PROPERTY + " value, expected one of " + Arrays.toString(SmtpSettings.Security.values()));
+            return null;
+        }
+        int port = TeamCityProperties.getInteger(SMTP_PORT_PROPERTY, security == SmtpSettings.Security.SSL ? 465 : 25);
+        return new SmtpSettings(host.trim(), port, TeamCityProperties.getPropertyOrNull(SMTP_LOGIN_PROPERTY),
+                TeamCityProperties.getPropertyOrNull(SMTP_PASSWORD_PROPERTY), from.trim(), security);
+    }
 }
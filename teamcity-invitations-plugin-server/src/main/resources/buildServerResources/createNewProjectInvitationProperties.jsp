@@ -33,5 +33,6 @@
     <%@ include file="fragments/displayNameParam.jspf" %>
     <%@ include file="fragments/welcomeTextParam.jspf" %>
     <%@ include file="fragments/reusableParam.jspf" %>
+    <%@ include file="fragments/inheritableParam.jspf" %>
 
 </table>
\ No newline at end of file
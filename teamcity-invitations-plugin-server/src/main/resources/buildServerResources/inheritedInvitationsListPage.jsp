@@ -0,0 +1,17 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ include file="/include-internal.jsp" %>
+<%--@elvariable id="page" type="org.jetbrains.teamcity.invitations.InvitationsPage"--%>
+<c:forEach items="${page.invitations}" var="inherited">
+    <%--@elvariable id="inherited" type="org.jetbrains.teamcity.invitations.Invitation"--%>
+    <tr style="${not inherited.enabled ? 'color: #888': ''}">
+        <td>
+            <c:out value="${inherited.name}"/>
+            <c:if test="${!inherited.enabled}"> (disabled)</c:if>
+        </td>
+        <td>
+            <a href="<c:url value='/admin/editProject.html?projectId=${inherited.project.externalId}&tab=invitations'/>"><c:out
+                    value="${inherited.project.fullName}"/></a>
+        </td>
+    </tr>
+</c:forEach>
+<tr class="invitationsPageInfo" data-next-offset="${page.nextOffset}" data-has-more="${page.hasMore}" data-total="${page.total}"></tr>
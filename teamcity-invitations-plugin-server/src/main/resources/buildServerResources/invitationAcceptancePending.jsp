@@ -0,0 +1,58 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="bs" tagdir="/WEB-INF/tags" %>
+<%@ include file="/include-internal.jsp" %>
+<%--@elvariable id="statusUrl" type="java.lang.String"--%>
+<%--@elvariable id="projectUrl" type="java.lang.String"--%>
+<c:url value="${statusUrl}" var="statusFullUrl"/>
+<c:url value="${projectUrl}" var="projectFullUrl"/>
+
+<bs:externalPage>
+    <jsp:attribute name="page_title">Accepting invitation</jsp:attribute>
+    <jsp:attribute name="head_include">
+    <bs:linkCSS>
+      /css/forms.css
+      /css/maintenance-initialPages-common.css
+      /css/initialPages.css
+    </bs:linkCSS>
+    <bs:linkScript>
+      /js/bs/bs.js
+    </bs:linkScript>
+    <bs:ua/>
+  </jsp:attribute>
+    <jsp:attribute name="body_include">
+
+    <bs:_loginPageDecoration id="loginPage" title="Accepting invitation">
+      <p id="formNote">
+        <span id="acceptancePending">The invitation is accepted, granting you access to the project...</span>
+        <span id="acceptanceFailed" style="display: none">
+            Failed to grant access to the project, please contact the person who invited you. Proceed to the <a
+                href="<c:url value='/overview.html'/>">server</a>.
+        </span>
+      </p>
+    </bs:_loginPageDecoration>
+  </jsp:attribute>
+</bs:externalPage>
+
+<script type="application/javascript">
+    BS.InvitationAcceptance = {
+        poll: function () {
+            $j.getJSON("${statusFullUrl}")
+                .done(function (status) {
+                    if (status.state === "DONE") {
+                        document.location.href = status.redirectTo || "${projectFullUrl}";
+                    } else if (status.state === "FAILED") {
+                        $j('#acceptancePending').hide();
+                        $j('#acceptanceFailed').show();
+                    } else {
+                        setTimeout(BS.InvitationAcceptance.poll, 1000);
+                    }
+                })
+                .fail(function () {
+                    setTimeout(BS.InvitationAcceptance.poll, 5000);
+                });
+        }
+    };
+    $j(function () {
+        BS.InvitationAcceptance.poll();
+    });
+</script>
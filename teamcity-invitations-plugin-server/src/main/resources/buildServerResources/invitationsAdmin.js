@@ -117,4 +117,220 @@ BS.Invitations = {
             }
         });
     }
-};
\ No newline at end of file
+};
+BS.InvitationsEmail = {
+    url: function () {
+        return window['base_uri'] + '/admin/invitationsEmail.html';
+    },
+
+    send: function (token) {
+        var addresses = prompt('Email addresses to send the invitation link to, separated with commas or new lines:');
+        if (!addresses || !addresses.trim()) {
+            return;
+        }
+        $j.post(this.url(), {token: token, addresses: addresses})
+            .done(function (result) {
+                var message = result.queued + ' emails are queued for sending';
+                if (result.invalid.length > 0) {
+                    message += '\nInvalid addresses were skipped: ' + result.invalid.join(', ');
+                }
+                alert(message);
+            })
+            .fail(function (xhr) {
+                alert('Failed to send the invitation: ' + xhr.statusText);
+            });
+    }
+};
+BS.InvitationsList = {
+    filters: ['invitationsFilterType', 'invitationsFilterEnabled', 'invitationsFilterCreatedBy', 'invitationsSort', 'invitationsOrder'],
+    projectId: null,
+    selected: {},
+    nextOffset: 0,
+
+    init: function (projectId) {
+        var that = this;
+        if (this.projectId === projectId) {
+            //the list was refreshed after a change, keep the filters chosen by the user
+            this.filters.forEach(function (id) {
+                if (that.selected[id] !== undefined) {
+                    $j('#' + id).val(that.selected[id]);
+                }
+            });
+        } else {
+            this.selected = {};
+        }
+        this.projectId = projectId;
+        this.reload();
+    },
+
+    reload: function () {
+        var that = this;
+        this.filters.forEach(function (id) {
+            that.selected[id] = $j('#' + id).val();
+        });
+        $j('#invitationsRows').empty();
+        this.nextOffset = 0;
+        this.loadMore();
+    },
+
+    loadMore: function () {
+        var that = this;
+        var progress = $j('#invitationsListProgress').show();
+        $j.get(window['base_uri'] + '/admin/invitations.html', {
+            invitationsPage: true,
+            projectId: this.projectId,
+            offset: this.nextOffset,
+            filterType: this.selected['invitationsFilterType'],
+            enabled: this.selected['invitationsFilterEnabled'],
+            createdBy: this.selected['invitationsFilterCreatedBy'],
+            sort: this.selected['invitationsSort'],
+            order: this.selected['invitationsOrder']
+        }, function (html) {
+            progress.hide();
+            var rows = $j('#invitationsRows');
+            rows.append(html);
+            var info = rows.find('tr.invitationsPageInfo');
+            that.nextOffset = parseInt(info.data('nextOffset'), 10);
+            $j('#invitationsTable').toggle(info.data('total') > 0);
+            $j('#invitationsMore').toggle(info.data('hasMore') === true);
+            $j('#invitationsTotal').text(info.data('total'));
+            info.remove();
+        });
+    }
+};
+
+BS.InheritedInvitationsList = {
+    projectId: null,
+    nextOffset: 0,
+
+    init: function (projectId) {
+        this.projectId = projectId;
+        this.nextOffset = 0;
+        $j('#inheritedInvitationsRows').empty();
+        this.loadMore();
+    },
+
+    loadMore: function () {
+        var that = this;
+        $j.get(window['base_uri'] + '/admin/invitations.html', {
+            invitationsPage: true,
+            inherited: true,
+            projectId: this.projectId,
+            offset: this.nextOffset
+        }, function (html) {
+            var rows = $j('#inheritedInvitationsRows');
+            rows.append(html);
+            var info = rows.find('tr.invitationsPageInfo');
+            that.nextOffset = parseInt(info.data('nextOffset'), 10);
+            $j('#inheritedInvitations').toggle(info.data('total') > 0);
+            $j('#inheritedInvitationsMore').toggle(info.data('hasMore') === true);
+            $j('#inheritedInvitationsTotal').text(info.data('total'));
+            info.remove();
+        });
+    }
+};
+
+BS.InvitationsBulkCreate = {
+    upload: function (input, projectId) {
+        var file = input.files[0];
+        input.value = '';
+        if (!file) {
+            return;
+        }
+        var progress = $j('#invitationsBulkCreateProgress').show();
+        var xhr = new XMLHttpRequest();
+        xhr.open('POST', window['base_uri'] + '/admin/invitationsBulkCreate.html?projectId=' + encodeURIComponent(projectId));
+        xhr.setRequestHeader('Content-Type', 'text/csv; charset=UTF-8');
+        xhr.responseType = 'blob';
+        xhr.onload = function () {
+            progress.hide();
+            if (xhr.status === 200) {
+                var link = document.createElement('a');
+                link.href = URL.createObjectURL(xhr.response);
+                link.download = 'invitations-' + projectId + '.csv';
+                document.body.appendChild(link);
+                link.click();
+                document.body.removeChild(link);
+                BS.InvitationsList.reload();
+            } else {
+                var reader = new FileReader();
+                reader.onload = function () {
+                    alert('Invitations were not created:\n' + reader.result);
+                };
+                reader.readAsText(xhr.response);
+            }
+        };
+        xhr.onerror = function () {
+            progress.hide();
+            alert('Failed to upload ' + file.name);
+        };
+        xhr.send(file);
+    }
+};
+
+BS.InvitationsSubtree = {
+    url: function () {
+        return window['base_uri'] + '/admin/invitationsSubtree.html';
+    },
+
+    start: function (projectId, action) {
+        if (this.id || !confirm('This will ' + (action === 'remove' ? 'revoke' : action) + ' all invitations you can change in this project and its subprojects. Continue?')) {
+            return;
+        }
+        $j('#invitationsSubtreeProgress').show();
+        $j.post(this.url(), {projectId: projectId, action: action})
+            .done(function (operation) {
+                BS.InvitationsSubtree.id = operation.id;
+                $j('#invitationsSubtreeCancel').show();
+                BS.InvitationsSubtree.update(operation);
+            })
+            .fail(function (xhr) {
+                $j('#invitationsSubtreeProgress').hide();
+                alert('Failed to start the operation: ' + xhr.statusText);
+            });
+    },
+
+    poll: function () {
+        $j.getJSON(this.url(), {id: this.id})
+            .done(function (operation) {
+                BS.InvitationsSubtree.update(operation);
+            })
+            .fail(function () {
+                setTimeout(BS.InvitationsSubtree.poll.bind(BS.InvitationsSubtree), 5000);
+            });
+    },
+
+    cancel: function () {
+        if (this.id) {
+            $j.post(this.url(), {id: this.id, cancel: true});
+        }
+    },
+
+    update: function (operation) {
+        var finished = operation.projects.filter(function (project) {
+            return project.state !== 'QUEUED';
+        }).length;
+        var failed = operation.projects.filter(function (project) {
+            return project.state === 'FAILED';
+        }).length;
+        var status = finished + ' of ' + operation.projects.length + ' projects processed, ' + operation.changed + ' invitations changed';
+        if (operation.skipped > 0) {
+            status += ', ' + operation.skipped + ' skipped';
+        }
+        if (failed > 0) {
+            status += ', ' + failed + ' projects failed';
+        }
+        if (operation.done && operation.cancelled) {
+            status += ' (cancelled)';
+        }
+        $j('#invitationsSubtreeStatus').text(status);
+        if (!operation.done) {
+            setTimeout(this.poll.bind(this), 1000);
+            return;
+        }
+        this.id = null;
+        $j('#invitationsSubtreeProgress').hide();
+        $j('#invitationsSubtreeCancel').hide();
+        BS.InvitationsList.reload();
+    }
+};
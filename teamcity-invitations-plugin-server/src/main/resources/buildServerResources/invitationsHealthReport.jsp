@@ -0,0 +1,14 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ include file="/include-internal.jsp" %>
+<%--@elvariable id="healthStatusItem" type="jetbrains.buildServer.serverSide.healthStatus.HealthStatusItem"--%>
+<c:set var="project" value="${healthStatusItem.additionalData['project']}"/>
+<c:set var="invalidInvitations" value="${healthStatusItem.additionalData['invitations']}"/>
+<div>
+    <a href="<c:url value='/admin/editProject.html?projectId=${project.externalId}&tab=invitations'/>"><c:out value="${project.fullName}"/></a>
+    has ${fn:length(invalidInvitations)} invalid invitation<c:if test="${fn:length(invalidInvitations) != 1}">s</c:if>:
+    <ul>
+        <c:forEach items="${invalidInvitations}" var="invitation">
+            <li><c:out value="${invitation.name}"/>: <c:out value="${invitation.validationError}"/></li>
+        </c:forEach>
+    </ul>
+</div>
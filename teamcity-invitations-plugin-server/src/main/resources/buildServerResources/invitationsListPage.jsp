@@ -0,0 +1,70 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ include file="/include-internal.jsp" %>
+<%--@elvariable id="page" type="org.jetbrains.teamcity.invitations.InvitationsPage"--%>
+<c:set var="projectExternalId" value="${project.externalId}"/>
+<c:forEach items="${page.invitations}" var="invitation">
+    <%--@elvariable id="invitation" type="org.jetbrains.teamcity.invitations.Invitation"--%>
+    <c:set value="BS.InvitationDialog.openEditDialog('${invitation.token}', '${invitation.type.description}', '${invitation.type.id}', '${projectExternalId}');"
+           var="onclick"/>
+    <tr style="${not invitation.enabled || invitation.validationError != null ? 'color: #888': ''}">
+        <td class="highlight" onclick="${onclick}">
+            <c:if test="${invitation.validationError != null}">
+                <span class="icon icon16 yellowTriangle" <bs:tooltipAttrs
+                        text="The invitation is not valid anymore and is disabled: ${invitation.validationError}"></bs:tooltipAttrs>></span>
+            </c:if>
+            <c:if test="${invitation.type.description != invitation.name}"><em>(<c:out
+                    value='${invitation.type.description}'/>)</em><br/> </c:if><c:out
+                value='${invitation.name}'/>
+            <c:if test="${!invitation.enabled}"> (disabled)</c:if>
+            <c:if test="${invitation.inheritable}"> (inherited by subprojects)</c:if>
+        </td>
+        <td class="highlight" onclick="${onclick}">
+            <c:set value="${invitation}" scope="request" var="invitation"/>
+            <jsp:include page="${invitation.type.descriptionViewPath}"/>
+        </td>
+        <td class="highlight">
+            <span class="clipboard-btn tc-icon icon16 tc-icon_copy" data-clipboard-action="copy"
+                  data-clipboard-target="#token_${invitation.token}"></span>
+            <span id="token_${invitation.token}"><c:out
+                    value="${invitationRootUrl}?token=${invitation.token}"/></span>
+        </td>
+        <td class="edit highlight" onclick="${onclick}">
+            <a href="#">Edit</a>
+        </td>
+        <td class="edit">
+            <bs:actionsPopup controlId="invitationActions${invitation.token}"
+                             popup_options="shift: {x: -150, y: 20}, className: 'quickLinksMenuPopup'">
+                <jsp:attribute name="content">
+                    <div>
+                        <ul class="menuList">
+                          <l:li>
+                              <c:if test="${invitation.enabled}">
+                                <a href="#"
+                                   onclick="BS.Invitations.setEnabled('${invitation.token}', '${projectExternalId}', false); return false">Disable
+                                    invitation</a>
+                              </c:if>
+                              <c:if test="${!invitation.enabled}">
+                                <a href="#"
+                                   onclick="BS.Invitations.setEnabled('${invitation.token}', '${projectExternalId}', true); return false">Enable
+                                    invitation</a>
+                              </c:if>
+                          </l:li>
+                          <c:if test="${invitation.enabled}">
+                            <l:li>
+                              <a href="#"
+                                 onclick="BS.InvitationsEmail.send('${invitation.token}'); return false">Send by email...</a>
+                            </l:li>
+                          </c:if>
+                            <l:li>
+                            <a href="#"
+                               onclick="BS.Invitations.deleteInvitation('${invitation.token}', '${projectExternalId}'); return false">Delete...</a>
+                          </l:li>
+                        </ul>
+                    </div>
+                </jsp:attribute>
+                <jsp:body/>
+            </bs:actionsPopup>
+        </td>
+    </tr>
+</c:forEach>
+<tr class="invitationsPageInfo" data-next-offset="${page.nextOffset}" data-has-more="${page.hasMore}" data-total="${page.total}"></tr>
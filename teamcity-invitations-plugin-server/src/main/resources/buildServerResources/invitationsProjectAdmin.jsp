@@ -2,7 +2,6 @@
 <%@ taglib prefix="forms" uri="http://www.springframework.org/tags/form" %>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 <%@ include file="/include-internal.jsp" %>
-<jsp:useBean id="invitations" type="java.util.List" scope="request"/>
 <c:set var="projectExternalId" value="${project.externalId}"/>
 <bs:linkScript>
     ${teamcityPluginResourcesPath}invitationsAdmin.js
@@ -63,80 +62,96 @@
         <div>
             <forms:addButton
                     onclick="BS.InvitationDialog.openAddDialog('${projectExternalId}');">Create invitation</forms:addButton>
+            <a href="#" class="invitationsBulkCreate" onclick="$j('#invitationsCsvFile').click(); return false;"
+               title="CSV columns: name, type (join or create), role or group, welcome text, single or multi">Create from CSV...</a>
+            <input type="file" id="invitationsCsvFile" accept=".csv,text/csv" style="display: none"
+                   onchange="BS.InvitationsBulkCreate.upload(this, '${projectExternalId}');"/>
+            <forms:saving id="invitationsBulkCreateProgress" className="progressRingInline"/>
+        </div>
+        <div class="invitationsSubtree">
+            <a href="#" onclick="BS.InvitationsSubtree.start('${projectExternalId}', 'disable'); return false;">Disable all in subtree</a>
+            <a href="#" onclick="BS.InvitationsSubtree.start('${projectExternalId}', 'enable'); return false;">Enable all in subtree</a>
+            <a href="#" onclick="BS.InvitationsSubtree.start('${projectExternalId}', 'remove'); return false;">Revoke all in subtree</a>
+            <forms:saving id="invitationsSubtreeProgress" className="progressRingInline"/>
+            <span id="invitationsSubtreeStatus"></span>
+            <a href="#" id="invitationsSubtreeCancel" style="display: none" onclick="BS.InvitationsSubtree.cancel(); return false;">Cancel</a>
         </div>
     </c:if>
 
     <bs:refreshable containerId="invitationsList" pageUrl="${pageUrl}">
         <bs:messages key="<%=InvitationAdminController.MESSAGES_KEY%>"/>
         <div class="invitationsList">
-            <c:if test="${not empty invitations}">
-                <l:tableWithHighlighting className="parametersTable" highlightImmediately="true">
+            <div class="invitationsFilter">
+                <label for="invitationsFilterType">Type:</label>
+                <select id="invitationsFilterType" onchange="BS.InvitationsList.reload();">
+                    <option value="">All</option>
+                    <c:forEach var="type" items="${filterInvitationTypes}">
+                        <%--@elvariable id="type" type="org.jetbrains.teamcity.invitations.InvitationType"--%>
+                        <option value="${type.id}"><c:out value="${type.description}"/></option>
+                    </c:forEach>
+                </select>
+                <label for="invitationsFilterEnabled">State:</label>
+                <select id="invitationsFilterEnabled" onchange="BS.InvitationsList.reload();">
+                    <option value="">All</option>
+                    <option value="true">Enabled</option>
+                    <option value="false">Disabled</option>
+                </select>
+                <label for="invitationsFilterCreatedBy">Created by:</label>
+                <select id="invitationsFilterCreatedBy" onchange="BS.InvitationsList.reload();">
+                    <option value="">Anyone</option>
+                    <option value="${currentUserId}">Me</option>
+                </select>
+                <label for="invitationsSort">Sort by:</label>
+                <select id="invitationsSort" onchange="BS.InvitationsList.reload();">
+                    <option value="name">Name</option>
+                    <option value="type">Type</option>
+                    <option value="created">Creation time</option>
+                </select>
+                <select id="invitationsOrder" onchange="BS.InvitationsList.reload();">
+                    <option value="asc">Ascending</option>
+                    <option value="desc">Descending</option>
+                </select>
+                <forms:saving id="invitationsListProgress" className="progressRingInline"/>
+            </div>
+            <table id="invitationsTable" class="parametersTable" style="display: none">
+                <thead>
+                <tr>
+                    <th style="width: 20%">Invitation Type</th>
+                    <th style="width: 30%">Description</th>
+                    <th colspan="3">Invitation URL</th>
+                </tr>
+                </thead>
+                <tbody id="invitationsRows"></tbody>
+            </table>
+            <div id="invitationsMore" style="display: none">
+                <a href="#" onclick="BS.InvitationsList.loadMore(); return false">Show more</a>
+                (<span id="invitationsTotal"></span> in total)
+            </div>
+        </div>
+        <c:if test="${hasParentProject}">
+            <div class="inheritedInvitations" id="inheritedInvitations" style="display: none">
+                <h3>Inherited invitations</h3>
+                <table class="parametersTable">
+                    <thead>
                     <tr>
-                        <th style="width: 20%">Invitation Type</th>
-                        <th style="width: 30%">Description</th>
-                        <th colspan="3">Invitation URL</th>
+                        <th style="width: 40%">Invitation</th>
+                        <th>Defined in</th>
                     </tr>
-                    <c:forEach items="${invitations}" var="invitation">
-                        <%--@elvariable id="invitation" type="org.jetbrains.teamcity.invitations.Invitation"--%>
-                        <c:set value="BS.InvitationDialog.openEditDialog('${invitation.token}', '${invitation.type.description}', '${invitation.type.id}', '${projectExternalId}');"
-                               var="onclick"/>
-                        <tr style="${not invitation.enabled || invitation.validationError != null ? 'color: #888': ''}">
-                            <td class="highlight" onclick="${onclick}">
-                                <c:if test="${invitation.validationError != null}">
-                                    <span class="icon icon16 yellowTriangle" <bs:tooltipAttrs
-                                            text="The invitation is not valid anymore and is disabled: ${invitation.validationError}"></bs:tooltipAttrs>></span>
-                                </c:if>
-                                <c:if test="${invitation.type.description != invitation.name}"><em>(<c:out
-                                        value='${invitation.type.description}'/>)</em><br/> </c:if><c:out
-                                    value='${invitation.name}'/>
-                                <c:if test="${!invitation.enabled}"> (disabled)</c:if>
-                            </td>
-                            <td class="highlight" onclick="${onclick}">
-                                <c:set value="${invitation}" scope="request" var="invitation"/>
-                                <jsp:include page="${invitation.type.descriptionViewPath}"/>
-                            </td>
-                            <td class="highlight">
-                                <span class="clipboard-btn tc-icon icon16 tc-icon_copy" data-clipboard-action="copy"
-                                      data-clipboard-target="#token_${invitation.token}"></span>
-                                <span id="token_${invitation.token}"><c:out
-                                        value="${invitationRootUrl}?token=${invitation.token}"/></span>
-                            </td>
-                            <td class="edit highlight" onclick="${onclick}">
-                                <a href="#">Edit</a>
-                            </td>
-                            <td class="edit">
-                                <bs:actionsPopup controlId="invitationActions${invitation.token}"
-                                                 popup_options="shift: {x: -150, y: 20}, className: 'quickLinksMenuPopup'">
-                                    <jsp:attribute name="content">
-                                        <div>
-                                            <ul class="menuList">
-                                              <l:li>
-                                                  <c:if test="${invitation.enabled}">
-                                                    <a href="#"
-                                                       onclick="BS.Invitations.setEnabled('${invitation.token}', '${projectExternalId}', false); return false">Disable
-                                                        invitation</a>
-                                                  </c:if>
-                                                  <c:if test="${!invitation.enabled}">
-                                                    <a href="#"
-                                                       onclick="BS.Invitations.setEnabled('${invitation.token}', '${projectExternalId}', true); return false">Enable
-                                                        invitation</a>
-                                                  </c:if>
-                                              </l:li>
-                                                <l:li>
-                                                <a href="#"
-                                                   onclick="BS.Invitations.deleteInvitation('${invitation.token}', '${projectExternalId}'); return false">Delete...</a>
-                                              </l:li>
-                                            </ul>
-                                        </div>
-                                    </jsp:attribute>
-                                    <jsp:body/>
-                                </bs:actionsPopup>
-                            </td>
-                        </tr>
-                    </c:forEach>
-                </l:tableWithHighlighting>
+                    </thead>
+                    <tbody id="inheritedInvitationsRows"></tbody>
+                </table>
+                <div id="inheritedInvitationsMore" style="display: none">
+                    <a href="#" onclick="BS.InheritedInvitationsList.loadMore(); return false">Show more</a>
+                    (<span id="inheritedInvitationsTotal"></span> in total)
+                </div>
+            </div>
+        </c:if>
+        <script type="text/javascript">
+            BS.InvitationsList.init('${projectExternalId}');
+            <c:if test="${hasParentProject}">
+            BS.InheritedInvitationsList.init('${projectExternalId}');
             </c:if>
-        </div>
+        </script>
     </bs:refreshable>
 
 </div>
@@ -56,6 +56,7 @@
     <%@ include file="fragments/displayNameParam.jspf" %>
     <%@ include file="fragments/welcomeTextParam.jspf" %>
     <%@ include file="fragments/reusableParam.jspf" %>
+    <%@ include file="fragments/inheritableParam.jspf" %>
 
 </table>
 
@@ -0,0 +1,115 @@
+package org.jetbrains.teamcity.invitations;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local SMTP server for tests: accepts everything except recipients with "reject" in the address and records the messages.
+ */
+class FakeSmtpServer implements Closeable {
+
+    static final class Message {
+        final String from;
+        final String to;
+        final String data;
+
+        Message(String from, String to, String data) {
+            this.from = from;
+            this.to = to;
+            this.data = data;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final List<Message> messages = new CopyOnWriteArrayList<>();
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    FakeSmtpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread session = new Thread(() -> serve(socket), "Fake SMTP session");
+                    session.setDaemon(true);
+                    session.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "Fake SMTP server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    SmtpSettings getSettings() {
+        return new SmtpSettings("127.0.0.1", serverSocket.getLocalPort(), null, null, "teamcity@example.com", SmtpSettings.Security.NONE);
+    }
+
+    List<Message> getMessages() {
+        return messages;
+    }
+
+    int getSessionsCount() {
+        return sessions.get();
+    }
+
+    private void serve(Socket socket) {
+        sessions.incrementAndGet();
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            reply(out, "220 localhost ESMTP");
+            String from = null;
+            String to = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                    reply(out, "250-localhost\r\n250 8BITMIME");
+                } else if (command.startsWith("MAIL FROM:")) {
+                    from = line.substring("MAIL FROM:".length());
+                    reply(out, "250 OK");
+                } else if (command.startsWith("RCPT TO:")) {
+                    to = line.substring("RCPT TO:".length());
+                    reply(out, to.contains("reject") ? "550 No such user" : "250 OK");
+                } else if (command.equals("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    StringBuilder data = new StringBuilder();
+                    while (!(line = in.readLine()).equals(".")) {
+                        data.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+                    }
+                    messages.add(new Message(from, to, data.toString()));
+                    reply(out, "250 OK");
+                } else if (command.equals("RSET")) {
+                    from = null;
+                    to = null;
+                    reply(out, "250 OK");
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void reply(Writer out, String reply) throws IOException {
+        out.write(reply);
+        out.write("\r\n");
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -13,13 +13,20 @@ import jetbrains.buildServer.users.impl.RoleEntryImpl;
 import jetbrains.buildServer.users.impl.UserEx;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.ExceptionUtil;
-import jetbrains.buildServer.util.MultiMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.mockito.MockSettings;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 import static java.util.stream.Collectors.toList;
@@ -27,14 +34,24 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
+/**
+ * In-memory TeamCity model. Projects, users, roles and groups are indexed by their ids, so the fake stays cheap for
+ * installations with tens of thousands of projects (see {@link LargeInstallationFixture}), and it can be used from several threads.
+ */
 public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
 
-    private final Map<String, Role> roles = new HashMap<>();
-    private final List<SProject> projects = new ArrayList<>();
-    private final List<SUser> users = new ArrayList<>();
+    private final Map<String, Role> roles = new ConcurrentHashMap<>();
+    private final Map<String, SProject> projects = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<Long, SUser> users = new ConcurrentHashMap<>();
+    private final AtomicLong userIds = new AtomicLong();
     private final ConcurrentMap<SUserGroup, List<SUser>> groups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SUserGroup> groupsByKey = new ConcurrentHashMap<>();
+    private final AtomicInteger featureIds = new AtomicInteger();
+    private final List<RolesAndGroupsListener> rolesAndGroupsListeners = new CopyOnWriteArrayList<>();
     private SecurityContextImpl securityContext;
     private EventDispatcher<ProjectsModelListener> events;
+    private File pluginDataDirectory;
+    private volatile SmtpSettings smtpSettings;
 
     public FakeTeamCityCoreFacade(SecurityContextImpl securityContext, EventDispatcher<ProjectsModelListener> events) {
         this.securityContext = securityContext;
@@ -45,16 +62,16 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
     @Nullable
     @Override
     public Role findRoleById(String roleId) {
-        return roles.get(roleId);
+        return roleId != null ? roles.get(roleId) : null;
     }
 
     @NotNull
     @Override
     public SProject createProject(@NotNull String parentExtId, @NotNull String name) {
-        if (projects.stream().anyMatch(p -> p.getName().equals(name))) {
+        if (projects.containsKey(name)) {
             throw new DuplicateProjectNameException("Already exists");
         }
-        SProject parent = projects.stream().filter(p -> p.getExternalId().equals(parentExtId)).findFirst().orElse(null);
+        SProject parent = projects.get(parentExtId);
         if (parent == null) {
             throw new IllegalArgumentException("No project with " + parentExtId + " found");
         }
@@ -69,36 +86,73 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
 
     @NotNull
     private SProject doCreateProject(@Nullable String parentExtId, @NotNull String name) {
-        SProject project = mock(SProject.class);
+        SProject parent = parentExtId != null ? projects.get(parentExtId) : null;
+        List<SProject> projectPath = new ArrayList<>(parent != null ? parent.getProjectPath() : Collections.emptyList());
+        String fullName = parent != null && parent.getParentProjectId() != null ? parent.getFullName() + " / " + name : name;
+
+        SProject project = mock(SProject.class, mockSettings());
+        projectPath.add(project);
         when(project.getExternalId()).thenReturn(name);
         when(project.getProjectId()).thenReturn(name);
         when(project.getName()).thenReturn(name);
+        when(project.getFullName()).thenReturn(fullName);
+        when(project.describe(anyBoolean())).thenReturn(name);
         when(project.getParentProjectExternalId()).thenReturn(parentExtId);
         when(project.getParentProjectId()).thenReturn(parentExtId);
+        when(project.getParentProject()).thenReturn(parent);
+        when(project.getProjectPath()).thenReturn(Collections.unmodifiableList(projectPath));
+        when(project.getProjects()).thenAnswer(invocation -> {
+            synchronized (projects) {
+                return projects.values().stream()
+                        .filter(p -> p != project && p.getProjectPath().contains(project))
+                        .collect(toList());
+            }
+        });
 
-        MultiMap<String, SProjectFeatureDescriptor> features = new MultiMap<>();
+        Map<String, SProjectFeatureDescriptor> features = new LinkedHashMap<>();
 
         when(project.addFeature(anyString(), anyMap())).thenAnswer(invocation -> {
-            ProjectFeatureDescriptorImpl descriptor = new ProjectFeatureDescriptorImpl(features.size() + "", invocation.getArgument(0), invocation.getArgument(1), project);
-            features.putValue(invocation.getArgument(0), descriptor);
+            ProjectFeatureDescriptorImpl descriptor = new ProjectFeatureDescriptorImpl("PROJECT_EXT_" + featureIds.incrementAndGet(), invocation.getArgument(0), invocation.getArgument(1), project);
+            synchronized (features) {
+                features.put(descriptor.getId(), descriptor);
+            }
             events.getMulticaster().projectFeatureAdded(project, descriptor);
             return descriptor;
         });
 
-        when(project.getOwnFeaturesOfType(anyString())).thenAnswer(invocation -> features.get(invocation.getArgument(0)));
+        when(project.updateFeature(anyString(), anyString(), anyMap())).thenAnswer(invocation -> {
+            ProjectFeatureDescriptorImpl after = new ProjectFeatureDescriptorImpl(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2), project);
+            SProjectFeatureDescriptor before;
+            synchronized (features) {
+                before = features.get(after.getId());
+                if (before == null) {
+                    return false;
+                }
+                features.put(after.getId(), after);
+            }
+            events.getMulticaster().projectFeatureChanged(project, before, after);
+            return true;
+        });
+
+        when(project.getOwnFeaturesOfType(anyString())).thenAnswer(invocation -> {
+            synchronized (features) {
+                return features.values().stream()
+                        .filter(feature -> feature.getType().equals(invocation.getArgument(0)))
+                        .collect(toList());
+            }
+        });
 
         when(project.removeFeature(anyString())).thenAnswer(invocation -> {
-            List<SProjectFeatureDescriptor> toRemove = features.values().stream()
-                    .flatMap(List::stream)
-                    .filter(feature -> feature.getId().equals(invocation.getArgument(0)))
-                    .collect(toList());
-            for (SProjectFeatureDescriptor featureDescriptor : toRemove) {
-                features.removeValue(featureDescriptor);
-                events.getMulticaster().projectFeatureRemoved(project, featureDescriptor);
+            SProjectFeatureDescriptor removed;
+            synchronized (features) {
+                removed = features.remove(invocation.<String>getArgument(0));
             }
-            return null;
+            if (removed != null) {
+                events.getMulticaster().projectFeatureRemoved(project, removed);
+            }
+            return removed;
         });
-        projects.add(project);
+        projects.put(name, project);
         return project;
     }
 
@@ -106,7 +160,7 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
     @Override
     public SProject findProjectByExtId(@Nullable String projectExtId) {
         if (projectExtId == null) return null;
-        SProject found = projects.stream().filter(pr -> pr.getExternalId().equals(projectExtId)).findFirst().orElse(null);
+        SProject found = projects.get(projectExtId);
         if (found != null) {
             if (!securityContext.getAuthorityHolder().isPermissionGrantedForProject(found.getProjectId(), Permission.CREATE_SUB_PROJECT)) {
                 throw new AccessDeniedException(securityContext.getAuthorityHolder(), "You can't create project under " + found.getProjectId());
@@ -118,7 +172,7 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
     @Nullable
     @Override
     public SProject findProjectByIntId(String projectIntId) {
-        SProject found = projects.stream().filter(pr -> pr.getProjectId().equals(projectIntId)).findFirst().orElse(null);
+        SProject found = projectIntId != null ? projects.get(projectIntId) : null;
         if (found != null) {
             if (!securityContext.getAuthorityHolder().isPermissionGrantedForProject(found.getProjectId(), Permission.CREATE_SUB_PROJECT)) {
                 throw new AccessDeniedException(securityContext.getAuthorityHolder(), "You can't create project under " + found.getProjectId());
@@ -140,13 +194,18 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
         if (!securityContext.getAuthorityHolder().isPermissionGrantedGlobally(Permission.ASSIGN_USERS_ADD_SUBGROUPS)) {
             throw new AccessDeniedException(securityContext.getAuthorityHolder(), "You can't add users to groups");
         }
-        groups.computeIfAbsent(group, g -> new ArrayList<>()).add(user);
+        groups.computeIfAbsent(group, g -> new CopyOnWriteArrayList<>()).add(user);
+    }
+
+    @Override
+    public void addRolesAndGroupsListener(@NotNull RolesAndGroupsListener listener) {
+        rolesAndGroupsListeners.add(listener);
     }
 
     @NotNull
     @Override
     public List<SProject> getActiveProjects() {
-        return projects.stream().filter(p -> securityContext.getAuthorityHolder().isPermissionGrantedForProject(p.getProjectId(), Permission.VIEW_PROJECT)).collect(toList());
+        return getAllProjects().stream().filter(p -> securityContext.getAuthorityHolder().isPermissionGrantedForProject(p.getProjectId(), Permission.VIEW_PROJECT)).collect(toList());
     }
 
     @Override
@@ -181,13 +240,13 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
     @Nullable
     @Override
     public SUserGroup findGroup(String groupKey) {
-        return groups.keySet().stream().filter(g -> g.getKey().equals(groupKey)).findFirst().orElse(null);
+        return groupKey != null ? groupsByKey.get(groupKey) : null;
     }
 
     @Nullable
     @Override
     public SUser getUser(long userId) {
-        return users.get((int) userId - 1);
+        return users.get(userId);
     }
 
     @NotNull
@@ -202,9 +261,34 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
         return path;
     }
 
+    @NotNull
+    @Override
+    public synchronized File getPluginDataDirectory() {
+        if (pluginDataDirectory == null) {
+            try {
+                pluginDataDirectory = Files.createTempDirectory("pluginData").toFile();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return pluginDataDirectory;
+    }
+
+    @Nullable
+    @Override
+    public SmtpSettings getSmtpSettings() {
+        return smtpSettings;
+    }
+
+    void setSmtpSettings(@Nullable SmtpSettings smtpSettings) {
+        this.smtpSettings = smtpSettings;
+    }
+
     Role addRole(String id, Permissions permissions, boolean isProjectAssociationSupported) {
-        Role role = mock(Role.class);
+        Role role = mock(Role.class, mockSettings());
         when(role.getId()).thenReturn(id);
+        when(role.getName()).thenReturn(id);
+        when(role.describe(anyBoolean())).thenReturn(id);
         when(role.getPermissions()).thenReturn(permissions);
         when(role.isProjectAssociationSupported()).thenReturn(isProjectAssociationSupported);
         when(role.toString()).thenReturn(id);
@@ -212,79 +296,141 @@ public class FakeTeamCityCoreFacade implements TeamCityCoreFacade {
         return role;
     }
 
+    /**
+     * Like removing a role from the server configuration, which is not reported until the configuration is reloaded.
+     */
+    void removeRole(String id) {
+        roles.remove(id);
+    }
+
     @Nullable
     SProject getProject(String extId) {
-        return projects.stream().filter(p -> p.getExternalId().equals(extId)).findFirst().orElse(null);
+        return projects.get(extId);
+    }
+
+    @NotNull
+    List<SProject> getAllProjects() {
+        synchronized (projects) {
+            return new ArrayList<>(projects.values());
+        }
     }
 
     @NotNull
     SUser createUser(String username) {
-        SUser user = mock(UserEx.class);
-        when(user.getId()).thenReturn(users.size() + 1L);
+        SUser user = mock(UserEx.class, mockSettings());
+        long id = userIds.incrementAndGet();
+        when(user.getId()).thenReturn(id);
         when(user.getUsername()).thenReturn(username);
+        when(user.getDescriptiveName()).thenReturn(username);
         when(user.describe(anyBoolean())).thenReturn(username);
-        setupRolesMocks(user);
-        users.add(user);
+        setupRolesMocks(user, () -> {
+            //the server doesn't report roles given to a user
+        });
+        users.put(id, user);
         return user;
     }
 
+    void removeUser(long userId) {
+        users.remove(userId);
+        rolesChanged();
+    }
+
     @NotNull
     SUserGroup createGroup(String groupKey) {
-        SUserGroup group = mock(SUserGroup.class);
+        SUserGroup group = mock(SUserGroup.class, mockSettings());
         when(group.getKey()).thenReturn(groupKey);
-        setupRolesMocks(group);
-        groups.put(group, new ArrayList<>());
+        when(group.getName()).thenReturn(groupKey);
+        when(group.describe(anyBoolean())).thenReturn(groupKey);
+        setupRolesMocks(group, () -> {
+            //the server doesn't report roles given to a group
+        });
+        groups.put(group, new CopyOnWriteArrayList<>());
+        groupsByKey.put(groupKey, group);
+        rolesAndGroupsListeners.forEach(listener -> listener.groupChanged(group));
         return group;
     }
 
+    void removeGroup(String groupKey) {
+        SUserGroup group = groupsByKey.remove(groupKey);
+        if (group != null) {
+            groups.remove(group);
+            rolesAndGroupsListeners.forEach(listener -> listener.groupRemoved(group));
+        }
+    }
+
     List<SUser> getGroupUsers(SUserGroup group) {
         return groups.get(group);
     }
 
-    private <T extends RolesHolder & AuthorityHolder> void setupRolesMocks(T user) {
+    private void rolesChanged() {
+        rolesAndGroupsListeners.forEach(RolesAndGroupsListener::rolesChanged);
+    }
+
+    /**
+     * Benchmarks and load tests call the fake objects millions of times, so the invocations must not be recorded.
+     */
+    @NotNull
+    private static MockSettings mockSettings() {
+        return withSettings().stubOnly();
+    }
+
+    private <T extends RolesHolder & AuthorityHolder> void setupRolesMocks(T user, Runnable rolesChanged) {
         Collection<RoleEntry> roles = Collections.synchronizedSet(new HashSet<>());
 
         when(user.getRoles()).thenReturn(roles);
 
-        when(user.getRolesWithScope(any(RoleScope.class))).thenAnswer(invocation ->
-                roles.stream().
+        when(user.getRolesWithScope(any(RoleScope.class))).thenAnswer(invocation -> {
+            synchronized (roles) {
+                return roles.stream().
                         filter(roleEntry -> roleEntry.getScope().equals(invocation.getArgument(0))).
                         map(RoleEntry::getRole).
-                        collect(toList()));
+                        collect(toList());
+            }
+        });
 
         when(user.isPermissionGrantedForProject(anyString(), any(Permission.class))).thenAnswer(invocation -> {
             String projectIntId = invocation.getArgument(0);
             Permission permission = invocation.getArgument(1);
 
-            return roles.stream().
-                    filter(entry -> projectIntId.equals(entry.getScope().getProjectId()) || entry.getScope().isGlobal()).
-                    findFirst().
-                    map(roleEntry -> roleEntry.getRole().getPermissions().contains(permission)).
-                    orElse(false);
+            synchronized (roles) {
+                return roles.stream().
+                        filter(entry -> projectIntId.equals(entry.getScope().getProjectId()) || entry.getScope().isGlobal()).
+                        findFirst().
+                        map(roleEntry -> roleEntry.getRole().getPermissions().contains(permission)).
+                        orElse(false);
+            }
         });
 
         when(user.isPermissionGrantedForAnyProject(any(Permission.class))).thenAnswer(invocation -> {
             Permission permission = invocation.getArgument(0);
-            return roles.stream().
-                    anyMatch(entry -> entry.getRole().getPermissions().contains(permission));
+            synchronized (roles) {
+                return roles.stream().
+                        anyMatch(entry -> entry.getRole().getPermissions().contains(permission));
+            }
         });
 
         when(user.getPermissionsGrantedForProject(anyString())).thenAnswer(invocation -> {
             String projectId = invocation.getArgument(0);
-            return new Permissions(roles.stream().
-                    filter(entry -> projectId.equals(entry.getScope().getProjectId())).
-                    flatMap(entry -> entry.getRole().getPermissions().toList().stream())
-                    .collect(toList()));
+            synchronized (roles) {
+                return new Permissions(roles.stream().
+                        filter(entry -> projectId.equals(entry.getScope().getProjectId())).
+                        flatMap(entry -> entry.getRole().getPermissions().toList().stream())
+                        .collect(toList()));
+            }
         });
 
-        when(user.getGlobalPermissions()).thenAnswer(invocation ->
-                new Permissions(roles.stream().
+        when(user.getGlobalPermissions()).thenAnswer(invocation -> {
+            synchronized (roles) {
+                return new Permissions(roles.stream().
                         filter(entry -> entry.getScope().isGlobal()).
                         flatMap(entry -> entry.getRole().getPermissions().toList().stream()).
-                        collect(toList())));
+                        collect(toList()));
+            }
+        });
 
         doAnswer(invocation -> {
             roles.add(new RoleEntryImpl(invocation.getArgument(0), invocation.getArgument(1)));
+            rolesChanged.run();
             return null;
         }).when(user).addRole(any(RoleScope.class), any(Role.class));
     }
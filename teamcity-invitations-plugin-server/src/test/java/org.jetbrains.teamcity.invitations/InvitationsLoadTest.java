@@ -0,0 +1,300 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.RootUrlHolder;
+import jetbrains.buildServer.controllers.AuthorizationInterceptor;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserModel;
+import jetbrains.buildServer.web.functions.user.UserFunctions;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.view.RedirectView;
+import org.testng.Reporter;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Thousands of visitors open invitation links and accept them concurrently, while administrators create, disable and
+ * remove invitations. Checks that a single user invitation is accepted at most once and that an invitation is never
+ * accepted by a request started after the invitation was disabled or removed.
+ * <p>
+ * The load is configured with the {@code invitations.load.visitors}, {@code invitations.load.threads} and
+ * {@code invitations.load.admins} system properties. Throughput, latencies and lock contention are written to the TestNG reporter log.
+ * <p>
+ * The test is in the {@code load} group, which the build excludes, run it with {@code mvn test -Pload-tests -Dtest=InvitationsLoadTest}.
+ */
+@Test(groups = "load")
+public class InvitationsLoadTest extends BaseTestCase {
+
+    private static final int VISITORS = Integer.getInteger("invitations.load.visitors", 3000);
+    private static final int THREADS = Integer.getInteger("invitations.load.threads", 32);
+    private static final int ADMINS = Integer.getInteger("invitations.load.admins", 4);
+
+    private LargeInstallationFixture installation;
+    private InvitationsLandingController landingController;
+    private InvitationsProceedController proceedController;
+    private SUser[] visitors;
+
+    private final List<String> tokens = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> singleUseTokens = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Long> disabledAt = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> removedAt = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> acceptances = new ConcurrentHashMap<>();
+    private final Queue<String> violations = new ConcurrentLinkedQueue<>();
+    private final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+    private final InvitationsMetrics.Timer landingLatency = new InvitationsMetrics.Timer();
+    private final InvitationsMetrics.Timer proceedLatency = new InvitationsMetrics.Timer();
+    private final InvitationsMetrics.Timer adminLatency = new InvitationsMetrics.Timer();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder blockedCount = new LongAdder();
+    private final LongAdder blockedMillis = new LongAdder();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        super.setUp();
+        installation = LargeInstallationFixture.builder()
+                .projects(2000).depth(5)
+                .roles(30).groups(200, 3)
+                .invitations(500)
+                .createProjectShare(0)
+                .singleUseShare(0.5)
+                .disabledShare(0.1)
+                .build();
+
+        WebControllerManager webControllerManager = Mockito.mock(WebControllerManager.class);
+        landingController = new InvitationsLandingController(webControllerManager, installation.storage, Mockito.mock(AuthorizationInterceptor.class),
+                installation.core, Mockito.mock(RootUrlHolder.class), installation.metrics, installation.eventBus);
+        proceedController = new InvitationsProceedController(webControllerManager, installation.storage, installation.core, installation.metrics);
+
+        for (String token : installation.tokens) {
+            Invitation invitation = installation.storage.getInvitation(token);
+            if (!invitation.isReusable()) singleUseTokens.add(token);
+            if (!invitation.isEnabled()) disabledAt.put(token, Long.MIN_VALUE);
+            tokens.add(token);
+        }
+
+        visitors = new SUser[VISITORS];
+        for (int i = 0; i < VISITORS; i++) {
+            visitors[i] = installation.core.createUser("visitor" + i);
+        }
+
+        UserModel userModel = Mockito.mock(UserModel.class);
+        when(userModel.isGuestUser(any())).thenReturn(false);
+        new UserFunctions(userModel);
+
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+    }
+
+    public void concurrent_visitors_and_admins() throws Exception {
+        AtomicInteger nextVisitor = new AtomicInteger();
+        AtomicBoolean visitorsRunning = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < THREADS; i++) {
+            workers.add(worker("visitor-" + i, start, () -> {
+                int visitor;
+                while ((visitor = nextVisitor.getAndIncrement()) < VISITORS) {
+                    visit(visitors[visitor]);
+                }
+            }));
+        }
+        List<Thread> admins = new ArrayList<>();
+        for (int i = 0; i < ADMINS; i++) {
+            int admin = i;
+            admins.add(worker("admin-" + i, start, () -> {
+                installation.login();
+                for (int action = 0; visitorsRunning.get(); action++) {
+                    administer(admin, action);
+                }
+            }));
+        }
+
+        long startedAt = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.MINUTES.toMillis(5));
+        }
+        long durationNanos = System.nanoTime() - startedAt;
+        visitorsRunning.set(false);
+        for (Thread admin : admins) {
+            admin.join(TimeUnit.MINUTES.toMillis(1));
+        }
+
+        report(durationNanos);
+
+        then(errors).isEmpty();
+        then(violations).isEmpty();
+        then(workers).noneMatch(Thread::isAlive);
+        then(landingLatency.getCount()).isEqualTo(VISITORS);
+        then(installation.metrics.getAcceptances(installation.joinProjectInvitationType)).isEqualTo(accepted.sum());
+        then(accepted.sum()).isPositive();
+    }
+
+    private void visit(@NotNull SUser user) throws Exception {
+        String token = pickToken();
+        MockHttpSession session = new MockHttpSession();
+
+        installation.securityContext.clearContext();
+        long landingStart = System.nanoTime();
+        landingController.doHandle(newRequest("/invitations.html?token=" + token, session), new MockHttpServletResponse());
+        landingLatency.record(System.nanoTime() - landingStart);
+
+        MockHttpServletRequest proceed = newRequest(InvitationsProceedController.PATH + "?token=" + token, session);
+        SessionUser.setUser(proceed, user);
+        installation.securityContext.setAuthorityHolder(user);
+        long proceedStart = System.nanoTime();
+        ModelAndView result = proceedController.doHandle(proceed, new MockHttpServletResponse());
+        proceedLatency.record(System.nanoTime() - proceedStart);
+
+        if (isAccepted(result)) {
+            accepted.increment();
+            Long disabled = disabledAt.get(token);
+            if (disabled != null && disabled < proceedStart) {
+                violations.add("Disabled invitation " + token + " was accepted by " + user.getUsername());
+            }
+            Long removed = removedAt.get(token);
+            if (removed != null && removed < proceedStart) {
+                violations.add("Removed invitation " + token + " was accepted by " + user.getUsername());
+            }
+            int count = acceptances.computeIfAbsent(token, t -> new AtomicInteger()).incrementAndGet();
+            if (count > 1 && singleUseTokens.contains(token)) {
+                violations.add("Single user invitation " + token + " was accepted " + count + " times");
+            }
+        }
+    }
+
+    private void administer(int admin, int action) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        switch (random.nextInt(3)) {
+            case 0: {
+                SProject project = installation.randomProject(random);
+                String token = "admin-" + admin + "-" + action;
+                boolean multiuser = random.nextBoolean();
+                if (!multiuser) singleUseTokens.add(token);
+                installation.storage.addInvitation(installation.joinProjectInvitationType.createNewInvitation(installation.admin,
+                        "Load test", token, project, installation.developerRole.getId(), null, multiuser, "Welcome"));
+                tokens.add(token);
+                break;
+            }
+            case 1: {
+                String token = pickToken();
+                Invitation invitation = installation.storage.getInvitation(token);
+                if (invitation != null && invitation.isEnabled()) {
+                    //the indexed instance is shared with the visitors, the change is made on a copy like the admin page does
+                    Map<String, String> params = invitation.asMap();
+                    params.put("disabled", "true");
+                    Invitation disabled = invitation.getType().readFrom(params, invitation.getProject());
+                    if (installation.storage.updateInvitation(disabled, "Invitation disabled")) {
+                        disabledAt.putIfAbsent(token, System.nanoTime());
+                    }
+                }
+                break;
+            }
+            default: {
+                String token = pickToken();
+                Invitation invitation = installation.storage.getInvitation(token);
+                if (invitation != null && installation.storage.removeInvitation(invitation.getProject(), token) != null) {
+                    removedAt.putIfAbsent(token, System.nanoTime());
+                }
+            }
+        }
+        adminLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Most visitors come to a small set of hot links, so concurrent requests for the same token are common.
+     */
+    @NotNull
+    private String pickToken() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        synchronized (tokens) {
+            double r = random.nextDouble();
+            int index = random.nextInt(5) == 0 ? random.nextInt(tokens.size()) : (int) (r * r * r * tokens.size());
+            return tokens.get(index);
+        }
+    }
+
+    private static boolean isAccepted(@NotNull ModelAndView result) {
+        return result.getView() instanceof RedirectView && ((RedirectView) result.getView()).getUrl().startsWith("/project.html");
+    }
+
+    @NotNull
+    private static MockHttpServletRequest newRequest(@NotNull String url, @NotNull MockHttpSession session) {
+        return MockMvcRequestBuilders.request(HttpMethod.GET, url).session(session).buildRequest(new MockServletContext());
+    }
+
+    @NotNull
+    private Thread worker(@NotNull String name, @NotNull CountDownLatch start, @NotNull ThrowingRunnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                start.await();
+                body.run();
+            } catch (Throwable e) {
+                errors.add(e);
+            } finally {
+                ThreadInfo info = threads.getThreadInfo(Thread.currentThread().getId());
+                if (info != null) {
+                    blockedCount.add(info.getBlockedCount());
+                    blockedMillis.add(Math.max(0, info.getBlockedTime()));
+                }
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private void report(long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        Reporter.log(String.format(Locale.ROOT,
+                "Invitations load: %d visitors on %d threads, %d admins, %.1f s, %.0f visits/s, %d accepted%n" +
+                        "  landing:  p50 %d us, p99 %d us, max %d us%n" +
+                        "  proceed:  p50 %d us, p99 %d us, max %d us%n" +
+                        "  admin:    %d actions, p50 %d us, p99 %d us%n" +
+                        "  cache rebuilds: %d, p99 %d us%n" +
+                        "  lock contention: blocked %d times, %d ms in total",
+                VISITORS, THREADS, ADMINS, seconds, VISITORS / seconds, accepted.sum(),
+                landingLatency.getPercentileMicros(50), landingLatency.getPercentileMicros(99), TimeUnit.NANOSECONDS.toMicros(landingLatency.getMaxNanos()),
+                proceedLatency.getPercentileMicros(50), proceedLatency.getPercentileMicros(99), TimeUnit.NANOSECONDS.toMicros(proceedLatency.getMaxNanos()),
+                adminLatency.getCount(), adminLatency.getPercentileMicros(50), adminLatency.getPercentileMicros(99),
+                installation.metrics.getRebuilds().getCount(), installation.metrics.getRebuilds().getPercentileMicros(99),
+                blockedCount.sum(), blockedMillis.sum()));
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}
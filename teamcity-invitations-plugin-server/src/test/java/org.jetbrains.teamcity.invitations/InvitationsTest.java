@@ -3,6 +3,7 @@ package org.jetbrains.teamcity.invitations;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.sun.net.httpserver.HttpServer;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.RootUrlHolder;
 import jetbrains.buildServer.controllers.ActionMessages;
@@ -12,6 +13,9 @@ import jetbrains.buildServer.groups.SUserGroup;
 import jetbrains.buildServer.serverSide.ProjectsModelListener;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.ServerSideEventDispatcher;
+import jetbrains.buildServer.serverSide.healthStatus.HealthStatusItem;
+import jetbrains.buildServer.serverSide.healthStatus.HealthStatusItemConsumer;
+import jetbrains.buildServer.serverSide.healthStatus.HealthStatusScope;
 import jetbrains.buildServer.serverSide.auth.*;
 import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl;
 import jetbrains.buildServer.users.SUser;
@@ -33,20 +37,47 @@ import org.springframework.mock.web.MockServletContext;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.view.RedirectView;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static jetbrains.buildServer.serverSide.auth.RoleScope.projectScope;
 import static org.assertj.core.api.BDDAssertions.then;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @Test
@@ -56,6 +87,9 @@ public class InvitationsTest extends BaseTestCase {
     private InvitationsLandingController invitationsController;
     private InvitationsProceedController invitationsProceedController;
     private InvitationAdminController invitationsAdminController;
+    private InvitationsApiController invitationsApiController;
+    private InvitationsExportController invitationsExportController;
+    private InvitationsBulkCreateController invitationsBulkCreateController;
     private CreateNewProjectInvitationType createNewProjectInvitationType;
     private JoinProjectInvitationType joinProjectInvitationType;
     private MockHttpServletRequest request;
@@ -64,6 +98,11 @@ public class InvitationsTest extends BaseTestCase {
     private FakeTeamCityCoreFacade core;
     private SProject testDriveProject;
     private SecurityContextImpl securityContext;
+    private InvitationsMetrics metrics;
+    private RolesAndGroupsCache rolesAndGroups;
+    private InvitationAcceptanceExecutor acceptanceExecutor;
+    private InvitationAcceptanceStatusController acceptanceStatusController;
+    private InvitationEventBus eventBus;
 
     private Role adminRole;
     private Role developerRole;
@@ -77,6 +116,10 @@ public class InvitationsTest extends BaseTestCase {
         securityContext = new SecurityContextImpl();
         events = ServerSideEventDispatcher.create(securityContext, ProjectsModelListener.class);
         core = new FakeTeamCityCoreFacade(securityContext, events);
+        metrics = new InvitationsMetrics();
+        acceptanceExecutor = new InvitationAcceptanceExecutor(metrics);
+        eventBus = new InvitationEventBus(metrics);
+        rolesAndGroups = new RolesAndGroupsCache(core, new ProjectGroupsIndex(core));
         systemAdminRole = core.addRole("SYSTEM_ADMIN", new Permissions(Permission.values()), false);
         adminRole = core.addRole("PROJECT_ADMIN", new Permissions(Permission.CREATE_SUB_PROJECT, Permission.CHANGE_USER_ROLES_IN_PROJECT, Permission.EDIT_PROJECT, Permission.ARCHIVE_PROJECT), true);
         developerRole = core.addRole("PROJECT_DEVELOPER", new Permissions(Permission.RUN_BUILD), true);
@@ -91,14 +134,19 @@ public class InvitationsTest extends BaseTestCase {
         WebControllerManager webControllerManager = createWebControllerManager();
 
         invitationsController = new InvitationsLandingController(webControllerManager, invitations, Mockito.mock(AuthorizationInterceptor.class),
-                core, Mockito.mock(RootUrlHolder.class));
+                core, Mockito.mock(RootUrlHolder.class), metrics, eventBus);
 
-        invitationsProceedController = new InvitationsProceedController(webControllerManager, invitations, core);
+        invitationsProceedController = new InvitationsProceedController(webControllerManager, invitations, core, metrics);
 
         PluginDescriptor pluginDescriptor = Mockito.mock(PluginDescriptor.class);
         when(pluginDescriptor.getPluginResourcesPath(anyString())).thenReturn("fake.jsp");
         invitationsAdminController = new InvitationAdminController(createPagePlaces(), webControllerManager,
                 pluginDescriptor, invitations, core, invitationsController, asList(createNewProjectInvitationType, joinProjectInvitationType));
+        invitationsApiController = new InvitationsApiController(webControllerManager, invitations, core, invitationsController);
+        invitationsExportController = new InvitationsExportController(webControllerManager, invitations, core);
+        acceptanceStatusController = new InvitationAcceptanceStatusController(webControllerManager, acceptanceExecutor);
+        invitationsBulkCreateController = new InvitationsBulkCreateController(webControllerManager, invitations, core, rolesAndGroups,
+                invitationsController, joinProjectInvitationType, createNewProjectInvitationType);
 
         newRequest(HttpMethod.GET, "/");
 
@@ -107,6 +155,12 @@ public class InvitationsTest extends BaseTestCase {
         new UserFunctions(usermodel);
     }
 
+    @AfterMethod
+    public void shutDownExecutors() {
+        acceptanceExecutor.destroy();
+        eventBus.destroy();
+    }
+
     private PagePlaces createPagePlaces() {
         PagePlaces pagePlaces = Mockito.mock(PagePlaces.class);
         when(pagePlaces.getPlaceById(any())).thenReturn(Mockito.mock(PagePlace.class));
@@ -126,9 +180,9 @@ public class InvitationsTest extends BaseTestCase {
     }
 
     private void initInvitationStorage() {
-        invitations = new InvitationsStorage(core, events);
-        createNewProjectInvitationType = new CreateNewProjectInvitationType(invitations, core, events, new InvitationLandingProvider(core));
-        joinProjectInvitationType = new JoinProjectInvitationType(invitations, core, new InvitationLandingProvider(core));
+        invitations = new InvitationsStorage(core, events, metrics, rolesAndGroups, eventBus);
+        createNewProjectInvitationType = new CreateNewProjectInvitationType(invitations, core, events, new InvitationLandingProvider(core), metrics, rolesAndGroups);
+        joinProjectInvitationType = new JoinProjectInvitationType(invitations, core, new InvitationLandingProvider(core), rolesAndGroups, acceptanceExecutor);
     }
 
     @Test
@@ -167,6 +221,32 @@ public class InvitationsTest extends BaseTestCase {
 
     }
 
+    @Test
+    public void abandoned_project_creation_expires() throws Exception {
+        login(systemAdmin);
+        String token = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", true).getToken();
+
+        System.setProperty(CreateNewProjectInvitationType.WORKFLOW_TTL_PROPERTY, "0");
+        try {
+            SUser user = core.createUser("oleg");
+            login(user);
+            ModelAndView afterRegistrationMAW = goToAfterRegistrationUrl(token);
+            then(afterRegistrationMAW.getView()).isInstanceOf(RedirectView.class);
+
+            newRequest(HttpMethod.GET, ((RedirectView) afterRegistrationMAW.getView()).getUrl());
+            try {
+                core.createProject("TestDriveProjectId", "New Project");
+                fail("AccessDeniedException expected");
+            } catch (AccessDeniedException e) {
+                //ok
+            }
+            then(metrics.getGauge("createProjectWorkflowsInProgress")).isEqualTo(0);
+            then(metrics.getGauge("createProjectWorkflowsExpired")).isEqualTo(1);
+        } finally {
+            System.clearProperty(CreateNewProjectInvitationType.WORKFLOW_TTL_PROPERTY);
+        }
+    }
+
     @Test
     public void invite_user_to_join_the_project_using_direct_role() throws Exception {
         login(systemAdmin);
@@ -213,6 +293,76 @@ public class InvitationsTest extends BaseTestCase {
         then(core.getGroupUsers(developers)).contains(user);
     }
 
+    @Test
+    public void accept_invitation_asynchronously() throws Exception {
+        login(systemAdmin);
+        SUserGroup developers = core.createGroup("developers");
+        String token = createInvitationToJoinProject(null, "developers", "TestDriveProjectId", false).getToken();
+
+        System.setProperty(InvitationAcceptanceExecutor.ENABLED_PROPERTY, "true");
+        try {
+            SUser user = core.createUser("oleg");
+            login(user);
+            ModelAndView pending = goToAfterRegistrationUrl(token);
+            then(pending.getViewName()).isEqualTo("invitationAcceptancePending.jsp");
+            String statusUrl = (String) pending.getModel().get("statusUrl");
+
+            String state = null;
+            for (int i = 0; i < 100 && !"DONE".equals(state); i++) {
+                newRequest(HttpMethod.GET, statusUrl);
+                acceptanceStatusController.handleRequestInternal(request, response);
+                then(response.getStatus()).isEqualTo(200);
+                state = jsonValues(response.getContentAsString(), "state").get(0);
+                if (!"DONE".equals(state)) Thread.sleep(50);
+            }
+            then(state).isEqualTo("DONE");
+            then(core.getGroupUsers(developers)).contains(user);
+            then(invitations.hasInvitation(token)).isFalse();
+
+            //the status is visible only to the user who accepted the invitation
+            login(systemAdmin);
+            newRequest(HttpMethod.GET, statusUrl);
+            acceptanceStatusController.handleRequestInternal(request, response);
+            then(response.getStatus()).isEqualTo(404);
+        } finally {
+            System.clearProperty(InvitationAcceptanceExecutor.ENABLED_PROPERTY);
+        }
+    }
+
+    @Test
+    public void acceptance_is_rejected_when_queue_is_full() throws Exception {
+        login(systemAdmin);
+        core.createGroup("developers");
+        String token = createInvitationToJoinProject(null, "developers", "TestDriveProjectId", false).getToken();
+
+        System.setProperty(InvitationAcceptanceExecutor.ENABLED_PROPERTY, "true");
+        System.setProperty(InvitationAcceptanceExecutor.MAX_QUEUE_DEPTH_PROPERTY, "0");
+        try {
+            login(core.createUser("oleg"));
+            then(goToAfterRegistrationUrl(token)).isNull();
+            then(response.getStatus()).isEqualTo(503);
+            then(response.getHeader("Retry-After")).isEqualTo("5");
+            //single user invitation is not consumed by the rejected attempt
+            then(invitations.hasInvitation(token)).isTrue();
+        } finally {
+            System.clearProperty(InvitationAcceptanceExecutor.ENABLED_PROPERTY);
+            System.clearProperty(InvitationAcceptanceExecutor.MAX_QUEUE_DEPTH_PROPERTY);
+        }
+    }
+
+    @Test
+    public void acceptance_rejected_on_shutdown_is_not_left_in_the_queue() throws Exception {
+        InvitationAcceptanceExecutor executor = new InvitationAcceptanceExecutor(new InvitationsMetrics());
+        executor.destroy();
+        try {
+            executor.submit(testDriveProject.getProjectId(), systemAdmin.getId(), "/", () -> {
+            });
+            fail("AcceptanceRejectedException expected");
+        } catch (AcceptanceRejectedException e) {
+            then(executor.getQueueDepth()).isEqualTo(0);
+        }
+    }
+
     @Test
     public void process_invitation_when_user_already_logged_in() throws Exception {
         login(systemAdmin);
@@ -394,6 +544,766 @@ public class InvitationsTest extends BaseTestCase {
         then(ActionMessages.getMessages(request).getMessage("accessDenied")).isNotNull();
     }
 
+    public void should_record_metrics() throws Exception {
+        login(systemAdmin);
+        String token = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+        then(metrics.getPersists().getCount()).isEqualTo(1);
+
+        logout();
+        goToInvitationUrl(token);
+        goToInvitationUrl("unknown");
+        then(metrics.getLandingHits(joinProjectInvitationType)).isEqualTo(1);
+        then(metrics.getUnknownTokenLookups()).isEqualTo(1);
+
+        login(core.createUser("oleg"));
+        goToAfterRegistrationUrl(token);
+        then(metrics.getAcceptances(joinProjectInvitationType)).isEqualTo(1);
+        then(metrics.getRebuilds().getCount()).isGreaterThanOrEqualTo(1);
+    }
+
+    public void invitation_becomes_invalid_when_role_or_group_removed() throws Exception {
+        login(systemAdmin);
+        SUserGroup developers = core.createGroup("developers");
+        developers.addRole(projectScope(testDriveProject.getProjectId()), developerRole);
+        JoinProjectInvitationType.InvitationImpl invitation = (JoinProjectInvitationType.InvitationImpl)
+                createInvitationToJoinProject("PROJECT_DEVELOPER", "developers", "TestDriveProjectId", true);
+        then(invitation.getValidationError()).isNull();
+        then(invitation.getRole()).isEqualTo(developerRole);
+
+        System.setProperty(RolesAndGroupsCache.MAX_AGE_PROPERTY, "50");
+        try {
+            rolesAndGroups.invalidate();//the properties are read once per revision
+            then(invitation.getRole()).isEqualTo(developerRole);
+            core.removeRole("PROJECT_DEVELOPER");
+            Thread.sleep(100);//removed roles are not reported, the resolved role expires
+            then(invitation.getRole()).isNull();
+            then(invitation.getValidationError()).isEqualTo("Role 'PROJECT_DEVELOPER' doesn't exists anymore");
+        } finally {
+            System.clearProperty(RolesAndGroupsCache.MAX_AGE_PROPERTY);
+        }
+
+        core.removeGroup("developers");
+        then(invitation.getGroup()).isNull();
+        then(invitation.getValidationError()).isEqualTo("Role 'PROJECT_DEVELOPER' doesn't exists anymore; Group 'developers' doesn't exists anymore");
+    }
+
+    public void invalid_invitations_are_found_by_background_validation() throws Exception {
+        login(systemAdmin);
+        Invitation valid = createInvitationToJoinProject("PROJECT_ADMIN", null, "TestDriveProjectId", true);
+        Invitation invalid = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+
+        System.setProperty(InvitationsHealthValidator.DELAY_PROPERTY, "600000");
+        InvitationsHealthValidator validator = new InvitationsHealthValidator(invitations, core, events, metrics);
+        try {
+            validator.validate();
+            then(invitations.getInvalidInvitations(testDriveProject)).isEmpty();
+
+            core.removeRole("PROJECT_DEVELOPER");
+            then(invitations.getValidationError(invitations.getInvitation(invalid.getToken()))).as("precomputed until the next validation").isNull();
+            validator.validate();
+            then(invitations.getInvalidInvitations(testDriveProject)).extracting(Invitation::getToken).containsExactly(invalid.getToken());
+            then(invitations.getValidationError(invitations.getInvitation(invalid.getToken()))).isEqualTo("Role 'PROJECT_DEVELOPER' doesn't exists anymore");
+            then(invitations.getValidationError(invitations.getInvitation(valid.getToken()))).isNull();
+            then(metrics.getGauge("invalidInvitations")).isEqualTo(1);
+
+            HealthStatusScope scope = Mockito.mock(HealthStatusScope.class);
+            when(scope.getProjects()).thenReturn(singletonList(testDriveProject));
+            HealthStatusItemConsumer consumer = Mockito.mock(HealthStatusItemConsumer.class);
+            new InvitationsHealthReport(invitations, createPagePlaces(), Mockito.mock(PluginDescriptor.class)).report(scope, consumer);
+            verify(consumer).consumeForProject(eq(testDriveProject), any(HealthStatusItem.class));
+        } finally {
+            validator.destroy();
+            System.clearProperty(InvitationsHealthValidator.DELAY_PROPERTY);
+        }
+    }
+
+    public void cleanup_invitations_referencing_deleted_roles_and_groups() throws Exception {
+        login(systemAdmin);
+        core.createGroup("developers");
+        Invitation valid = createInvitationToJoinProject("PROJECT_ADMIN", null, "TestDriveProjectId", true);
+        Invitation withDeletedRole = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        Invitation withDeletedGroup = createInvitationToJoinProject(null, "developers", "TestDriveProjectId", true);
+        core.removeRole("PROJECT_DEVELOPER");
+        core.removeGroup("developers");
+
+        InvitationsCleanup cleanup = new InvitationsCleanup(invitations, core);
+        try {
+            long persists = metrics.getPersists().getCount();
+            InvitationsCleanup.Report dryRun = cleanup.cleanup(InvitationsCleanup.Action.REMOVE, true);
+            then(dryRun.getCandidateTokens()).containsExactlyInAnyOrder(withDeletedRole.getToken(), withDeletedGroup.getToken());
+            then(dryRun.getChangedCount()).isEqualTo(0);
+            then(invitations.getInvitations(testDriveProject)).hasSize(3);
+            then(metrics.getPersists().getCount()).isEqualTo(persists);
+
+            InvitationsCleanup.Report disabled = cleanup.cleanup(InvitationsCleanup.Action.DISABLE, false);
+            then(disabled.getChangedCount()).isEqualTo(2);
+            then(invitations.getInvitation(withDeletedRole.getToken()).isEnabled()).isFalse();
+            then(invitations.getInvitation(valid.getToken()).isEnabled()).isTrue();
+            then(metrics.getPersists().getCount()).isEqualTo(persists + 1);
+            then(cleanup.cleanup(InvitationsCleanup.Action.DISABLE, true).getCandidatesCount()).as("disabled invitations are not disabled again").isEqualTo(0);
+
+            InvitationsCleanup.Report removed = cleanup.cleanup(InvitationsCleanup.Action.REMOVE, false);
+            then(removed.getChangedCount()).isEqualTo(2);
+            then(invitations.getInvitations(testDriveProject)).extracting(Invitation::getToken).containsExactly(valid.getToken());
+            then(metrics.getPersists().getCount()).isEqualTo(persists + 2);
+        } finally {
+            cleanup.destroy();
+        }
+    }
+
+    public void change_invitations_in_project_subtree() throws Exception {
+        login(systemAdmin);
+        core.createProject("TestDriveProjectId", "Sub");
+        core.createProject("_Root", "Other");
+        Invitation inRoot = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        Invitation inSub1 = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "Sub", true);
+        Invitation inSub2 = createInvitationToJoinProject("PROJECT_ADMIN", null, "Sub", false);
+        Invitation outside = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "Other", true);
+
+        InvitationsSubtreeOperations subtreeOperations = new InvitationsSubtreeOperations(invitations, core);
+        try {
+            long persists = metrics.getPersists().getCount();
+            InvitationsSubtreeOperations.Operation disable = subtreeOperations.start(systemAdmin, testDriveProject, InvitationsSubtreeOperations.Action.DISABLE);
+            then(disable.await(10, TimeUnit.SECONDS)).isTrue();
+            then(disable.getChangedCount()).isEqualTo(3);
+            then(disable.getProjectStates()).containsOnlyKeys("TestDriveProjectId", "Sub").containsValues(InvitationsSubtreeOperations.State.DONE);
+            then(metrics.getPersists().getCount()).as("every project is persisted once").isEqualTo(persists + 2);
+            then(invitations.getInvitation(inSub1.getToken()).isEnabled()).isFalse();
+            then(invitations.getInvitation(inSub2.getToken()).isEnabled()).isFalse();
+            then(invitations.getInvitation(outside.getToken()).isEnabled()).isTrue();
+
+            InvitationsSubtreeOperations.Operation enable = subtreeOperations.start(systemAdmin, core.findProjectByExtId("Sub"), InvitationsSubtreeOperations.Action.ENABLE);
+            then(enable.await(10, TimeUnit.SECONDS)).isTrue();
+            then(enable.getChangedCount()).isEqualTo(2);
+            then(invitations.getInvitation(inSub1.getToken()).isEnabled()).isTrue();
+            then(invitations.getInvitation(inRoot.getToken()).isEnabled()).isFalse();
+
+            InvitationsSubtreeController controller = new InvitationsSubtreeController(createWebControllerManager(), subtreeOperations, core);
+            newRequest(HttpMethod.POST, InvitationsSubtreeController.PATH + "?projectId=TestDriveProjectId&action=remove");
+            controller.handleRequestInternal(request, response);
+            then(response.getStatus()).isEqualTo(200);
+            String id = jsonValues(response.getContentAsString(), "id").get(0);
+            then(subtreeOperations.getOperation(id, systemAdmin.getId()).await(10, TimeUnit.SECONDS)).isTrue();
+
+            newRequest(HttpMethod.GET, InvitationsSubtreeController.PATH + "?id=" + id);
+            controller.handleRequestInternal(request, response);
+            then(response.getContentAsString()).contains("\"done\":true", "\"changed\":3");
+            then(jsonValues(response.getContentAsString(), "state")).containsExactly("DONE", "DONE");
+            then(invitations.getInvitations(testDriveProject)).isEmpty();
+            then(invitations.getInvitation(outside.getToken())).isNotNull();
+
+            login(core.createUser("oleg"));
+            newRequest(HttpMethod.GET, InvitationsSubtreeController.PATH + "?id=" + id);
+            controller.handleRequestInternal(request, response);
+            then(response.getStatus()).as("operations are visible only to the user who started them").isEqualTo(404);
+        } finally {
+            subtreeOperations.destroy();
+        }
+    }
+
+    public void invitation_events_are_delivered_to_subscribers() throws Exception {
+        login(systemAdmin);
+        SProject sub = core.createProject("TestDriveProjectId", "Sub");
+        core.createProject("_Root", "Other");
+
+        LinkedBlockingQueue<InvitationEvent> subtreeEvents = new LinkedBlockingQueue<>();
+        LinkedBlockingQueue<InvitationEvent> acceptances = new LinkedBlockingQueue<>();
+        eventBus.subscribe(subtreeEvents::addAll, testDriveProject, Collections.emptySet());
+        eventBus.subscribe(acceptances::addAll, null, EnumSet.of(InvitationEvent.Type.ACCEPTED));
+
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "Sub", true);
+        createInvitationToJoinProject("PROJECT_DEVELOPER", null, "Other", true);
+        goToInvitationUrl(invitation.getToken());
+        SUser user = core.createUser("oleg");
+        login(user);
+        goToAfterRegistrationUrl(invitation.getToken());
+        login(systemAdmin);
+        invitations.disableInvitations(sub, singletonList(invitation.getToken()), "disabled");
+        invitations.removeInvitations(sub, singletonList(invitation.getToken()), "removed");
+
+        List<InvitationEvent> received = new ArrayList<>();
+        while (received.size() < 5) {
+            InvitationEvent event = subtreeEvents.poll(10, TimeUnit.SECONDS);
+            then(event).as("events received so far: " + received).isNotNull();
+            received.add(event);
+        }
+        then(received).extracting(InvitationEvent::getType).containsExactly(InvitationEvent.Type.CREATED, InvitationEvent.Type.VIEWED,
+                InvitationEvent.Type.ACCEPTED, InvitationEvent.Type.DISABLED, InvitationEvent.Type.REMOVED);
+        then(received).extracting(InvitationEvent::getToken).containsOnly(invitation.getToken());
+        then(received.get(2).getUserId()).isEqualTo(user.getId());
+
+        InvitationEvent accepted = acceptances.poll(10, TimeUnit.SECONDS);
+        then(accepted.getToken()).isEqualTo(invitation.getToken());
+        then(accepted.getProjectExternalId()).isEqualTo("Sub");
+        then(acceptances).isEmpty();
+    }
+
+    public void webhooks_receive_batched_events_and_keep_them_across_restarts() throws Exception {
+        login(systemAdmin);
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        AtomicInteger status = new AtomicInteger(500);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/hook", exchange -> {
+            try (BufferedReader body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                bodies.add(body.lines().collect(Collectors.joining("\n")));
+            }
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+        server.start();
+        System.setProperty(InvitationsWebhooks.INTERVAL_PROPERTY, "3600");
+        InvitationsWebhooks webhooks = new InvitationsWebhooks(eventBus, core, metrics);
+        try {
+            Map<String, String> params = new HashMap<>();
+            params.put(InvitationsWebhooks.URL_PARAM, "http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+            params.put(InvitationsWebhooks.EVENTS_PARAM, "accepted, removed");
+            testDriveProject.addFeature(InvitationsWebhooks.FEATURE_TYPE, params);
+            core.createProject("TestDriveProjectId", "Sub");
+
+            Invitation inSub = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "Sub", true);
+            Invitation removed = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+            SUser user = core.createUser("oleg");
+            login(user);
+            goToAfterRegistrationUrl(inSub.getToken());
+            login(systemAdmin);
+            invitations.removeInvitation(testDriveProject, removed.getToken());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (webhooks.getQueuedCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            then(webhooks.getQueuedCount()).isEqualTo(2);
+
+            webhooks.deliver();
+            then(bodies).hasSize(1);
+            then(metrics.getGauge("webhookDeliveryFailures")).isEqualTo(1);
+            then(webhooks.getQueuedCount()).as("failed events stay in the outbox").isEqualTo(2);
+            for (File outbox : new File(core.getPluginDataDirectory(), "invitations/webhooks").listFiles()) {
+                then(new String(Files.readAllBytes(outbox.toPath()), StandardCharsets.UTF_8)).doesNotContain(inSub.getToken(), removed.getToken());
+            }
+
+            webhooks.destroy();
+            webhooks = new InvitationsWebhooks(eventBus, core, metrics);
+            then(webhooks.getQueuedCount()).as("the outbox is read back after restart").isEqualTo(2);
+
+            status.set(200);
+            webhooks.deliver();
+            then(bodies).hasSize(2);
+            then(bodies.get(1)).contains("\"type\":\"ACCEPTED\"", InvitationsStorage.tokenHash(inSub.getToken()), "\"userId\":" + user.getId(),
+                    "\"type\":\"REMOVED\"", InvitationsStorage.tokenHash(removed.getToken()));
+            then(bodies.get(1)).as("tokens are secrets").doesNotContain(inSub.getToken(), removed.getToken());
+            then(webhooks.getQueuedCount()).isEqualTo(0);
+            then(metrics.getGauge("webhookEventsDelivered")).isEqualTo(2);
+            then(metrics.getGauge("webhookBatchesDelivered")).isEqualTo(1);
+        } finally {
+            webhooks.destroy();
+            server.stop(0);
+            System.clearProperty(InvitationsWebhooks.INTERVAL_PROPERTY);
+        }
+    }
+
+    public void webhook_events_trimmed_during_delivery_do_not_take_newer_events_with_them() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        AtomicReference<InvitationsWebhooks> webhooksRef = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/hook", exchange -> {
+            try (BufferedReader body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                bodies.add(body.lines().collect(Collectors.joining("\n")));
+            }
+            if (bodies.size() == 1) {
+                //the outbox overflows while the first batch is in flight
+                webhooksRef.get().invitationEvents(asList(new InvitationEvent(InvitationEvent.Type.UPDATED, invitation, null),
+                        new InvitationEvent(InvitationEvent.Type.UPDATED, invitation, null)));
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        System.setProperty(InvitationsWebhooks.INTERVAL_PROPERTY, "3600");
+        System.setProperty(InvitationsWebhooks.MAX_OUTBOX_PROPERTY, "2");
+        InvitationsWebhooks webhooks = new InvitationsWebhooks(eventBus, core, metrics);
+        webhooksRef.set(webhooks);
+        try {
+            Map<String, String> params = new HashMap<>();
+            params.put(InvitationsWebhooks.URL_PARAM, "http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+            params.put(InvitationsWebhooks.EVENTS_PARAM, "updated");
+            testDriveProject.addFeature(InvitationsWebhooks.FEATURE_TYPE, params);
+            webhooks.invitationEvents(asList(new InvitationEvent(InvitationEvent.Type.UPDATED, invitation, null),
+                    new InvitationEvent(InvitationEvent.Type.UPDATED, invitation, null)));
+
+            webhooks.deliver();
+            then(metrics.getGauge("webhookEventsDropped")).isEqualTo(2);
+            then(bodies).as("events added during the first delivery are sent next").hasSize(2);
+            then(webhooks.getQueuedCount()).isEqualTo(0);
+            then(metrics.getGauge("webhookEventsDelivered")).isEqualTo(4);
+        } finally {
+            webhooks.destroy();
+            server.stop(0);
+            System.clearProperty(InvitationsWebhooks.INTERVAL_PROPERTY);
+            System.clearProperty(InvitationsWebhooks.MAX_OUTBOX_PROPERTY);
+        }
+    }
+
+    public void invitation_links_are_sent_by_email_through_a_persistent_queue() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        System.setProperty(InvitationEmailQueue.RATE_PROPERTY, "60000");
+        System.setProperty(InvitationEmailQueue.SESSION_SIZE_PROPERTY, "2");
+        System.setProperty(InvitationEmailQueue.RETRY_DELAY_PROPERTY, "1");
+        FakeSmtpServer smtp = new FakeSmtpServer();
+        InvitationEmailQueue emailQueue = new InvitationEmailQueue(core, invitations, invitationsController, metrics);
+        try {
+            InvitationsEmailController controller = new InvitationsEmailController(createWebControllerManager(), invitations, emailQueue);
+            newRequest(HttpMethod.POST, InvitationsEmailController.PATH + "?token=" + invitation.getToken());
+            request.addParameter("addresses", "a@example.com");
+            controller.handleRequestInternal(request, response);
+            then(response.getStatus()).as("email is not configured").isEqualTo(400);
+
+            core.setSmtpSettings(smtp.getSettings());
+            newRequest(HttpMethod.POST, InvitationsEmailController.PATH + "?token=" + invitation.getToken());
+            request.addParameter("addresses", "a@example.com, b@example.com;reject@example.com\nnot-an-address");
+            controller.handleRequestInternal(request, response);
+            then(response.getStatus()).isEqualTo(200);
+            then(response.getContentAsString()).contains("\"queued\":3", "\"invalid\":[\"not-an-address\"]");
+
+            awaitEmails(emailQueue, invitation.getToken());
+            then(emailQueue.getRecipients(invitation.getToken())).extracting(InvitationEmailQueue.Recipient::getState)
+                    .containsExactly(InvitationEmailQueue.State.SENT, InvitationEmailQueue.State.SENT, InvitationEmailQueue.State.FAILED);
+            then(emailQueue.getRecipients(invitation.getToken()).get(2).getError()).startsWith("550");
+            then(smtp.getMessages()).extracting(m -> m.to).containsExactly("<a@example.com>", "<b@example.com>");
+            String message = smtp.getMessages().get(0).data;
+            String body = new String(Base64.getMimeDecoder().decode(message.substring(message.indexOf("\r\n\r\n") + 4)), StandardCharsets.UTF_8);
+            then(body).contains("admin invited you", "?token=" + invitation.getToken());
+            then(smtp.getSessionsCount()).as("emails are sent in sessions of 2").isEqualTo(2);
+            then(metrics.getGauge("emailsSent")).isEqualTo(2);
+            then(metrics.getGauge("emailsFailed")).isEqualTo(1);
+
+            newRequest(HttpMethod.GET, InvitationsEmailController.PATH + "?token=" + invitation.getToken());
+            controller.handleRequestInternal(request, response);
+            then(jsonValues(response.getContentAsString(), "state")).containsExactly("SENT", "SENT", "FAILED");
+
+            core.setSmtpSettings(null);
+            emailQueue.enqueue(invitation, "admin", singletonList("later@example.com"));
+            emailQueue.destroy();
+            emailQueue = new InvitationEmailQueue(core, invitations, invitationsController, metrics);
+            then(emailQueue.getRecipients(invitation.getToken())).as("the queue is read back after restart").extracting(InvitationEmailQueue.Recipient::getState)
+                    .containsExactly(InvitationEmailQueue.State.SENT, InvitationEmailQueue.State.SENT, InvitationEmailQueue.State.FAILED, InvitationEmailQueue.State.QUEUED);
+            then(new String(Files.readAllBytes(new File(core.getPluginDataDirectory(), "invitations/emailQueue.ndjson").toPath()), StandardCharsets.UTF_8))
+                    .as("the token is not written to disk").doesNotContain(invitation.getToken());
+
+            core.setSmtpSettings(smtp.getSettings());
+            awaitEmails(emailQueue, invitation.getToken());
+            then(smtp.getMessages()).extracting(m -> m.to).containsExactly("<a@example.com>", "<b@example.com>", "<later@example.com>");
+        } finally {
+            emailQueue.destroy();
+            smtp.close();
+            System.clearProperty(InvitationEmailQueue.RATE_PROPERTY);
+            System.clearProperty(InvitationEmailQueue.SESSION_SIZE_PROPERTY);
+            System.clearProperty(InvitationEmailQueue.RETRY_DELAY_PROPERTY);
+        }
+    }
+
+    private static void awaitEmails(InvitationEmailQueue emailQueue, String token) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (emailQueue.getRecipients(token).stream().anyMatch(r -> r.getState() == InvitationEmailQueue.State.QUEUED)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void slow_event_listener_does_not_block_mutations() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+
+        System.setProperty(InvitationEventBus.BUFFER_SIZE_PROPERTY, "4");
+        InvitationEventBus bus = new InvitationEventBus(metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        List<InvitationEvent> received = new CopyOnWriteArrayList<>();
+        try {
+            InvitationEventBus.Subscription subscription = bus.subscribe(events -> {
+                received.addAll(events);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, null, Collections.emptySet());
+
+            for (int i = 0; i < 20; i++) {
+                bus.publish(InvitationEvent.Type.UPDATED, invitation, null);
+            }
+            then(bus.getPublishedCount()).isEqualTo(20);
+            release.countDown();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received.size() + subscription.getDroppedCount() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            then(subscription.getDroppedCount()).isGreaterThan(0);
+            then(received.size() + subscription.getDroppedCount()).isEqualTo(20);
+        } finally {
+            release.countDown();
+            bus.destroy();
+            System.clearProperty(InvitationEventBus.BUFFER_SIZE_PROPERTY);
+        }
+    }
+
+    public void busy_event_listeners_take_turns_on_delivery_threads() throws Exception {
+        login(systemAdmin);
+        Invitation invitation = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+
+        System.setProperty(InvitationEventBus.THREADS_PROPERTY, "1");
+        System.setProperty(InvitationEventBus.BATCH_SIZE_PROPERTY, "1");
+        InvitationEventBus bus = new InvitationEventBus(metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> deliveries = new CopyOnWriteArrayList<>();
+        try {
+            bus.subscribe(events -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, null, Collections.emptySet());
+            bus.subscribe(events -> deliveries.add("first"), null, Collections.emptySet());
+            bus.subscribe(events -> deliveries.add("second"), null, Collections.emptySet());
+
+            for (int i = 0; i < 3; i++) {
+                bus.publish(InvitationEvent.Type.UPDATED, invitation, null);
+            }
+            release.countDown();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (deliveries.size() < 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            then(deliveries).as("the only delivery thread is not held by one subscription")
+                    .containsExactly("first", "second", "first", "second", "first", "second");
+        } finally {
+            release.countDown();
+            bus.destroy();
+            System.clearProperty(InvitationEventBus.THREADS_PROPERTY);
+            System.clearProperty(InvitationEventBus.BATCH_SIZE_PROPERTY);
+        }
+    }
+
+    public void create_invitations_from_csv() throws Exception {
+        login(systemAdmin);
+        SUserGroup developers = core.createGroup("developers");
+        developers.addRole(projectScope(testDriveProject.getProjectId()), developerRole);
+
+        String errors = callBulkCreate("name,type,role or group,welcome text,multi\n" +
+                "Developers,join,developers,Welcome,multi\n" +
+                "Unknown,join,UNKNOWN_ROLE,Welcome,single\n");
+        then(response.getStatus()).isEqualTo(400);
+        then(errors).contains("Row 3").contains("UNKNOWN_ROLE");
+        then(invitations.getInvitations(testDriveProject)).isEmpty();
+
+        long persists = metrics.getPersists().getCount();
+        String links = callBulkCreate("name,type,role or group,welcome text,multi\n" +
+                "Developers,join,developers,Welcome,multi\n" +
+                "\"Dev, single\",join,PROJECT_DEVELOPER,\"Hello, \"\"team\"\"\",single\n" +
+                "New projects,create,PROJECT_ADMIN,Create your project,multi\n");
+        then(response.getStatus()).isEqualTo(200);
+        then(response.getHeader("Content-Disposition")).contains("invitations-TestDriveProjectId.csv");
+        then(metrics.getPersists().getCount()).isEqualTo(persists + 1);
+
+        List<Invitation> created = invitations.getInvitations(testDriveProject);
+        then(created).extracting(Invitation::getName).containsExactlyInAnyOrder("Developers", "Dev, single", "New projects");
+        then(links.split("\r\n")).hasSize(4);
+        for (Invitation invitation : created) {
+            then(links).contains("?token=" + invitation.getToken());
+        }
+        then(links).contains("\"Dev, single\",joinProjectInvitation,PROJECT_DEVELOPER,,single,");
+    }
+
+    public void available_invitation_types_follow_user_role_changes() throws Exception {
+        SUser oleg = core.createUser("oleg");
+        login(oleg);
+        System.setProperty(RolesAndGroupsCache.MAX_DECISION_AGE_PROPERTY, "50");
+        try {
+            rolesAndGroups.invalidate();//the properties are read once per revision
+            then(joinProjectInvitationType.isAvailableFor(oleg, testDriveProject)).isFalse();
+            then(createNewProjectInvitationType.isAvailableFor(oleg, testDriveProject)).isFalse();
+
+            oleg.addRole(projectScope(testDriveProject.getProjectId()), adminRole);
+            Thread.sleep(100);//given roles are not reported, the cached decision expires
+            then(joinProjectInvitationType.isAvailableFor(oleg, testDriveProject)).isTrue();
+            then(createNewProjectInvitationType.isAvailableFor(oleg, testDriveProject)).isTrue();
+        } finally {
+            System.clearProperty(RolesAndGroupsCache.MAX_DECISION_AGE_PROPERTY);
+        }
+    }
+
+    public void project_groups_index_follows_group_changes() throws Exception {
+        ProjectGroupsIndex index = new ProjectGroupsIndex(core);
+        SUserGroup developers = core.createGroup("developers");
+        System.setProperty(RolesAndGroupsCache.MAX_AGE_PROPERTY, "50");
+        try {
+            then(index.getGroupsWithRolesIn(testDriveProject.getProjectId())).isEmpty();
+            developers.addRole(projectScope(testDriveProject.getProjectId()), developerRole);
+            Thread.sleep(100);//given roles are not reported, the index is rebuilt when it gets old
+            then(index.getGroupsWithRolesIn(testDriveProject.getProjectId())).containsOnly(developers);
+            then(index.getGroupsWithRolesIn("_Root")).isEmpty();
+        } finally {
+            System.clearProperty(RolesAndGroupsCache.MAX_AGE_PROPERTY);
+        }
+
+        Thread.sleep(100);
+        then(index.getGroupsWithRolesIn(testDriveProject.getProjectId())).as("rebuilt with the default max age").containsOnly(developers);
+        core.removeGroup("developers");
+        then(index.getGroupsWithRolesIn(testDriveProject.getProjectId())).as("updated by the event").isEmpty();
+    }
+
+    public void enabled_invitations_count_follows_invitation_and_role_changes() throws Exception {
+        login(systemAdmin);
+        Invitation first = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        then(invitations.getEnabledInvitationsCount(testDriveProject, systemAdmin)).isEqualTo(2);
+
+        SUser oleg = core.createUser("oleg");
+        System.setProperty(RolesAndGroupsCache.MAX_AGE_PROPERTY, "50");
+        try {
+            rolesAndGroups.invalidate();//the properties are read once per revision
+            then(invitations.getEnabledInvitationsCount(testDriveProject, oleg)).isEqualTo(0);
+            oleg.addRole(projectScope(testDriveProject.getProjectId()), adminRole);
+            Thread.sleep(100);//given roles are not reported, the cached count expires
+            then(invitations.getEnabledInvitationsCount(testDriveProject, oleg)).isEqualTo(2);
+        } finally {
+            System.clearProperty(RolesAndGroupsCache.MAX_AGE_PROPERTY);
+        }
+
+        first.setEnabled(false);
+        invitations.updateInvitation(first, "Invitation disabled");
+        then(invitations.getEnabledInvitationsCount(testDriveProject, oleg)).isEqualTo(1);
+
+        invitations.removeInvitation(testDriveProject, first.getToken());
+        then(invitations.getInvitations(testDriveProject)).hasSize(1);
+        then(invitations.getEnabledInvitationsCount(testDriveProject, systemAdmin)).isEqualTo(1);
+    }
+
+    public void invitations_list_is_paginated() throws Exception {
+        login(systemAdmin);
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            tokens.add(createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken());
+        }
+        Invitation disabled = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", true);
+        disabled.setEnabled(false);
+        invitations.updateInvitation(disabled, "Invitation disabled");
+
+        InvitationsPage first = getInvitationsPage("sort=created&limit=4");
+        then(first.getInvitations()).hasSize(4);
+        then(first.getTotal()).isEqualTo(6);
+        then(first.isHasMore()).isTrue();
+
+        InvitationsPage second = getInvitationsPage("sort=created&limit=4&offset=" + first.getNextOffset());
+        then(second.getInvitations()).hasSize(2);
+        then(second.isHasMore()).isFalse();
+        then(second.getInvitations()).doesNotContainAnyElementsOf(first.getInvitations());
+
+        then(getInvitationsPage("limit=4&offset=" + Integer.MAX_VALUE).getInvitations()).isEmpty();
+        then(getInvitationsPage("limit=4&offset=" + Long.MAX_VALUE).getTotal()).isEqualTo(6);
+        then(getInvitationsPage("limit=4&offset=-" + Long.MAX_VALUE).getInvitations()).hasSize(4);
+
+        then(getInvitationsPage("filterType=" + joinProjectInvitationType.getId()).getInvitations())
+                .extracting(Invitation::getToken).containsOnlyElementsOf(tokens);
+        then(getInvitationsPage("enabled=false").getInvitations()).extracting(Invitation::getToken).containsOnly(disabled.getToken());
+        then(getInvitationsPage("createdBy=" + systemAdmin.getId()).getTotal()).isEqualTo(6);
+        then(getInvitationsPage("createdBy=" + core.createUser("oleg").getId()).getTotal()).isEqualTo(0);
+    }
+
+    public void api_lists_invitations_of_all_projects_with_cursor() throws Exception {
+        login(systemAdmin);
+        core.createProject("TestDriveProjectId", "SubProjectId");
+        core.createProject("_Root", "OtherProjectId");
+        Set<String> created = new HashSet<>();
+        for (String project : asList("TestDriveProjectId", "SubProjectId", "OtherProjectId")) {
+            created.add(createInvitationToJoinProject("PROJECT_DEVELOPER", null, project, true).getToken());
+            created.add(createInvitationToCreateProject("PROJECT_ADMIN", project, true).getToken());
+        }
+
+        Set<String> listed = new HashSet<>();
+        String cursor = "";
+        int pages = 0;
+        do {
+            String json = callApi("limit=4&cursor=" + cursor);
+            listed.addAll(jsonValues(json, "token"));
+            List<String> next = jsonValues(json, "nextCursor");
+            cursor = next.isEmpty() ? null : next.get(0);
+            pages++;
+        } while (cursor != null);
+        then(listed).isEqualTo(created);
+        then(pages).isEqualTo(2);
+
+        then(jsonValues(callApi("project=TestDriveProjectId"), "project")).containsOnly("TestDriveProjectId", "SubProjectId").hasSize(4);
+        then(jsonValues(callApi("role=PROJECT_DEVELOPER"), "type")).containsOnly(joinProjectInvitationType.getId()).hasSize(3);
+        then(jsonValues(callApi("type=" + createNewProjectInvitationType.getId() + "&project=OtherProjectId"), "role")).containsExactly("PROJECT_ADMIN");
+        then(jsonValues(callApi("createdBy=" + core.createUser("oleg").getId()), "token")).isEmpty();
+
+        System.setProperty(InvitationsApiController.MAX_SCANNED_PROPERTY, "4");
+        try {
+            List<String> developerInvitations = new ArrayList<>();
+            cursor = "";
+            pages = 0;
+            do {
+                String json = callApi("role=PROJECT_DEVELOPER&limit=2&cursor=" + cursor);
+                developerInvitations.addAll(jsonValues(json, "token"));
+                List<String> next = jsonValues(json, "nextCursor");
+                cursor = next.isEmpty() ? null : next.get(0);
+                pages++;
+            } while (cursor != null);
+            then(developerInvitations).hasSize(3).doesNotHaveDuplicates();
+            then(pages).as("a page stops after 4 scanned invitations").isGreaterThanOrEqualTo(2);
+        } finally {
+            System.clearProperty(InvitationsApiController.MAX_SCANNED_PROPERTY);
+        }
+
+        newRequest(HttpMethod.GET, InvitationsApiController.PATH + "?limit=many");
+        invitationsApiController.handleRequestInternal(request, response);
+        then(response.getStatus()).as("invalid limit").isEqualTo(400);
+    }
+
+    public void secondary_indexes_follow_invitation_changes() throws Exception {
+        login(systemAdmin);
+        SUserGroup developers = core.createGroup("developers");
+        developers.addRole(projectScope(testDriveProject.getProjectId()), developerRole);
+        String withGroup = createInvitationToJoinProject("PROJECT_DEVELOPER", "developers", "TestDriveProjectId", true).getToken();
+        String withRole = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+        String createProject = createInvitationToCreateProject("PROJECT_ADMIN", "TestDriveProjectId", true).getToken();
+
+        then(invitations.getInvitationsCreatedBy(systemAdmin.getId())).extracting(Invitation::getToken).containsOnly(withGroup, withRole, createProject);
+        then(invitations.getInvitationsWithRole("PROJECT_DEVELOPER")).extracting(Invitation::getToken).containsOnly(withGroup, withRole);
+        then(invitations.getInvitationsWithGroup("developers")).extracting(Invitation::getToken).containsOnly(withGroup);
+        then(invitations.getInvitationsOfType(createNewProjectInvitationType.getId())).extracting(Invitation::getToken).containsOnly(createProject);
+
+        invitations.updateInvitation(joinProjectInvitationType.createNewInvitation(systemAdmin, "Admins", withRole, testDriveProject,
+                "PROJECT_ADMIN", null, true, "Hello"), "Invitation updated");
+        then(invitations.getInvitationsWithRole("PROJECT_DEVELOPER")).extracting(Invitation::getToken).containsOnly(withGroup);
+        then(invitations.getInvitationsWithRole("PROJECT_ADMIN")).extracting(Invitation::getToken).containsOnly(withRole, createProject);
+
+        invitations.removeInvitation(testDriveProject, withGroup);
+        then(invitations.getInvitationsWithGroup("developers")).isEmpty();
+        then(invitations.getInvitationsCreatedBy(systemAdmin.getId())).hasSize(2);
+        then(invitations.getInvitationsCreatedBy(core.createUser("oleg").getId())).isEmpty();
+    }
+
+    public void export_and_import_invitations() throws Exception {
+        login(systemAdmin);
+        core.createProject("TestDriveProjectId", "SubProjectId");
+        core.createProject("_Root", "OtherProjectId");
+        Set<String> exported = new HashSet<>();
+        for (String project : asList("TestDriveProjectId", "SubProjectId")) {
+            exported.add(createInvitationToJoinProject("PROJECT_DEVELOPER", null, project, true).getToken());
+            exported.add(createInvitationToCreateProject("PROJECT_ADMIN", project, false).getToken());
+        }
+        String other = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "OtherProjectId", true).getToken();
+        Map<String, Map<String, String>> before = new HashMap<>();
+        exported.forEach(token -> before.put(token, invitations.getInvitation(token).asMap()));
+
+        newRequest(HttpMethod.GET, InvitationsExportController.PATH + "?project=TestDriveProjectId");
+        invitationsExportController.handleRequestInternal(request, response);
+        String ndjson = response.getContentAsString();
+        then(ndjson.split("\n")).hasSize(4);
+
+        for (String token : exported) {
+            invitations.removeInvitation(invitations.getInvitation(token).getProject(), token);
+        }
+        then(callImport(ndjson + "\n{not json}\n")).contains("\"imported\":4", "\"skipped\":0", "\"failed\":1", "Line 5");
+        for (String token : exported) {
+            then(invitations.getInvitation(token).asMap()).isEqualTo(before.get(token));
+        }
+        then(invitations.getInvitation(other)).isNotNull();
+
+        then(callImport(ndjson)).contains("\"imported\":0", "\"skipped\":4");
+
+        newRequest(HttpMethod.GET, InvitationsExportController.PATH + "?project=OtherProjectId&excludeSecrets=true");
+        invitationsExportController.handleRequestInternal(request, response);
+        String withoutSecrets = response.getContentAsString();
+        then(withoutSecrets).doesNotContain(other);
+        then(callImport(withoutSecrets)).contains("\"imported\":1");
+        then(invitations.getInvitations(core.findProjectByExtId("OtherProjectId"))).hasSize(2);
+
+        String forged = withoutSecrets.trim().replaceAll("\"createdByUserId\":\"?\\d+\"?", "\"createdByUserId\":\"12345\"");
+        then(callImport(forged)).contains("\"imported\":1");
+        then(invitations.getInvitations(core.findProjectByExtId("OtherProjectId"))).hasSize(3)
+                .extracting(Invitation::getCreatedByUserId).containsOnly(systemAdmin.getId());
+
+        String withoutRole = withoutSecrets.trim().replace("\"roleId\":\"PROJECT_DEVELOPER\"", "\"roleId\":\"\"");
+        then(callImport(withoutRole)).contains("\"imported\":0", "\"failed\":1", "Either the role or the group must be specified");
+        String withUnknownRole = withoutSecrets.trim().replace("\"roleId\":\"PROJECT_DEVELOPER\"", "\"roleId\":\"UNKNOWN\"");
+        then(callImport(withUnknownRole)).contains("\"imported\":0", "\"failed\":1", "Role 'UNKNOWN' doesn't exist");
+    }
+
+    public void effective_invitations_include_inheritable_invitations_of_ancestors() throws Exception {
+        login(systemAdmin);
+        SProject subProject = core.createProject("TestDriveProjectId", "SubProjectId");
+        SProject subSubProject = core.createProject("SubProjectId", "SubSubProjectId");
+        Invitation inheritable = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true);
+        inheritable.setInheritable(true);
+        invitations.updateInvitation(inheritable, "Invitation is inherited");
+        String own = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "TestDriveProjectId", true).getToken();
+        String subOwn = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "SubProjectId", true).getToken();
+
+        then(invitations.getEffectiveInvitations(testDriveProject)).extracting(Invitation::getToken).containsOnly(inheritable.getToken(), own);
+        then(invitations.getEffectiveInvitations(subProject)).extracting(Invitation::getToken).containsExactly(subOwn, inheritable.getToken());
+        then(invitations.getEffectiveInvitations(subSubProject)).extracting(Invitation::getToken).containsExactly(inheritable.getToken());
+
+        //own changes of a project without inheritable invitations
+        String subSubOwn = createInvitationToJoinProject("PROJECT_DEVELOPER", null, "SubSubProjectId", true).getToken();
+        then(invitations.getEffectiveInvitations(subSubProject)).extracting(Invitation::getToken).containsExactly(subSubOwn, inheritable.getToken());
+
+        newRequest(HttpMethod.GET, "/admin/invitations.html?invitationsPage=true&inherited=true&projectId=SubSubProjectId");
+        InvitationsPage inherited = (InvitationsPage) invitationsAdminController.handleRequestInternal(request, response).getModel().get("page");
+        then(inherited.getInvitations()).as("the admin tab pages through inherited invitations only")
+                .extracting(Invitation::getToken).containsExactly(inheritable.getToken());
+        then(inherited.getTotal()).isEqualTo(1);
+
+        inheritable.setInheritable(false);
+        invitations.updateInvitation(inheritable, "Invitation is not inherited");
+        then(invitations.getEffectiveInvitations(subProject)).extracting(Invitation::getToken).containsExactly(subOwn);
+        then(invitations.getEffectiveInvitations(subSubProject)).extracting(Invitation::getToken).containsExactly(subSubOwn);
+    }
+
+    private String callBulkCreate(String csv) throws Exception {
+        newRequest(HttpMethod.POST, InvitationsBulkCreateController.PATH + "?projectId=TestDriveProjectId");
+        request.setContent(csv.getBytes(StandardCharsets.UTF_8));
+        invitationsBulkCreateController.handleRequestInternal(request, response);
+        return response.getContentAsString();
+    }
+
+    private String callImport(String ndjson) throws Exception {
+        newRequest(HttpMethod.POST, InvitationsExportController.PATH);
+        request.setContent(ndjson.getBytes(StandardCharsets.UTF_8));
+        invitationsExportController.handleRequestInternal(request, response);
+        then(response.getStatus()).isEqualTo(200);
+        return response.getContentAsString();
+    }
+
+    private String callApi(String query) throws Exception {
+        newRequest(HttpMethod.GET, InvitationsApiController.PATH + "?" + query);
+        invitationsApiController.handleRequestInternal(request, response);
+        then(response.getStatus()).isEqualTo(200);
+        return response.getContentAsString();
+    }
+
+    private static List<String> jsonValues(String json, String name) {
+        List<String> result = new ArrayList<>();
+        Matcher matcher = Pattern.compile("\"" + name + "\":\"([^\"]*)\"").matcher(json);
+        while (matcher.find()) {
+            result.add(matcher.group(1));
+        }
+        return result;
+    }
+
+    private InvitationsPage getInvitationsPage(String query) throws Exception {
+        newRequest(HttpMethod.GET, "/admin/invitations.html?invitationsPage=true&projectId=TestDriveProjectId&" + query);
+        ModelAndView page = invitationsAdminController.handleRequestInternal(request, response);
+        return (InvitationsPage) page.getModel().get("page");
+    }
+
     private ModelAndView goToAfterRegistrationUrl(String token) throws Exception {
         newRequest(HttpMethod.GET, InvitationsProceedController.PATH + "?token=" + token);
         return invitationsProceedController.doHandle(request, response);
@@ -0,0 +1,343 @@
+package org.jetbrains.teamcity.invitations;
+
+import jetbrains.buildServer.groups.SUserGroup;
+import jetbrains.buildServer.serverSide.ProjectsModelListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.ServerSideEventDispatcher;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.Permissions;
+import jetbrains.buildServer.serverSide.auth.Role;
+import jetbrains.buildServer.serverSide.auth.RoleScope;
+import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic TeamCity installation for performance tests and benchmarks: a deep project tree, a catalog of roles with random
+ * permission sets, groups holding roles in random projects, and invitations spread over the projects.
+ * <p>
+ * Everything is generated from a seed, so two fixtures built with the same options are identical. Invitations are written
+ * directly to the project features, so populating large installations doesn't go through the storage.
+ * <pre>
+ * LargeInstallationFixture installation = LargeInstallationFixture.builder()
+ *         .projects(20000).depth(6)
+ *         .invitations(50000).distribution(LargeInstallationFixture.Distribution.SKEWED)
+ *         .build();
+ * </pre>
+ */
+public class LargeInstallationFixture {
+
+    /**
+     * How invitations are spread over the projects.
+     */
+    public enum Distribution {
+        /**
+         * Every project gets roughly the same number of invitations.
+         */
+        UNIFORM,
+        /**
+         * A few projects own most of the invitations: the project index is picked with a quadratic bias towards the
+         * first projects of the tree, which are the top-level ones.
+         */
+        SKEWED
+    }
+
+    public final SecurityContextImpl securityContext = new SecurityContextImpl();
+    public final EventDispatcher<ProjectsModelListener> events = ServerSideEventDispatcher.create(securityContext, ProjectsModelListener.class);
+    public final FakeTeamCityCoreFacade core = new FakeTeamCityCoreFacade(securityContext, events);
+    public final RolesAndGroupsCache rolesAndGroups = new RolesAndGroupsCache(core, new ProjectGroupsIndex(core));
+    public final SUser admin;
+    public final Role developerRole;
+    public final Role projectAdminRole;
+    public final List<Role> roles = new ArrayList<>();
+    public final List<SUserGroup> groups = new ArrayList<>();
+    /**
+     * Generated projects in breadth-first order, the root project is not included.
+     */
+    public final List<SProject> projects = new ArrayList<>();
+    public final String[] tokens;
+
+    public InvitationsMetrics metrics;
+    public InvitationEventBus eventBus;
+    public InvitationsStorage storage;
+    public JoinProjectInvitationType joinProjectInvitationType;
+    public CreateNewProjectInvitationType createNewProjectInvitationType;
+
+    private final Builder options;
+    private final Random random;
+
+    private LargeInstallationFixture(@NotNull Builder options) {
+        this.options = options;
+        random = new Random(options.seed);
+
+        Role systemAdminRole = core.addRole("SYSTEM_ADMIN", new Permissions(Permission.values()), false);
+        projectAdminRole = core.addRole("PROJECT_ADMIN", new Permissions(Permission.CREATE_SUB_PROJECT, Permission.CHANGE_USER_ROLES_IN_PROJECT,
+                Permission.EDIT_PROJECT, Permission.ARCHIVE_PROJECT), true);
+        developerRole = core.addRole("PROJECT_DEVELOPER", new Permissions(Permission.RUN_BUILD), true);
+        admin = core.createUser("admin");
+        admin.addRole(RoleScope.globalScope(), systemAdminRole);
+        login();
+
+        start(events);
+        generateProjects();
+        generateRoles();
+        generateGroups();
+
+        tokens = new String[options.invitations];
+        for (int i = 0; i < options.invitations; i++) {
+            tokens[i] = "token-" + options.seed + "-" + i;
+            addInvitationFeature(generateInvitation(tokens[i]));
+        }
+        if (tokens.length > 0) {
+            storage.getInvitation(tokens[0]);//populate cache
+        }
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Authenticates the current thread as the system administrator.
+     */
+    public void login() {
+        securityContext.setAuthorityHolder(admin);
+    }
+
+    /**
+     * Creates the storage and invitation types the way the server does on startup.
+     */
+    @NotNull
+    public InvitationsStorage start(@NotNull EventDispatcher<ProjectsModelListener> events) {
+        metrics = new InvitationsMetrics();
+        eventBus = new InvitationEventBus(metrics);
+        storage = new InvitationsStorage(core, events, metrics, rolesAndGroups, eventBus);
+        joinProjectInvitationType = new JoinProjectInvitationType(storage, core, new InvitationLandingProvider(core), rolesAndGroups,
+                new InvitationAcceptanceExecutor(metrics));
+        createNewProjectInvitationType = new CreateNewProjectInvitationType(storage, core, events, new InvitationLandingProvider(core), metrics, rolesAndGroups);
+        return storage;
+    }
+
+    /**
+     * Simulates a server restart: the returned storage has an empty token cache and isn't subscribed to the installation events.
+     */
+    @NotNull
+    public InvitationsStorage restart() {
+        return start(ServerSideEventDispatcher.create(securityContext, ProjectsModelListener.class));
+    }
+
+    /**
+     * Creates a reusable invitation to join the project with the developer role, the invitation isn't stored.
+     */
+    @NotNull
+    public JoinProjectInvitationType.InvitationImpl createInvitation(@NotNull SProject project, @NotNull String token) {
+        return joinProjectInvitationType.createNewInvitation(admin, "Join " + project.getName(), token, project,
+                developerRole.getId(), null, true, "Welcome to " + project.getName());
+    }
+
+    /**
+     * Picks a project the way invitations were distributed.
+     */
+    @NotNull
+    public SProject randomProject(@NotNull Random random) {
+        int index;
+        if (options.distribution == Distribution.SKEWED) {
+            double r = random.nextDouble();
+            index = (int) (r * r * projects.size());
+        } else {
+            index = random.nextInt(projects.size());
+        }
+        return projects.get(index);
+    }
+
+    private void generateProjects() {
+        List<SProject> level = Collections.singletonList(core.getProject("_Root"));
+        for (int depth = 1; projects.size() < options.projects; depth++) {
+            List<SProject> next = new ArrayList<>();
+            if (depth < options.depth) {
+                for (SProject parent : level) {
+                    int children = 1 + random.nextInt(2 * options.branching - 1);
+                    for (int i = 0; i < children && projects.size() < options.projects; i++) {
+                        next.add(createProject(parent));
+                    }
+                }
+            } else {
+                for (int i = 0; projects.size() < options.projects; i++) {
+                    next.add(createProject(level.get(i % level.size())));
+                }
+            }
+            level = next;
+        }
+    }
+
+    @NotNull
+    private SProject createProject(@NotNull SProject parent) {
+        SProject project = core.createProject(parent.getExternalId(), "Project" + projects.size());
+        projects.add(project);
+        return project;
+    }
+
+    private void generateRoles() {
+        roles.add(projectAdminRole);
+        roles.add(developerRole);
+        Permission[] permissions = Permission.values();
+        for (int i = roles.size(); i < options.roles; i++) {
+            List<Permission> granted = new ArrayList<>();
+            for (Permission permission : permissions) {
+                if (random.nextInt(8) == 0) {
+                    granted.add(permission);
+                }
+            }
+            roles.add(core.addRole("ROLE_" + i, new Permissions(granted), random.nextInt(10) != 0));
+        }
+    }
+
+    private void generateGroups() {
+        for (int i = 0; i < options.groups; i++) {
+            SUserGroup group = core.createGroup("GROUP_" + i);
+            for (int j = 0; j < options.rolesPerGroup; j++) {
+                Role role = roles.get(random.nextInt(roles.size()));
+                group.addRole(role.isProjectAssociationSupported() ? RoleScope.projectScope(randomProject(random).getProjectId()) : RoleScope.globalScope(), role);
+            }
+            groups.add(group);
+        }
+    }
+
+    @NotNull
+    private Invitation generateInvitation(@NotNull String token) {
+        SProject project = randomProject(random);
+        boolean multiuser = random.nextDouble() >= options.singleUseShare;
+        AbstractInvitation invitation;
+        if (random.nextDouble() < options.createProjectShare) {
+            invitation = createNewProjectInvitationType.new InvitationImpl(admin, "Create under " + project.getName(), token, project,
+                    projectAdminRole.getId(), multiuser, "Welcome to " + project.getName());
+        } else if (!groups.isEmpty() && random.nextDouble() < options.groupShare) {
+            invitation = joinProjectInvitationType.createNewInvitation(admin, "Join " + project.getName(), token, project,
+                    null, groups.get(random.nextInt(groups.size())).getKey(), multiuser, "Welcome to " + project.getName());
+        } else {
+            invitation = joinProjectInvitationType.createNewInvitation(admin, "Join " + project.getName(), token, project,
+                    roles.get(random.nextInt(roles.size())).getId(), null, multiuser, "Welcome to " + project.getName());
+        }
+        if (random.nextDouble() < options.disabledShare) {
+            invitation.setEnabled(false);
+        }
+        return invitation;
+    }
+
+    private void addInvitationFeature(@NotNull Invitation invitation) {
+        Map<String, String> params = invitation.asMap();
+        params.put(InvitationsStorage.INVITATION_TYPE, invitation.getType().getId());
+        invitation.getProject().addFeature(InvitationsStorage.PROJECT_FEATURE_TYPE, params);
+    }
+
+    public static class Builder {
+        private int projects = 1000;
+        private int depth = 4;
+        private int branching = 8;
+        private int roles = 20;
+        private int groups = 100;
+        private int rolesPerGroup = 3;
+        private int invitations = 1000;
+        private Distribution distribution = Distribution.UNIFORM;
+        private double createProjectShare = 0.2;
+        private double groupShare = 0.3;
+        private double singleUseShare = 0.1;
+        private double disabledShare = 0.05;
+        private long seed = 42;
+
+        private Builder() {
+        }
+
+        /**
+         * Number of projects under the root project.
+         */
+        public Builder projects(int projects) {
+            this.projects = projects;
+            return this;
+        }
+
+        /**
+         * Maximum depth of the project tree, the projects which don't fit into upper levels are put on the last one.
+         */
+        public Builder depth(int depth) {
+            this.depth = Math.max(1, depth);
+            return this;
+        }
+
+        /**
+         * Average number of subprojects of a project.
+         */
+        public Builder branching(int branching) {
+            this.branching = Math.max(1, branching);
+            return this;
+        }
+
+        /**
+         * Size of the role catalog, including the project administrator and developer roles.
+         */
+        public Builder roles(int roles) {
+            this.roles = roles;
+            return this;
+        }
+
+        public Builder groups(int groups, int rolesPerGroup) {
+            this.groups = groups;
+            this.rolesPerGroup = rolesPerGroup;
+            return this;
+        }
+
+        public Builder invitations(int invitations) {
+            this.invitations = invitations;
+            return this;
+        }
+
+        public Builder distribution(@NotNull Distribution distribution) {
+            this.distribution = distribution;
+            return this;
+        }
+
+        /**
+         * Share of the invitations to create a subproject, the rest are invitations to join a project.
+         */
+        public Builder createProjectShare(double share) {
+            this.createProjectShare = share;
+            return this;
+        }
+
+        /**
+         * Share of the invitations to join a project which add the user to a group instead of giving a role.
+         */
+        public Builder groupShare(double share) {
+            this.groupShare = share;
+            return this;
+        }
+
+        public Builder singleUseShare(double share) {
+            this.singleUseShare = share;
+            return this;
+        }
+
+        public Builder disabledShare(double share) {
+            this.disabledShare = share;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        @NotNull
+        public LargeInstallationFixture build() {
+            return new LargeInstallationFixture(this);
+        }
+    }
+}